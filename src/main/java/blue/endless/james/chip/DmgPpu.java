@@ -1,13 +1,14 @@
 package blue.endless.james.chip;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import blue.endless.james.host.Bus;
 import blue.endless.james.host.Debug;
+import blue.endless.james.host.Snapshottable;
 import blue.endless.tinyevents.impl.ConsumerEvent;
 
-public class DmgPpu {
+public class DmgPpu implements Snapshottable {
 	/** This striking palette was created by Kirokaze (https://lospec.com/kirokaze) */
 	public static final int[] PAL_KIROKAZE = { 0xFF_E2F3E4, 0xFF_94E344, 0xFF_46878F, 0xFF_332C50 };
 	/** This palette by Kerrie Lake (https://lospec.com/kerrielake) puts complementary colors in shadows which really slaps */
@@ -15,11 +16,20 @@ public class DmgPpu {
 	
 	private ConsumerEvent<int[]> onPresentFrame = ConsumerEvent.create();
 	public Bus bus;
+	/** Video memory ($8000-$9FFF) and sprite attributes ($FE00-$FE9F), read directly when drawing */
+	public byte[] vram;
+	public byte[] oam;
+	private static final Mode[] MODES = Mode.values();
 	private Mode mode = Mode.OAM_SEARCH;
 	private int pixel = 0;
 	private int scanline = 0;
-	private ArrayList<Sprite> oamSearchResult = new ArrayList<>();
+	/** The sprites on this line, at most 10. These are reused, so only the first oamSearchCount mean anything */
+	private final Sprite[] oamSearchResult = new Sprite[10];
+	private int oamSearchCount = 0;
 	private int[] screen = new int[160*144];
+	/** Background palette indices for the line being drawn, for sprite priority */
+	private int[] lineBackground = new int[160];
+	private boolean[] spriteBlocked = new boolean[160];
 	
 	private boolean lcdEnable = false;
 	private boolean absoluteBG = true;
@@ -51,6 +61,10 @@ public class DmgPpu {
 	int[] palette = PAL_WISH;
 	int[] spritePalette = PAL_WISH;
 	
+	public DmgPpu() {
+		for(int i=0; i<oamSearchResult.length; i++) oamSearchResult[i] = new Sprite();
+	}
+	
 	public void clock() {
 		if (!lcdEnable) return;
 		pixel++;
@@ -74,8 +88,9 @@ public class DmgPpu {
 		if (scanline<144) {
 			if (pixel==0) mode = Mode.OAM_SEARCH;
 			if (pixel==80) mode = Mode.PICTURE;
-			if (pixel==80+168+(oamSearchResult.size()*10)) {
+			if (pixel==80+168+(oamSearchCount*10)) {
 				mode = Mode.HBLANK;
+				renderLine();
 			}
 		} else if (scanline==144 && pixel==0) {
 			mode = mode.VBLANK;
@@ -89,161 +104,186 @@ public class DmgPpu {
 			//System.out.println("Transitioning to VBLANK");
 		}
 		
-		if (mode==Mode.PICTURE) {
-			int truePixel = pixel-80;
-			if (truePixel<160) {
-				int ofs = scanline*160 + truePixel;
-				if (ofs<screen.length) {
-					int coarseX = ((truePixel+scx)&0xFF) / 8;
-					int coarseY = ((scanline+scy)&0xFF) / 8;
-					int fineX = (truePixel+scx) % 8;
-					int fineY = (scanline+scy) % 8;
-					
-					int tilePal = 0; //the palette ID for the background tile, important for sprite priority
-					if (enableBackground) {
-						int tilemapIndex = (coarseY*32) + coarseX;
-						
-						int tilemapStart = (useHighTilemap) ? 0x9C00 : 0x9800;
-						int tileId = bus.read(tilemapStart+tilemapIndex);
-						
-						//int tileId = (coarseY*20) + coarseX; //256x256 field can fit 32, but we can't see them all
-						int charDataStart = 0;
-						if (!absoluteBG) {
-							if ((tileId & 0x80)!=0) {
-								tileId &= 0x7F;
-								charDataStart = 0x8800 + (tileId*16);
-							} else {
-								tileId &= 0x7F;
-								//tileId = -tileId;
-								//tileId = 1;
-								charDataStart = 0x9000 + (tileId*16);
-							}
-							
-						} else {
-							charDataStart = 0x8000 + (tileId*16);
-						}
-						charDataStart += (fineY*2);
-						//if (fineX==0) System.out.println("TileId: "+Integer.toHexString(tileId));
-						int tileRowLo = bus.read(charDataStart);
-						int tileRowHi = bus.read(charDataStart + 1);
-						int tileBitLo = (tileRowLo >> (7-fineX)) & 0x01;
-						int tileBitHi = (tileRowHi >> (7-fineX)) & 0x01;
-						
-						tilePal = (tileBitHi << 1) | tileBitLo;
-						
-						int color = (bgp>>(tilePal*2)) & 0x03;
-						color = palette[color];
-						
-						//int color = palette[tilePal]; //TODO: Map through bgp
-						screen[ofs] = color;
-						
-						if (enableWindow) {
-							if (truePixel>=windowX && scanline>=windowY) {
-								int pixelWindowX = (truePixel-windowX) & 0xFF;
-								int pixelWindowY = (scanline-windowY) & 0xFF;
-								int coarseWindowX = pixelWindowX / 8;
-								int coarseWindowY = pixelWindowY / 8;
-								int fineWindowX = pixelWindowX % 8;
-								int fineWindowY = pixelWindowY % 8;
-								
-								int windowTilemapIndex = (coarseWindowY*32) + coarseWindowX;
-								int windowTilemapStart = (windowHighTilemap) ? 0x9C00 : 0x9800;
-								
-								int windowTileId = bus.read(windowTilemapStart + windowTilemapIndex);
-								
-								int wCharDataStart = 0;
-								if (!absoluteBG) {
-									if ((windowTileId & 0x80)!=0) {
-										windowTileId &= 0x7F;
-										wCharDataStart = 0x8800 + (windowTileId*16);
-									} else {
-										windowTileId &= 0x7F;
-										wCharDataStart = 0x9000 + (windowTileId*16);
-									}
-								} else {
-									wCharDataStart = 0x8000 + (windowTileId*16);
-								}
-								wCharDataStart += (fineWindowY*2);
-								
-								int wTileRowLo = bus.read(wCharDataStart);
-								int wTileRowHi = bus.read(wCharDataStart + 1);
-								int wTileBitLo = (wTileRowLo >> (7-fineWindowX)) & 0x01;
-								int wTileBitHi = (wTileRowHi >> (7-fineWindowX)) & 0x01;
-								
-								int windowPal = (wTileBitHi << 1) | wTileBitLo;
-								
-								int windowColor = (bgp>>(windowPal*2)) & 0x03; //yes, same palette as background, the bgp
-								windowColor = palette[windowColor];
-								screen[ofs] = windowColor;
-							}
-						}
-						
-					} else {
-						screen[ofs] = palette[0];
-					}
-					
-					
-					
-					if (enableSprites) {
-						for(Sprite s : oamSearchResult) {
-							if (truePixel>=s.x && truePixel<s.x+8) {
-								int spriteX = truePixel-s.x;
-								int spriteY = scanline - s.y;
-								int pal = ((s.flags & 0x10)!=0) ? obp1 : obp0;
-								if ((s.flags & 0x20)!=0) spriteX = 7-spriteX;
-								if ((s.flags & 0x40)!=0) {
-									if (tallSprites) {
-										spriteY = 15-spriteY;
-									} else {
-										spriteY = 7-spriteY;
-									}
-								}
-								
-								if ((s.flags & 0x80)!=0) {
-									if (tilePal!=0) break;
-								}
-								
-								int spriteDataStart = 0x8000 + (s.tile*16) + (spriteY*2);
-								int spriteRowLo = bus.read(spriteDataStart);
-								int spriteRowHi = bus.read(spriteDataStart + 1);
-								int spriteBitLo = (spriteRowLo >> (7-spriteX)) & 0x01;
-								int spriteBitHi = (spriteRowHi >> (7-spriteX)) & 0x01;
-								
-								int spritePal = (spriteBitHi << 1) | spriteBitLo;
-								
-								if (spritePal!=0) {
-									int spriteColor = (pal>>(spritePal*2)) & 0x03;
-									screen[ofs] = spritePalette[spriteColor];
-								}
-							}
-						}
-					}
-					
-					
-				}
-			}
-		} else if (mode==Mode.OAM_SEARCH && pixel==0) {
-			oamSearchResult.clear();
+		if (mode==Mode.OAM_SEARCH && pixel==0) {
+			oamSearchCount = 0;
 			
 			for(int i=0; i<40; i++) {
-				int baseAddress = 0xFE00+(i*4);
+				int baseAddress = i*4;
 				
-				int yPos = bus.read(baseAddress) - 16;
-				int xPos = bus.read(baseAddress+1) - 8;
-				int tileIndex = bus.read(baseAddress+2);
-				int flags = bus.read(baseAddress+3);
+				int yPos = (oam[baseAddress] & 0xFF) - 16;
+				int xPos = (oam[baseAddress+1] & 0xFF) - 8;
+				int tileIndex = oam[baseAddress+2] & 0xFF;
+				int flags = oam[baseAddress+3] & 0xFF;
 				
 				//if (yPos!=-16 && yPos!=(255-16)) System.out.println("x: "+xPos+" y: "+yPos);
 				
 				boolean enabled = (scanline>=yPos && scanline<yPos+((tallSprites)?16:8));
 				if (enabled) {
-					oamSearchResult.add(new Sprite(xPos, yPos, tileIndex, flags));
+					oamSearchResult[oamSearchCount++].set(xPos, yPos, tileIndex, flags);
 				}
-				if (oamSearchResult.size()>=10) break;
+				if (oamSearchCount>=10) break;
+			}
+			//if (oamSearchCount>0) System.out.println("OAM Search revealed "+oamSearchCount+" sprites");
+		}
+		
+	}
+	
+	/**
+	 * Runs the given number of dots, exactly as if clock() had been called that many times, but only
+	 * doing real work on the dots where something happens.
+	 */
+	public void advance(int dots) {
+		while(dots>0) {
+			int idle = dotsUntilEvent() - 1;
+			if (idle<0) return; //LCD is off, and time doesn't pass for us
+			if (idle>=dots) {
+				pixel += dots;
+				return;
 			}
-			//if (oamSearchResult.size()>0) System.out.println("OAM Search revealed "+oamSearchResult.size()+" sprites");
+			
+			pixel += idle;
+			dots -= idle;
+			clock();
+			dots--;
 		}
+	}
+	
+	/**
+	 * @return how many dots until the next one which does more than count: a line starting, a mode
+	 *         change, or a line being drawn. Or -1 if the LCD is off.
+	 */
+	public int dotsUntilEvent() {
+		if (!lcdEnable) return -1;
 		
+		int next = 457; //the dot which wraps around to the next line
+		if (scanline<144) {
+			int hblank = 80+168+(oamSearchCount*10);
+			if (pixel<80) {
+				next = 80;
+			} else if (pixel<hblank) {
+				next = hblank;
+			}
+		}
+		return next - pixel;
+	}
+	
+	/**
+	 * @return how many dots until LY reads as the given line, counting the dot where the line starts,
+	 *         or -1 if the LCD is off or the line doesn't exist. If LY is already on that line, this is
+	 *         how long until it comes around again.
+	 */
+	public int dotsUntilLine(int line) {
+		if (!lcdEnable || line<0 || line>153) return -1;
+		int wholeLines = (line - 1 - scanline + 154) % 154;
+		return (457 - pixel) + wholeLines*457;
+	}
+	
+	/**
+	 * Draws all 160 pixels of the current line in one go, at the start of HBLANK. Background, window,
+	 * and sprite rows are pulled straight out of vram, once per tile instead of once per pixel.
+	 */
+	private void renderLine() {
+		int rowStart = scanline*160;
+		if (rowStart+160>screen.length) return;
+		
+		if (enableBackground) {
+			int y = (scanline+scy) & 0xFF;
+			int tilemapRow = ((useHighTilemap) ? 0x1C00 : 0x1800) + (y/8)*32;
+			int fineY = y % 8;
+			
+			int x = 0;
+			while(x<160) {
+				int bgX = (x+scx) & 0xFF;
+				int tileId = vram[tilemapRow + bgX/8] & 0xFF;
+				int rowAddr = tileDataOffset(tileId) + fineY*2;
+				int lo = vram[rowAddr] & 0xFF;
+				int hi = vram[rowAddr+1] & 0xFF;
+				
+				for(int fineX = bgX % 8; fineX<8 && x<160; fineX++, x++) {
+					int shift = 7-fineX;
+					int tilePal = (((hi >> shift) & 0x01) << 1) | ((lo >> shift) & 0x01);
+					lineBackground[x] = tilePal;
+					screen[rowStart+x] = palette[(bgp>>(tilePal*2)) & 0x03];
+				}
+			}
+			
+			if (enableWindow && scanline>=windowY) {
+				int pixelWindowY = (scanline-windowY) & 0xFF;
+				int windowTilemapRow = ((windowHighTilemap) ? 0x1C00 : 0x1800) + (pixelWindowY/8)*32;
+				int fineWindowY = pixelWindowY % 8;
+				
+				x = Math.max(windowX, 0);
+				while(x<160) {
+					int pixelWindowX = (x-windowX) & 0xFF;
+					int windowTileId = vram[windowTilemapRow + pixelWindowX/8] & 0xFF;
+					int rowAddr = tileDataOffset(windowTileId) + fineWindowY*2;
+					int lo = vram[rowAddr] & 0xFF;
+					int hi = vram[rowAddr+1] & 0xFF;
+					
+					//The window doesn't count as background for sprite priority, so lineBackground is left alone
+					for(int fineX = pixelWindowX % 8; fineX<8 && x<160; fineX++, x++) {
+						int shift = 7-fineX;
+						int windowPal = (((hi >> shift) & 0x01) << 1) | ((lo >> shift) & 0x01);
+						screen[rowStart+x] = palette[(bgp>>(windowPal*2)) & 0x03]; //yes, same palette as background, the bgp
+					}
+				}
+			}
+		} else {
+			Arrays.fill(screen, rowStart, rowStart+160, palette[0]);
+			Arrays.fill(lineBackground, 0);
+		}
+		
+		if (enableSprites) {
+			//A background-priority sprite over a non-zero background pixel hides every later sprite at that pixel too
+			Arrays.fill(spriteBlocked, false);
+			for(int i=0; i<oamSearchCount; i++) {
+				Sprite s = oamSearchResult[i];
+				int spriteY = scanline - s.y;
+				if ((s.flags & 0x40)!=0) {
+					if (tallSprites) {
+						spriteY = 15-spriteY;
+					} else {
+						spriteY = 7-spriteY;
+					}
+				}
+				int pal = ((s.flags & 0x10)!=0) ? obp1 : obp0;
+				boolean behindBackground = (s.flags & 0x80)!=0;
+				
+				int rowAddr = (s.tile*16) + (spriteY*2);
+				int lo = vram[rowAddr] & 0xFF;
+				int hi = vram[rowAddr+1] & 0xFF;
+				
+				int start = Math.max(s.x, 0);
+				int end = Math.min(s.x+8, 160);
+				for(int x=start; x<end; x++) {
+					if (spriteBlocked[x]) continue;
+					if (behindBackground && lineBackground[x]!=0) {
+						spriteBlocked[x] = true;
+						continue;
+					}
+					
+					int spriteX = x-s.x;
+					if ((s.flags & 0x20)!=0) spriteX = 7-spriteX;
+					int shift = 7-spriteX;
+					int spritePal = (((hi >> shift) & 0x01) << 1) | ((lo >> shift) & 0x01);
+					
+					if (spritePal!=0) {
+						int spriteColor = (pal>>(spritePal*2)) & 0x03;
+						screen[rowStart+x] = spritePalette[spriteColor];
+					}
+				}
+			}
+		}
+	}
+	
+	/** Finds a background or window tile's pattern data in vram, following LCDC.4's addressing mode */
+	private int tileDataOffset(int tileId) {
+		if (absoluteBG) return tileId*16;
+		if ((tileId & 0x80)!=0) {
+			return 0x0800 + ((tileId & 0x7F)*16);
+		} else {
+			return 0x1000 + (tileId*16);
+		}
 	}
 	
 	public void reset() {
@@ -269,7 +309,8 @@ public class DmgPpu {
 			onPresentFrame.fire(screen);
 			if (print) System.out.println("  LCDC.7 LCD Disable");
 		} else if (!lastEnable && lcdEnable) {
-			//Arrays.fill(screen, palette[0]);
+			//Lines we come back in past don't get drawn until the next frame. Our own screen is still white from turning off, but a lent one holds an old frame
+			Arrays.fill(screen, 0xFF_FFFFFF);
 			if (print) System.out.println("  LCDC.7 LCD Enable");
 		} else {
 			if (print) System.out.println("  LCDC.7 No change (enable: "+lcdEnable+")");
@@ -390,6 +431,82 @@ public class DmgPpu {
 		return onPresentFrame;
 	}
 	
+	/**
+	 * Draws from now on into the given array, which must hold 160*144 pixels. Pixels are only written,
+	 * never read back, and every pixel is written before the frame is presented, so the array can
+	 * start out holding anything.
+	 */
+	public void setScreen(int[] screen) {
+		if (screen.length!=160*144) throw new IllegalArgumentException("Screen must be 160x144");
+		this.screen = screen;
+	}
+	
+	/**
+	 * Saves the LCD registers, where we are in the frame, and this line's OAM search (which decides
+	 * when HBLANK starts). vram and OAM belong to the bus; the screen and palettes aren't saved.
+	 */
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put((byte) mode.ordinal());
+		out.putInt(pixel);
+		out.putInt(scanline);
+		Snapshottable.putBoolean(out, lcdEnable);
+		Snapshottable.putBoolean(out, absoluteBG);
+		Snapshottable.putBoolean(out, useHighTilemap);
+		Snapshottable.putBoolean(out, windowHighTilemap);
+		Snapshottable.putBoolean(out, tallSprites);
+		Snapshottable.putBoolean(out, enableBackground);
+		Snapshottable.putBoolean(out, enableWindow);
+		Snapshottable.putBoolean(out, enableSprites);
+		out.putInt(windowX);
+		out.putInt(windowY);
+		out.putInt(bgp);
+		out.putInt(obp0);
+		out.putInt(obp1);
+		out.putInt(scx);
+		out.putInt(scy);
+		
+		out.put((byte) oamSearchCount);
+		for(int i=0; i<oamSearchCount; i++) {
+			Sprite sprite = oamSearchResult[i];
+			out.putInt(sprite.x);
+			out.putInt(sprite.y);
+			out.put((byte) sprite.tile);
+			out.put((byte) sprite.flags);
+		}
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		mode = MODES[in.get()];
+		pixel = in.getInt();
+		scanline = in.getInt();
+		lcdEnable = Snapshottable.getBoolean(in);
+		absoluteBG = Snapshottable.getBoolean(in);
+		useHighTilemap = Snapshottable.getBoolean(in);
+		windowHighTilemap = Snapshottable.getBoolean(in);
+		tallSprites = Snapshottable.getBoolean(in);
+		enableBackground = Snapshottable.getBoolean(in);
+		enableWindow = Snapshottable.getBoolean(in);
+		enableSprites = Snapshottable.getBoolean(in);
+		windowX = in.getInt();
+		windowY = in.getInt();
+		bgp = in.getInt();
+		obp0 = in.getInt();
+		obp1 = in.getInt();
+		scx = in.getInt();
+		scy = in.getInt();
+		
+		oamSearchCount = in.get();
+		for(int i=0; i<oamSearchCount; i++) {
+			int x = in.getInt();
+			int y = in.getInt();
+			int tile = in.get() & 0xFF;
+			int flags = in.get() & 0xFF;
+			oamSearchResult[i].set(x, y, tile, flags);
+		}
+	}
+	
 	public static enum Mode {
 		HBLANK, //rest of line after PICTURE. that is, 456 - 80 - PICTURE.length
 		VBLANK, //after scanline 0..143, VBLANK is every pixel on each entire line from 144..153 inclusive
@@ -410,7 +527,7 @@ public class DmgPpu {
 		int tile;
 		int flags;
 		
-		public Sprite(int x, int y, int tile, int flags) {
+		public void set(int x, int y, int tile, int flags) {
 			this.x = x;
 			this.y = y;
 			this.tile = tile;
@@ -0,0 +1,165 @@
+package blue.endless.james.chip.mos6502;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import blue.endless.james.chip.mos6502.Opcode.Microcode;
+import blue.endless.james.host.DirectRegion;
+
+/**
+ * Caches straight-line runs of decoded instructions, keyed by the array they were decoded from (which
+ * for cartridge space is the current bank) and their offset in it. Only memory which the bus exposes
+ * as a DirectRegion is ever decoded, since that's the memory we can read without side effects.
+ *
+ * <p>Blocks never cross a 256-byte page, so a write only has to throw away blocks on the page it hit.
+ */
+public class BlockCache {
+	/** Upper bound on block length, so a decode never runs away through a page of data */
+	public static final int MAX_INSTRUCTIONS = 32;
+
+	private static final boolean[] ENDS_BLOCK = new boolean[256];
+	static {
+		Microcode[] controlFlow = {
+				Opcode.BRK, Opcode.KIL, Opcode.JMP, Opcode.JSR, Opcode.RTS, Opcode.RTI
+		};
+		for(int i=0; i<256; i++) {
+			if (Opcode.INSTRUCTION_MODE[i]==MemoryMode.RELATIVE) ENDS_BLOCK[i] = true;
+			for(Microcode logic : controlFlow) {
+				if (Opcode.INSTRUCTION_LOGIC[i]==logic) ENDS_BLOCK[i] = true;
+			}
+		}
+	}
+
+	private final IdentityHashMap<byte[], CodeArray> arrays = new IdentityHashMap<>();
+	private byte[] lastData = null;
+	private CodeArray lastArray = null;
+
+	/**
+	 * Finds the block starting at pc, decoding it if this is the first time we've been there.
+	 * @return the block, or null if pc isn't in plain memory and has to be interpreted from the bus
+	 */
+	public Block get(DirectRegion[] pages, int pc) {
+		if ((pc & ~0xFFFF)!=0) return null;
+		DirectRegion region = pages[pc >> 8];
+		if (region==null) return null;
+
+		CodeArray code = codeArray(region.data, true);
+		int offset = (pc - region.base) & region.mask;
+		Block block = code.blocks[offset];
+		if (block!=null && block.pcs[0]==pc) return block; //mirrors share an offset but not a pc
+
+		block = decode(region, pc);
+		if (block!=null) {
+			code.blocks[offset] = block;
+			code.pageHasCode[offset >> 8] = true;
+		}
+		return block;
+	}
+
+	/**
+	 * Throws away any blocks on the page containing this byte of data.
+	 * @return true if anything was thrown away
+	 */
+	public boolean invalidate(byte[] data, int offset) {
+		CodeArray code = codeArray(data, false);
+		if (code==null) return false;
+
+		int page = offset >> 8;
+		if (!code.pageHasCode[page]) return false;
+
+		Arrays.fill(code.blocks, page << 8, (page+1) << 8, null);
+		code.pageHasCode[page] = false;
+		return true;
+	}
+
+	public void clear() {
+		arrays.clear();
+		lastData = null;
+		lastArray = null;
+	}
+
+	private CodeArray codeArray(byte[] data, boolean create) {
+		if (data==lastData) return lastArray;
+
+		CodeArray result = arrays.get(data);
+		if (result==null) {
+			if (!create) return null;
+			result = new CodeArray(data.length);
+			arrays.put(data, result);
+		}
+		lastData = data;
+		lastArray = result;
+		return result;
+	}
+
+	private static Block decode(DirectRegion region, int pc) {
+		int[] pcs = new int[MAX_INSTRUCTIONS];
+		int[] opcodes = new int[MAX_INSTRUCTIONS];
+		int[] operands = new int[MAX_INSTRUCTIONS];
+
+		int count = 0;
+		int address = pc;
+		while(count<MAX_INSTRUCTIONS && (address >> 8)==(pc >> 8)) {
+			int opcode = region.read(address);
+			int size = Opcode.INSTRUCTION_SIZE[opcode];
+			if ((address & 0xFF) + size > 0x100) break; //operand spills onto the next page
+
+			int operand = -1;
+			if (size==2) {
+				operand = region.read(address+1);
+			} else if (size==3) {
+				operand = region.read(address+1) | (region.read(address+2) << 8);
+			}
+
+			pcs[count] = address;
+			opcodes[count] = opcode;
+			operands[count] = operand;
+			count++;
+			address += size;
+
+			if (ENDS_BLOCK[opcode]) break;
+		}
+
+		if (count==0) return null;
+		return new Block(region.data, Arrays.copyOf(pcs, count), Arrays.copyOf(opcodes, count), Arrays.copyOf(operands, count));
+	}
+
+	/**
+	 * A run of decoded instructions, with their addressing modes and microcode already looked up.
+	 */
+	public static final class Block {
+		/** The array this block was decoded from; if the page now shows a different array, the bank changed. */
+		public final byte[] data;
+		public final int length;
+		public final int[] pcs;
+		public final int[] opcodes;
+		/** Operand bytes, low byte first, or -1 for single-byte instructions (matching what Cpu latches) */
+		public final int[] operands;
+		public final MemoryMode[] modes;
+		public final Microcode[] logic;
+
+		private Block(byte[] data, int[] pcs, int[] opcodes, int[] operands) {
+			this.data = data;
+			this.length = pcs.length;
+			this.pcs = pcs;
+			this.opcodes = opcodes;
+			this.operands = operands;
+			this.modes = new MemoryMode[length];
+			this.logic = new Microcode[length];
+			for(int i=0; i<length; i++) {
+				modes[i] = Opcode.INSTRUCTION_MODE[opcodes[i]];
+				logic[i] = Opcode.INSTRUCTION_LOGIC[opcodes[i]];
+			}
+		}
+	}
+
+	private static final class CodeArray {
+		final Block[] blocks;
+		final boolean[] pageHasCode;
+
+		CodeArray(int length) {
+			blocks = new Block[length];
+			pageHasCode = new boolean[(length + 0xFF) >> 8];
+		}
+	}
+}
@@ -1,30 +1,76 @@
 package blue.endless.james.chip.mos6502;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
 
 import blue.endless.james.chip.mos6502.Opcode.Microcode;
-import blue.endless.james.host.Bus;
+import blue.endless.james.host.Bus16;
+import blue.endless.james.host.DirectRegion;
+import blue.endless.james.host.Snapshottable;
 import blue.endless.tinyevents.impl.ConsumerEvent;
 
-public class Cpu {
-	private LinkedList<String> instructionStream = new LinkedList<>();
+public class Cpu implements Snapshottable {
+	/** How many instructions getInstructionStream() can show; a power of two */
+	public static final int RECENT_INSTRUCTIONS = 128;
+	
+	/** Selects how instructions are dispatched once they've been fetched. Both produce identical results. */
+	public static enum Engine {
+		/** Looks up the addressing mode and microcode for each opcode in the Opcode tables */
+		TABLE,
+		/** Runs each opcode through one fused switch; see SwitchEngine */
+		SWITCH,
+		/** Decodes runs of instructions from plain memory once, and replays them from a BlockCache */
+		CACHED;
+	}
+	
 	private RegisterFile registers = new RegisterFile();
 	public long cycles = 0L;
 	private ArrayDeque<Object> stackMirror = new ArrayDeque<>();
 	private ArrayList<Breakpoint> breakpoints = new ArrayList<>();
-	private ConsumerEvent<String> onInstruction = ConsumerEvent.create();
+	private ConsumerEvent<TraceBuffer> onInstruction = ConsumerEvent.create();
+	private TraceBuffer trace = new TraceBuffer(TraceBuffer.DEFAULT_CAPACITY);
+	private boolean tracing = false;
+	/** Always kept, tracing or not: pc (16) | opcode (8) | operand (16) for each of the last few instructions */
+	private final long[] recentInstructions = new long[RECENT_INSTRUCTIONS];
+	private long recentWritten = 0L;
+	/** Logs interrupts as they're taken */
+	private boolean debug = false;
+	/** The bus directPages was last fetched from; instruction bytes are read straight out of its regions */
+	private Bus16 directBus = null;
+	private DirectRegion[] directPages = null;
+	private final Engine engine;
+	private final BlockCache blockCache;
+	private BlockCache.Block currentBlock = null;
+	private int blockIndex = 0;
 	
 	public Cpu() {
+		this(Engine.TABLE);
+	}
+	
+	public Cpu(Engine engine) {
+		this.engine = engine;
+		this.blockCache = (engine==Engine.CACHED) ? new BlockCache() : null;
+		
 		Breakpoint nmi = new Breakpoint();
 		nmi.addr = 0xF1EC;
 		breakpoints.add(nmi);
 	}
 	
 	
-	public int cycle(Bus bus) {
+	/**
+	 * Reads an instruction byte, skipping the bus dispatch when the address lies in a direct region.
+	 */
+	private int fetch(Bus16 bus, int address) {
+		if (directPages!=null && (address & ~0xFFFF)==0) {
+			DirectRegion region = directPages[address >> 8];
+			if (region!=null) return region.read(address);
+		}
+		return bus.read8(address);
+	}
+	
+	public int cycle(Bus16 bus) {
 		//Breakpoint
 		//if (registers.getPC()==0xFAA7) registers.addDebugLines(20);
 		//if (registers.getPC()>=0xFBF2 && registers.getPC()<0xFE59) registers.addDebugLines(1);
@@ -42,146 +88,163 @@ public class Cpu {
 			
 			System.out.println("Loading to RESET vector...");
 			
-			long resetVector = (bus.read(0xFFFC) & 0xFF);
-			resetVector|= bus.read(0xFFFD) << 8;
+			int resetVector = bus.read8(0xFFFC);
+			resetVector|= bus.read8(0xFFFD) << 8;
 			resetVector &= 0xFFFF;
 			registers.setPC(resetVector);
 			
 			//Uncomment this instead for automated nestest rom testing
 			/*
-			long resetVector = 0xC000;
+			int resetVector = 0xC000;
 			registers.setPC(resetVector);
 			registers.addDebugLines(100);
 			*/
-			System.out.println("Reset Vector: "+Integer.toHexString((int)resetVector));
+			System.out.println("Reset Vector: "+Integer.toHexString(resetVector));
 		}
 		registers.setInstructionAddress();
-		int opcode = bus.read(registers.getPC() & 0xFFFFL) & 0xFF;
-		
-		//INSTRUCTION STREAM TRACE
-		{
-			String trace = "";
-			trace += "A:";
-			trace += hexByte(registers.getA());
-			trace += " X:";
-			trace += hexByte(registers.getX());
-			trace += " Y:";
-			trace += hexByte(registers.getY());
-			trace += " S:";
-			trace += hexByte(registers.getS());
-			
-			trace += " P:";
-			trace += (registers.isSet(StatusFlag.NEGATIVE)) ? "N" : "n";
-			trace += (registers.isSet(StatusFlag.OVERFLOW)) ? "V" : "v";
-			boolean u = (registers.getP() & 0x20) != 0;
-			trace += (u) ? "U" : "u";
-			boolean b = (registers.getP() & 0x10) != 0;
-			trace += (b) ? "B" : "b";
-			trace += (registers.isSet(StatusFlag.DECIMAL)) ? "D" : "d";
-			trace += (registers.isSet(StatusFlag.INTERRUPT_DISABLE)) ? "I" : "i";
-			trace += (registers.isSet(StatusFlag.ZERO)) ? "Z" : "z";
-			trace += (registers.isSet(StatusFlag.CARRY)) ? "C" : "c";
-			
-			trace += "  $";
-			trace += hexShort(registers.getInstructionAddress());
-			trace += ":";
-			for(int i=0; i<3; i++) {
-				if (i<Opcode.INSTRUCTION_SIZE[opcode]) {
-					trace += " ";
-					trace += hexByte(bus.read((registers.getPC()+i) & 0xFFFF));
-				} else {
-					trace += "   ";
-				}
+		if (bus!=directBus) {
+			directBus = bus;
+			directPages = bus.getDirectPages();
+			if (blockCache!=null) {
+				blockCache.clear();
+				currentBlock = null;
 			}
-			trace += " ";
-			trace += Opcode.INSTRUCTION_NAME[opcode & 0xFF];
-			trace += Opcode.INSTRUCTION_TRACE[opcode & 0xFF].trace(bus, registers);
-			
-			onInstruction.fire(trace);
 		}
 		
+		BlockCache.Block block = null;
+		if (blockCache!=null && directPages!=null) block = nextBlock();
+		
+		int opcode;
+		int l;
+		if (block!=null) {
+			opcode = block.opcodes[blockIndex];
+			l = block.operands[blockIndex];
+		} else {
+			int pc = registers.getPC();
+			opcode = fetch(bus, pc & 0xFFFF);
+			int sz = Opcode.INSTRUCTION_SIZE[opcode]-1;
+			if (sz==0) {
+				l=-1;
+			} else if (sz==1) {
+				l = fetch(bus, pc+1);
+			} else {
+				l = fetch(bus, pc+1);
+				l |= fetch(bus, pc+2) << 8;
+			}
+		}
 		
 		if (registers.getRemainingDebugLines()>0) {
-			System.out.println(Integer.toHexString((int)registers.getPC())+": "+Integer.toHexString(opcode)+" "+Opcode.INSTRUCTION_NAME[opcode]+"    "+registers);//+"("+Integer.toHexString(opcode)+")");
+			System.out.println(Integer.toHexString(registers.getPC())+": "+Integer.toHexString(opcode)+" "+Opcode.INSTRUCTION_NAME[opcode]+"    "+registers);//+"("+Integer.toHexString(opcode)+")");
 			registers.decRemainingDebugLines();
 		}
 		
 		registers.incPC();
-		long l = 0L;
-		int sz = Opcode.INSTRUCTION_SIZE[opcode]-1;
-		if (sz==0) {
-			l=-1;
-		} else if (sz==1) {
-			l = bus.read(registers.getPC()) & 0xFF;
-		} else {
-			l = bus.read(registers.getPC()) & 0xFF;
-			l |= ( bus.read(registers.getPC()+1) & 0xFF ) << 8;
-		}
-		if (sz==0) {
-			instructionStream.add(Integer.toHexString((int) registers.getInstructionAddress() & 0xFFFF)+": "+Opcode.INSTRUCTION_NAME[opcode]);
-			//instructionStream[instructionStreamPtr] = Integer.toHexString((int) registers.getInstructionAddress() & 0xFFFF)+": "+Opcode.INSTRUCTION_NAME[opcode];
-		} else {
-			instructionStream.add(Integer.toHexString((int) registers.getInstructionAddress() & 0xFFFF)+": "+Opcode.INSTRUCTION_NAME[opcode]+" "+Integer.toHexString((int) l & 0xFFFF));
-			//instructionStream[instructionStreamPtr] = Integer.toHexString((int) registers.getInstructionAddress() & 0xFFFF)+": "+Opcode.INSTRUCTION_NAME[opcode]+" "+Integer.toHexString((int) l & 0xFFFF);
+		registers.setOperand(l);
+		
+		recentInstructions[(int) recentWritten++ & (RECENT_INSTRUCTIONS-1)] = (registers.getInstructionAddress() & 0xFFFFL) | (opcode << 16) | ((l & 0xFFFFL) << 24);
+		if (tracing) {
+			trace.record(registers.getInstructionAddress(), opcode, l, registers.getA(), registers.getX(), registers.getY(), registers.getS(), registers.getP(), this.cycles);
+			onInstruction.fire(trace);
 		}
-		if (instructionStream.size()>128) instructionStream.removeFirst();
-		//instructionStreamPtr = (instructionStreamPtr + 1) % instructionStream.length;
-		
-		MemoryMode mode = Opcode.INSTRUCTION_MODE[opcode];
-		Opcode.Microcode logic = Opcode.INSTRUCTION_LOGIC[opcode];
-		int cycles = mode.prepareFetch(bus, registers);
-		if (logic!=null) {
-			cycles += logic.execute(bus, registers);
+		
+		int cycles;
+		if (block!=null) {
+			cycles = block.modes[blockIndex].prepareFetch(bus, registers);
+			Opcode.Microcode logic = block.logic[blockIndex];
+			if (logic!=null) cycles += logic.execute(bus, registers);
+			blockIndex++;
+		} else if (engine==Engine.SWITCH) {
+			cycles = SwitchEngine.execute(opcode, bus, registers);
 		} else {
-			//System.out.println("Unimplemented opcode "+Opcode.INSTRUCTION_NAME[opcode]+"("+Integer.toHexString(opcode)+") at "+registers.getInstructionAddress());
+			MemoryMode mode = Opcode.INSTRUCTION_MODE[opcode];
+			Opcode.Microcode logic = Opcode.INSTRUCTION_LOGIC[opcode];
+			cycles = mode.prepareFetch(bus, registers);
+			if (logic!=null) {
+				cycles += logic.execute(bus, registers);
+			} else {
+				//System.out.println("Unimplemented opcode "+Opcode.INSTRUCTION_NAME[opcode]+"("+Integer.toHexString(opcode)+") at "+registers.getInstructionAddress());
+			}
 		}
 		
+		this.cycles += cycles;
 		return cycles;
 	}
 	
-	public static void push(Bus bus, RegisterFile regs, int val) {
-		//long pushAddr = (regs.getS() & 0xFFL) | 0x0100L;
-		bus.write(regs.getS()+0x0100L, val);
+	/**
+	 * Picks the cached block to run the instruction at pc from: either the next instruction of the
+	 * block we're already in, or the block starting at pc. Leaves blockIndex pointing at the instruction.
+	 */
+	private BlockCache.Block nextBlock() {
+		int pc = registers.getPC();
+		if (currentBlock!=null && blockIndex<currentBlock.length && currentBlock.pcs[blockIndex]==pc) {
+			//Make sure the page wasn't banked out from under us
+			DirectRegion region = directPages[pc >> 8];
+			if (region!=null && region.data==currentBlock.data) return currentBlock;
+		}
+		
+		currentBlock = blockCache.get(directPages, pc);
+		blockIndex = 0;
+		return currentBlock;
+	}
+	
+	/**
+	 * Tells the cpu that a byte of its memory was just written, so that any decoded instructions
+	 * covering it can be thrown away. Buses should call this for writes to memory that code can run
+	 * from, such as RAM; it's a no-op unless the CACHED engine is in use.
+	 */
+	public void invalidateCode(int address) {
+		if (blockCache==null || directPages==null || (address & ~0xFFFF)!=0) return;
+		DirectRegion region = directPages[address >> 8];
+		if (region==null) return;
+		
+		if (blockCache.invalidate(region.data, (address - region.base) & region.mask)) {
+			currentBlock = null;
+		}
+	}
+	
+	public static void push(Bus16 bus, RegisterFile regs, int val) {
+		//int pushAddr = (regs.getS() & 0xFF) | 0x0100;
+		bus.write8(regs.getS()+0x0100, val);
 		regs.offsetStackPointer(-1);
 		
 		//stackMirror.push(Byte.valueOf((byte)val));
 	}
 	
-	public static void pushAddress(Bus bus, RegisterFile regs, long addr) {
+	public static void pushAddress(Bus16 bus, RegisterFile regs, int addr) {
 		addr = addr & 0xFFFF;
 		
-		int low  = (int) (addr & 0xFFL);
-		int high = (int)((addr >>> 8) & 0xFFL);
+		int low  = addr & 0xFF;
+		int high = (addr >>> 8) & 0xFF;
 		
-		bus.write(regs.getS()+0x0100L, low);
+		bus.write8(regs.getS()+0x0100, low);
 		regs.offsetStackPointer(-1);
-		bus.write(regs.getS()+0x0100L, high);
+		bus.write8(regs.getS()+0x0100, high);
 		regs.offsetStackPointer(-1);
 		
 		//stackMirror.push(Long.valueOf(addr));
 	}
 	
-	public static int pop(Bus bus, RegisterFile regs) {
+	public static int pop(Bus16 bus, RegisterFile regs) {
 		//Object o = stackMirror.pop();
 		
 		regs.offsetStackPointer(1);
-		//long popAddr = (regs.getS() & 0xFFL) | 0x0100L;
-		int result = bus.read(regs.getS() + 0x0100L) & 0xFF;
+		//int popAddr = (regs.getS() & 0xFF) | 0x0100;
+		int result = bus.read8(regs.getS() + 0x0100);
 		
 		return result;
 	}
 	
-	public static long popAddress(Bus bus, RegisterFile regs) {
+	public static int popAddress(Bus16 bus, RegisterFile regs) {
 		//Object o = stackMirror.pop();
 		
 		regs.offsetStackPointer(1);
-		//long popAddr = (regs.getS() & 0xFFL) | 0x0100L;
-		long high = bus.read(regs.getS() + 0x0100L) & 0xFF;
+		//int popAddr = (regs.getS() & 0xFF) | 0x0100;
+		int high = bus.read8(regs.getS() + 0x0100);
 		regs.offsetStackPointer(1);
-		long low  = bus.read(regs.getS() + 0x0100L) & 0xFF;
+		int low  = bus.read8(regs.getS() + 0x0100);
 		
 		
-		long addr = (high << 8) | low;
+		int addr = (high << 8) | low;
 		
 		//return ((Long)o).longValue();
 		return addr;
@@ -221,12 +284,28 @@ public class Cpu {
 	}
 	
 	
+	@Override
+	public void saveState(ByteBuffer out) {
+		registers.saveState(out);
+		out.putLong(cycles);
+	}
+	
+	/** Memory will have changed underneath us, so any decoded blocks are thrown away too */
+	@Override
+	public void loadState(ByteBuffer in) {
+		registers.loadState(in);
+		cycles = in.getLong();
+		if (blockCache!=null) blockCache.clear();
+		currentBlock = null;
+		blockIndex = 0;
+	}
+	
 	public boolean isHung() {
 		return registers.isSet(StatusFlag.STOPPED);
 	}
 	
-	public void triggerBRK(Bus bus, Cpu cpu) {
-		long returnAddress = registers.getPC();
+	public void triggerBRK(Bus16 bus, Cpu cpu) {
+		int returnAddress = registers.getPC();
 		
 		pushAddress(bus, registers, returnAddress);
 		
@@ -235,46 +314,88 @@ public class Cpu {
 		int statusValue = registers.getP();
 		push(bus, registers, statusValue);
 		
-		long interruptVector = bus.read(0xFFFE) & 0xFF;
-		interruptVector |= (bus.read(0xFFFF)&0xFF) << 8;
+		int interruptVector = bus.read8(0xFFFE);
+		interruptVector |= (bus.read8(0xFFFF)) << 8;
 		
 		registers.setPC(interruptVector);
 	}
 	
-	public void triggerNMI(Bus bus) {
+	public void triggerNMI(Bus16 bus) {
 		
 		int statusValue = registers.getP();
-		long returnAddress = registers.getPC();
+		int returnAddress = registers.getPC();
 		
 		pushAddress(bus, registers, returnAddress);
 		push(bus, registers, statusValue);
 		
-		long interruptVector = bus.read(0xFFFA) & 0xFF;
-		interruptVector |= (bus.read(0xFFFB)&0xFF) << 8;
+		int interruptVector = bus.read8(0xFFFA);
+		interruptVector |= (bus.read8(0xFFFB)) << 8;
 		
 		
-		System.out.println("NMI Fired: Jumping to code at "+Integer.toHexString((int) interruptVector));
+		if (debug) System.out.println("NMI Fired: Jumping to code at "+Integer.toHexString(interruptVector));
 		
 		registers.setPC(interruptVector);
 	}
 	
+	public Engine getEngine() {
+		return engine;
+	}
+	
 	public RegisterFile getRegisters() {
 		return registers;
 	}
 	
 	/**
-	 * Unpack the instruction-stream ring buffer and return an in-order List
-	 * @return a List of the last N instructions (currently 256)
+	 * Unpack the instruction-stream ring buffer and return an in-order List. This is kept whether
+	 * or not tracing is enabled; for registers and cycle counts, turn tracing on and use getTrace().
+	 * @return a List of the last N instructions (currently 128)
 	 */
 	public List<String> getInstructionStream() {
-		return new ArrayList<String>(instructionStream);
+		int size = (int) Math.min(recentWritten, RECENT_INSTRUCTIONS);
+		ArrayList<String> result = new ArrayList<>(size);
+		for(long i=recentWritten-size; i<recentWritten; i++) {
+			long record = recentInstructions[(int) i & (RECENT_INSTRUCTIONS-1)];
+			int address = (int) (record & 0xFFFF);
+			int opcode = (int) (record >>> 16) & 0xFF;
+			int operand = (int) (record >>> 24) & 0xFFFF;
+			if (Opcode.INSTRUCTION_SIZE[opcode]==1) {
+				result.add(Integer.toHexString(address)+": "+Opcode.INSTRUCTION_NAME[opcode]);
+			} else {
+				result.add(Integer.toHexString(address)+": "+Opcode.INSTRUCTION_NAME[opcode]+" "+Integer.toHexString(operand));
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Turns instruction tracing on or off. While it's on, every instruction is recorded into the
+	 * trace buffer and onInstruction fires after each one.
+	 */
+	public void setTracing(boolean tracing) {
+		this.tracing = tracing;
+	}
+	
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
+	
+	public boolean isTracing() {
+		return tracing;
+	}
+	
+	public TraceBuffer getTrace() {
+		return trace;
 	}
 	
 	public static class Breakpoint {
 		public long addr;
 	}
 	
-	public ConsumerEvent<String> onInstruction() {
+	/**
+	 * Fires after each traced instruction with the trace buffer, whose newest record is the
+	 * instruction which just ran. Only fires while tracing is enabled.
+	 */
+	public ConsumerEvent<TraceBuffer> onInstruction() {
 		return onInstruction;
 	}
 	
@@ -287,8 +408,8 @@ public class Cpu {
 		}
 	}
 	
-	public static String hexShort(long i) {
-		String result = Integer.toHexString((int) (i & 0xFFFFL)).toUpperCase();
+	public static String hexShort(int i) {
+		String result = Integer.toHexString(i & 0xFFFF).toUpperCase();
 		while (result.length()<4) result = "0"+result;
 		return result;
 	}
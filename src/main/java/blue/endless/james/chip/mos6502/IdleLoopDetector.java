@@ -0,0 +1,83 @@
+package blue.endless.james.chip.mos6502;
+
+import java.util.function.IntPredicate;
+
+import blue.endless.james.chip.mos6502.Opcode.Microcode;
+import blue.endless.james.host.DirectRegion;
+
+/**
+ * Recognizes idle loops: short loops which jump backwards over code that does nothing but read
+ * memory and test what it read, like {@code LDA $2002; BPL loop}. Every instruction allowed in one
+ * either overwrites what it sets or can be repeated without changing anything, so each trip around
+ * leaves the cpu in exactly the same state as the last one until something it reads changes. A core
+ * which knows when that will be can skip the trips in between.
+ */
+public class IdleLoopDetector {
+	/** Longest loop, in bytes including the branch back, that's worth looking at */
+	public static final int MAX_LOOP_BYTES = 16;
+
+	private static final boolean[] IDLE_SAFE = new boolean[256];
+	private static final boolean[] LOOPS_BACK = new boolean[256];
+	static {
+		Microcode[] readsAndTests = {
+				Opcode.LDA, Opcode.LDX, Opcode.LDY, Opcode.BIT, Opcode.CMP, Opcode.CPX, Opcode.CPY, Opcode.AND, Opcode.ORA
+		};
+		for(int i=0; i<256; i++) {
+			Microcode logic = Opcode.INSTRUCTION_LOGIC[i];
+			MemoryMode mode = Opcode.INSTRUCTION_MODE[i];
+
+			if (logic==Opcode.NOP && mode==MemoryMode.IMPLIED) IDLE_SAFE[i] = true;
+			if (mode==MemoryMode.IMMEDIATE || mode==MemoryMode.ZEROPAGE || mode==MemoryMode.ABSOLUTE) {
+				for(Microcode safe : readsAndTests) {
+					if (logic==safe) IDLE_SAFE[i] = true;
+				}
+			}
+
+			if (mode==MemoryMode.RELATIVE) LOOPS_BACK[i] = true;
+			if (logic==Opcode.JMP && mode==MemoryMode.ABSOLUTE) LOOPS_BACK[i] = true;
+		}
+	}
+
+	/**
+	 * Decides whether the code from loopStart up to and including the branch or jump at loopEnd is
+	 * an idle loop. Only code in DirectRegions is looked at, since reading it has no side effects.
+	 * @param quietReads says which addresses the loop is allowed to read from: ones which can't
+	 *        change (or change what reading them does) until the core's next event
+	 * @return the number of instructions in one trip around the loop, or -1 if it isn't idle
+	 */
+	public int analyze(DirectRegion[] pages, int loopStart, int loopEnd, IntPredicate quietReads) {
+		if (pages==null || loopStart>loopEnd || loopEnd-loopStart>=MAX_LOOP_BYTES) return -1;
+
+		int address = loopStart;
+		int instructions = 0;
+		while(address<loopEnd) {
+			int opcode = read(pages, address);
+			if (opcode<0 || !IDLE_SAFE[opcode]) return -1;
+
+			MemoryMode mode = Opcode.INSTRUCTION_MODE[opcode];
+			if (mode==MemoryMode.ZEROPAGE) {
+				int operand = read(pages, address+1);
+				if (operand<0 || !quietReads.test(operand)) return -1;
+			} else if (mode==MemoryMode.ABSOLUTE) {
+				int low = read(pages, address+1);
+				int high = read(pages, address+2);
+				if (low<0 || high<0 || !quietReads.test((high << 8) | low)) return -1;
+			}
+
+			address += Opcode.INSTRUCTION_SIZE[opcode];
+			instructions++;
+		}
+		if (address!=loopEnd) return -1; //Loop body doesn't line up with the branch
+
+		int opcode = read(pages, loopEnd);
+		if (opcode<0 || !LOOPS_BACK[opcode]) return -1;
+		return instructions + 1;
+	}
+
+	private static int read(DirectRegion[] pages, int address) {
+		if ((address & ~0xFFFF)!=0) return -1;
+		DirectRegion region = pages[address >> 8];
+		if (region==null) return -1;
+		return region.read(address);
+	}
+}
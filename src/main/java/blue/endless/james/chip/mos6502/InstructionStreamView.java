@@ -38,14 +38,19 @@ public class InstructionStreamView extends JFrame implements DebugView<NesCore>
 			e.printStackTrace();
 		}
 		core.onInstruction().register(this::handleLine, this);
+		core.setTracing(true);
 	}
 
 	@Override
 	public void detatch() {
-		if (core!=null) core.onInstruction().unregister(this);
+		if (core!=null) {
+			core.setTracing(false);
+			core.onInstruction().unregister(this);
+		}
 	}
 	
-	private void handleLine(String line) {
+	private void handleLine(TraceBuffer trace) {
+		String line = trace.format(trace.size()-1);
 		String previousText = text.getText();
 		try {
 			streamWriter.write(line+"\n");
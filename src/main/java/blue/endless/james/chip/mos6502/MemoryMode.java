@@ -1,16 +1,17 @@
 package blue.endless.james.chip.mos6502;
 
 import blue.endless.james.core.felines.NesCore;
-import blue.endless.james.host.Bus;
+import blue.endless.james.host.Bus16;
 
 public interface MemoryMode {
 	/**
-	 * Loads an internal prefetch register with an address.
+	 * Loads an internal prefetch register with an address. Operand bytes come from the register
+	 * file, where the Cpu latched them along with the opcode.
 	 * @param bus The bus the mapper is on
 	 * @param regs The register file the Cpu is using
 	 * @return the number of cycles added by this addressing mode
 	 */
-	public int prepareFetch(Bus bus, RegisterFile regs);
+	public int prepareFetch(Bus16 bus, RegisterFile regs);
 	
 	
 	public static final MemoryMode IMPLIED = (bus, regs)->{
@@ -29,7 +30,7 @@ public interface MemoryMode {
 	
 	public static final MemoryMode ZEROPAGE = (bus, regs)->{
 		//read 1 byte after inst: 1
-		long zpAddress = bus.read(regs.getPC()) & 0xFF;
+		int zpAddress = regs.getOperandLow();
 		regs.incPC(); 
 		
 		regs.setFetchLocation(zpAddress);
@@ -39,7 +40,7 @@ public interface MemoryMode {
 	
 	public static final MemoryMode ZEROPAGE_X = (bus, regs)->{
 		//read 1 byte after inst: 1
-		long zpAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
+		int zpAddress = regs.getOperandLow(); regs.incPC();
 		
 		//add & wrap: 1
 		zpAddress += regs.getX();
@@ -52,7 +53,7 @@ public interface MemoryMode {
 	//LDX and STX only
 	public static final MemoryMode ZEROPAGE_Y = (bus, regs)->{
 		//read zp address from instn: 1
-		long zpAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
+		int zpAddress = regs.getOperandLow(); regs.incPC();
 		
 		//add y: 1
 		zpAddress += regs.getY();
@@ -65,9 +66,9 @@ public interface MemoryMode {
 	
 	public static MemoryMode ABSOLUTE = (bus, regs)->{
 		//read absolute address from instn: 2
-		long lowAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		long highAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		long absAddress = (highAddress << 8) | lowAddress;
+		int lowAddress = regs.getOperandLow(); regs.incPC();
+		int highAddress = regs.getOperandHigh(); regs.incPC();
+		int absAddress = (highAddress << 8) | lowAddress;
 		
 		regs.setFetchLocation(absAddress);
 		
@@ -78,9 +79,9 @@ public interface MemoryMode {
 		int extraCycle = 0;
 		
 		//read absolute address from instn: 2
-		long lowAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		long highAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		long absAddress = (highAddress << 8) | lowAddress;
+		int lowAddress = regs.getOperandLow(); regs.incPC();
+		int highAddress = regs.getOperandHigh(); regs.incPC();
+		int absAddress = (highAddress << 8) | lowAddress;
 		
 		//modify operand by adding y: 1
 		absAddress += regs.getY();
@@ -95,9 +96,9 @@ public interface MemoryMode {
 		int extraCycle = 0;
 		
 		//read absolute address from instn: 2
-		long lowAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		long highAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		long absAddress = (highAddress << 8) | lowAddress;
+		int lowAddress = regs.getOperandLow(); regs.incPC();
+		int highAddress = regs.getOperandHigh(); regs.incPC();
+		int absAddress = (highAddress << 8) | lowAddress;
 		
 		//modify operand by adding y: 1
 		absAddress += regs.getX();
@@ -110,9 +111,9 @@ public interface MemoryMode {
 	
 	//JMP only
 	public static final MemoryMode INDIRECT = (bus, regs)->{
-		int lowAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		int highAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
-		long absAddress = (highAddress << 8) | lowAddress;
+		int lowAddress = regs.getOperandLow(); regs.incPC();
+		int highAddress = regs.getOperandHigh(); regs.incPC();
+		int absAddress = (highAddress << 8) | lowAddress;
 		
 		if (lowAddress==0xFF) {
 			/**
@@ -123,14 +124,14 @@ public interface MemoryMode {
 			 * is read from the very start of the page instead. You should probably not count on
 			 * this behavior.
 			 */
-			int indLow = bus.read(absAddress) & 0xFF;
-			int indHigh = bus.read(absAddress & 0xFF00) & 0xFF;
+			int indLow = bus.read8(absAddress);
+			int indHigh = bus.read8(absAddress & 0xFF00);
 			int indAddress = (indHigh << 8) | indLow;
 			
 			regs.setFetchLocation(indAddress);
 		} else {
-			int indLow = bus.read(absAddress) & 0xFF;
-			int indHigh = bus.read(absAddress+1) & 0xFF;
+			int indLow = bus.read8(absAddress);
+			int indHigh = bus.read8(absAddress+1);
 			int indAddress = (indHigh << 8) | indLow;
 		
 			regs.setFetchLocation(indAddress);
@@ -141,14 +142,14 @@ public interface MemoryMode {
 	
 	public static final MemoryMode INDIRECT_X = (bus, regs)->{
 		//read zp address from instn: 1
-		long zpAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
+		int zpAddress = regs.getOperandLow(); regs.incPC();
 		
 		//add x and wrap: 1
 		zpAddress += regs.getX();
 		
 		//dereference: 2
-		int indLow = bus.read(zpAddress) & 0xFF;
-		int indHigh = bus.read((zpAddress+1) & 0xFF) & 0xFF; //I have no evidence that this zeropage-wrap exists here, but I bet it does.
+		int indLow = bus.read8(zpAddress);
+		int indHigh = bus.read8((zpAddress+1) & 0xFF); //I have no evidence that this zeropage-wrap exists here, but I bet it does.
 		int indAddress = (indHigh << 8) | indLow;
 		
 		regs.setFetchLocation(indAddress);
@@ -157,15 +158,15 @@ public interface MemoryMode {
 	};
 	
 	public static final MemoryMode INDIRECT_Y = (bus, regs)->{
-		long zpAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
+		int zpAddress = regs.getOperandLow(); regs.incPC();
 		
 		//Dereference the zero-page addr from the instruction
-		int indLow = bus.read(zpAddress) & 0xFF;
-		int indHigh = bus.read((zpAddress+1) & 0xFF) & 0xFF; //I have no evidence that this zeropage-wrap exists here, but I bet it does.
+		int indLow = bus.read8(zpAddress);
+		int indHigh = bus.read8((zpAddress+1) & 0xFF); //I have no evidence that this zeropage-wrap exists here, but I bet it does.
 		int indAddress = (indHigh << 8) | indLow;
 		
 		
-		long absAddress = (indAddress + regs.getY()) & 0xFFFF;
+		int absAddress = (indAddress + regs.getY()) & 0xFFFF;
 		
 		//add and wrap
 		int extraCycle = (absAddress>>8 != indAddress>>8) ? 1 : 0; //we crossed a page boundary and need to fixup the high addr byte
@@ -176,10 +177,10 @@ public interface MemoryMode {
 	};
 	
 	public static final MemoryMode RELATIVE = (bus, regs)->{
-		long relativeAddress = bus.read(regs.getPC()) & 0xFF; regs.incPC();
+		int relativeAddress = regs.getOperandLow(); regs.incPC();
 		
-		if ((relativeAddress & 0x80)!=0) relativeAddress |= ~0xFFL; //sign-extend from one byte to the full data type
-		long branchTarget = regs.getPC() + relativeAddress;
+		if ((relativeAddress & 0x80)!=0) relativeAddress |= ~0xFF; //sign-extend from one byte to the full data type
+		int branchTarget = regs.getPC() + relativeAddress;
 		branchTarget &= 0xFFFF;
 		
 		regs.setFetchLocation(branchTarget);
@@ -3,7 +3,7 @@ package blue.endless.james.chip.mos6502;
 import java.util.List;
 
 import blue.endless.james.core.felines.NesCore;
-import blue.endless.james.host.Bus;
+import blue.endless.james.host.Bus16;
 
 public class Opcode {
 	final String name;
@@ -21,7 +21,7 @@ public class Opcode {
 	public static final Microcode NOP = (bus, regs) -> 1;
 	
 	public static final Microcode BRK = (bus, regs) -> {
-		long returnAddress = regs.getPC();
+		int returnAddress = regs.getPC();
 		
 		Cpu.pushAddress(bus, regs, returnAddress);
 		
@@ -30,8 +30,8 @@ public class Opcode {
 		int statusValue = regs.getP();
 		Cpu.push(bus, regs, statusValue);
 		
-		long interruptVector = bus.read(0xFFFE) & 0xFF;
-		interruptVector |= (bus.read(0xFFFF)&0xFF) << 8;
+		int interruptVector = bus.read8(0xFFFE);
+		interruptVector |= (bus.read8(0xFFFF)) << 8;
 		
 		regs.setPC(interruptVector);
 		
@@ -47,7 +47,7 @@ public class Opcode {
 	
 	public static final Microcode KIL = (bus, regs) -> {
 		regs.hang();
-		System.out.println("KIL instruction stopped CPU execution at "+Integer.toHexString((int) regs.getInstructionAddress()));
+		System.out.println("KIL instruction stopped CPU execution at "+Integer.toHexString(regs.getInstructionAddress()));
 		//List<String> stream = bus.cpu.getInstructionStream();
 		//System.out.println("Instruction stream leading up to the Incident ("+stream.size()+" entries)");
 		//for(String s : stream) {
@@ -64,33 +64,33 @@ public class Opcode {
 	 * *----------------------* */
 	
 	public static final Microcode LDA = (bus, regs) -> {
-		regs.setA(bus.read(regs.getFetchLocation()));
+		regs.setA(bus.read8(regs.getFetchLocation()));
 		return 1;
 	};
 	
 	public static final Microcode LDY = (bus, regs) -> {
-		regs.setY(bus.read(regs.getFetchLocation()));
+		regs.setY(bus.read8(regs.getFetchLocation()));
 		return 1;
 	};
 	
 	public static final Microcode LDX = (bus, regs) -> {
-		regs.setX(bus.read(regs.getFetchLocation()));
+		regs.setX(bus.read8(regs.getFetchLocation()));
 		return 1;
 	};
 	
 	public static final Microcode STA = (bus, regs) -> {
-		bus.write(regs.getFetchLocation(), regs.getA());
+		bus.write8(regs.getFetchLocation(), regs.getA());
 		return 1;
 	};
 	
 	public static final Microcode STY = (bus, regs) -> {
-		bus.write(regs.getFetchLocation(), regs.getY());
+		bus.write8(regs.getFetchLocation(), regs.getY());
 		
 		return 1;
 	};
 	
 	public static final Microcode STX = (bus, regs) -> {
-		bus.write(regs.getFetchLocation(), regs.getX());
+		bus.write8(regs.getFetchLocation(), regs.getX());
 		
 		return 1;
 	};
@@ -195,7 +195,7 @@ public class Opcode {
 	 * *--------------------* */
 	
 	public static final Microcode BIT = (bus, regs) -> {
-		int work = bus.read(regs.getFetchLocation()) & 0xFF;
+		int work = bus.read8(regs.getFetchLocation());
 		int val = work & regs.getA();
 		regs.set(StatusFlag.ZERO, val==0);
 		regs.set(StatusFlag.OVERFLOW, (val & 0x40) != 0);
@@ -205,17 +205,17 @@ public class Opcode {
 	};
 	
 	public static final Microcode AND = (bus, regs) -> {
-		regs.setA(regs.getA() & bus.read(regs.getFetchLocation()));
+		regs.setA(regs.getA() & bus.read8(regs.getFetchLocation()));
 		return 1;
 	};
 	
 	public static final Microcode ORA = (bus, regs) -> {
-		regs.setA(regs.getA() | bus.read(regs.getFetchLocation()));
+		regs.setA(regs.getA() | bus.read8(regs.getFetchLocation()));
 		return 1;
 	};
 	
 	public static final Microcode EOR = (bus, regs) -> {
-		regs.setA(regs.getA() ^ bus.read(regs.getFetchLocation()));
+		regs.setA(regs.getA() ^ bus.read8(regs.getFetchLocation()));
 		return 1;
 	};
 	
@@ -236,10 +236,10 @@ public class Opcode {
 	 * The value is then stored back at the original location.
 	 */
 	public static final Microcode ASL = (bus, regs) -> {
-		int work = bus.read(regs.getFetchLocation()) & 0xFF;
+		int work = bus.read8(regs.getFetchLocation());
 		regs.set(StatusFlag.CARRY, (work & 0x80)!=0); //Move the top bit into carry
 		work = regs.affectZN((work << 1) & 0xFF); //perform the shift, and trip ZN if appropriate
-		bus.write(regs.getFetchLocation(), work); //store back at the original location
+		bus.write8(regs.getFetchLocation(), work); //store back at the original location
 		
 		//ASL_ZP is base instruction decode of 1, plus 1 zeropage address fetch, plus the 3-cycle read-modify-write from the logic in this method.
 		return 3;
@@ -255,10 +255,10 @@ public class Opcode {
 	};
 	
 	public static final Microcode LSR = (bus, regs) -> {
-		int work = bus.read(regs.getFetchLocation()) & 0xFF;
+		int work = bus.read8(regs.getFetchLocation());
 		regs.set(StatusFlag.CARRY, (work & 1) != 0);
 		work = regs.affectZN((work >>> 1) & 0x7F);
-		bus.write(regs.getFetchLocation(), work);
+		bus.write8(regs.getFetchLocation(), work);
 		
 		return 3;
 	};
@@ -282,14 +282,14 @@ public class Opcode {
 	 * The value is then stored back at the original location.
 	 */
 	public static final Microcode ROR = (bus, regs) -> {
-		int work = bus.read(regs.getFetchLocation()) & 0xFF;
+		int work = bus.read8(regs.getFetchLocation());
 		boolean oldCarry = regs.isSet(StatusFlag.CARRY); //save out carry bit
 		
 		regs.set(StatusFlag.CARRY, (work & 1) != 0); //stash the low bit in Carry
 		work = (work >> 1) & 0xFF; //perform the shift
 		if (oldCarry) work |= 0x80; //shift the carry back into the top bit
 		regs.affectZN(work); //trip flags if needed
-		bus.write(regs.getFetchLocation(), work);
+		bus.write8(regs.getFetchLocation(), work);
 		
 		return 3;
 	};
@@ -307,14 +307,14 @@ public class Opcode {
 	};
 	
 	public static final Microcode ROL = (bus, regs) -> {
-		int work = bus.read(regs.getFetchLocation()) & 0xFF;
+		int work = bus.read8(regs.getFetchLocation());
 		boolean oldCarry = regs.isSet(StatusFlag.CARRY); //save out carry bit
 		
 		regs.set(StatusFlag.CARRY, (work & 0x80) != 0); //stash the low bit in Carry
 		work = (work << 1) & 0xFF; //perform the shift
 		if (oldCarry) work |= 1; //shift the carry back into the bottom bit
 		regs.affectZN(work); //trip flags if needed
-		bus.write(regs.getFetchLocation(), work);
+		bus.write8(regs.getFetchLocation(), work);
 		
 		return 3;
 	};
@@ -325,18 +325,18 @@ public class Opcode {
 	
 	
 	public static final Microcode INC = (bus, regs) -> {
-		int work = bus.read(regs.getFetchLocation()) & 0xFF;
+		int work = bus.read8(regs.getFetchLocation());
 		work = regs.affectZN(work+1); //Note that C is never set!
-		bus.write(regs.getFetchLocation(), work);
+		bus.write8(regs.getFetchLocation(), work);
 		
 		return 3; //INC_ZP == fetch 1 + zp access 1 + this logic's rmw 3 == 5 cycles
 	};
 	
 	public static final Microcode DEC = (bus, regs) -> {
-		int val = bus.read(regs.getFetchLocation());
+		int val = bus.read8(regs.getFetchLocation());
 		val = (val - 1) & 0xFF;
 		regs.affectZN(val);
-		bus.write(regs.getFetchLocation(), val);
+		bus.write8(regs.getFetchLocation(), val);
 		
 		return 3;
 	};
@@ -362,7 +362,7 @@ public class Opcode {
 	};
 	
 	public static final Microcode ADC = (bus, regs) -> {
-		int val = bus.read(regs.getFetchLocation()) & 0xFF;
+		int val = bus.read8(regs.getFetchLocation());
 		int carry = (regs.isSet(StatusFlag.CARRY)) ? 1 : 0;
 		int result = val + carry + (regs.getA() & 0xFF);
 		
@@ -388,7 +388,7 @@ public class Opcode {
 	};
 	
 	public static final Microcode SBC = (bus, regs) -> {
-		int val = bus.read(regs.getFetchLocation()) & 0xFF;
+		int val = bus.read8(regs.getFetchLocation());
 		val = val ^ 0xFF; //inverts just the bottom 8 bits - we're skipping the +1 because we get it for free from the carry-in
 		
 		int carry = (regs.isSet(StatusFlag.CARRY)) ? 1 : 0;
@@ -425,7 +425,7 @@ public class Opcode {
 	};
 	
 	public static final Microcode CMP = (bus, regs) -> {
-		int memoryValue = bus.read(regs.getFetchLocation()) & 0xFF;
+		int memoryValue = bus.read8(regs.getFetchLocation());
 		int accValue = regs.getA() & 0xFF;
 		regs.affectCZN(accValue - memoryValue);
 		
@@ -433,7 +433,7 @@ public class Opcode {
 	};
 	
 	public static final Microcode CPX = (bus, regs) -> {
-		int memoryValue = bus.read(regs.getFetchLocation()) & 0xFF;
+		int memoryValue = bus.read8(regs.getFetchLocation());
 		int accValue = regs.getX() & 0xFF;
 		regs.affectCZN(accValue - memoryValue);
 		
@@ -441,7 +441,7 @@ public class Opcode {
 	};
 	
 	public static final Microcode CPY = (bus, regs) -> {
-		int memoryValue = bus.read(regs.getFetchLocation()) & 0xFF;
+		int memoryValue = bus.read8(regs.getFetchLocation());
 		int accValue = regs.getY() & 0xFF;
 		regs.affectCZN(accValue - memoryValue);
 		
@@ -454,8 +454,8 @@ public class Opcode {
 	
 	public static final Microcode BPL = (bus, regs) -> {
 		if (!regs.isSet(StatusFlag.NEGATIVE)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -470,8 +470,8 @@ public class Opcode {
 	
 	public static final Microcode BMI = (bus, regs) -> {
 		if (regs.isSet(StatusFlag.NEGATIVE)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -486,8 +486,8 @@ public class Opcode {
 	
 	public static final Microcode BVS = (bus, regs) -> {
 		if (regs.isSet(StatusFlag.OVERFLOW)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -502,8 +502,8 @@ public class Opcode {
 	
 	public static final Microcode BVC = (bus, regs) -> {
 		if (!regs.isSet(StatusFlag.OVERFLOW)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -518,8 +518,8 @@ public class Opcode {
 	
 	public static final Microcode BCC = (bus, regs) -> {
 		if (!regs.isSet(StatusFlag.CARRY)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -534,8 +534,8 @@ public class Opcode {
 	
 	public static final Microcode BCS = (bus, regs) -> {
 		if (regs.isSet(StatusFlag.CARRY)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -550,8 +550,8 @@ public class Opcode {
 	
 	public static final Microcode BNE = (bus, regs) -> {
 		if (!regs.isSet(StatusFlag.ZERO)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -566,8 +566,8 @@ public class Opcode {
 	
 	public static final Microcode BEQ = (bus, regs) -> {
 		if (regs.isSet(StatusFlag.ZERO)) {
-			long branchTarget = regs.getFetchLocation() & 0xFFFF;
-			long pc = regs.getPC() & 0xFFFF;
+			int branchTarget = regs.getFetchLocation() & 0xFFFF;
+			int pc = regs.getPC() & 0xFFFF;
 			
 			regs.setPC(branchTarget);
 			
@@ -599,7 +599,7 @@ public class Opcode {
 	};
 	
 	public static final Microcode RTS = (bus, regs) -> {
-		long addr = Cpu.popAddress(bus, regs);
+		int addr = Cpu.popAddress(bus, regs);
 		//int addr = bus.cpu.pop(bus, regs) << 8;
 		//addr |= bus.cpu.pop(bus, regs);
 		//regs.pushCallStack("RET", regs.getInstructionAddress(), addr);
@@ -614,8 +614,8 @@ public class Opcode {
 		int p = Cpu.pop(bus, regs);
 		regs.setP(StatusFlag.B.clear(p));
 		
-		long addr = Cpu.popAddress(bus, regs);
-		//long addr = bus.cpu.pop(bus, regs) << 8;
+		int addr = Cpu.popAddress(bus, regs);
+		//int addr = bus.cpu.pop(bus, regs) << 8;
 		//addr |= bus.cpu.pop(bus, regs);
 		
 		regs.setPC(addr);
@@ -644,11 +644,12 @@ public class Opcode {
 	
 	@FunctionalInterface
 	public static interface Microcode {
-		int execute(Bus bus, RegisterFile regs);
+		int execute(Bus16 bus, RegisterFile regs);
 	}
 	
+	/** Formats the operand part of a trace line from the values recorded when the instruction ran */
 	public static interface MemoryModeTrace {
-		String trace(Bus bus, RegisterFile regs);
+		String trace(int operand, int a, int x, int y);
 	}
 	
 	private static MemoryMode IMPL= MemoryMode.IMPLIED;
@@ -664,73 +665,65 @@ public class Opcode {
 	private static MemoryMode IDY = MemoryMode.INDIRECT_Y;
 	private static MemoryMode REL = MemoryMode.RELATIVE;
 	
-	private static MemoryModeTrace T_NO = (bus, regs) -> "";
+	private static MemoryModeTrace T_NO = (operand, a, x, y) -> "";
 	
-	private static MemoryModeTrace T_A = (bus, regs) -> {
+	private static MemoryModeTrace T_A = (operand, a, x, y) -> {
 		return " A";
 	};
 	
-	private static MemoryModeTrace T_IMM = (bus, regs) -> {
-		int val = bus.read(regs.getInstructionAddress()+1) & 0xFF;
+	private static MemoryModeTrace T_IMM = (operand, a, x, y) -> {
+		int val = operand & 0xFF;
 		return " #$"+Cpu.hexByte(val);
 	};
 	
-	private static MemoryModeTrace T_ZP = (bus, regs) -> {
-		int val = bus.read(regs.getInstructionAddress()+1) & 0xFF;
+	private static MemoryModeTrace T_ZP = (operand, a, x, y) -> {
+		int val = operand & 0xFF;
 		return " $"+Cpu.hexByte(val);
 	};
 	
-	private static MemoryModeTrace T_ZPX = (bus, regs) -> {
-		int val = bus.read(regs.getInstructionAddress()+1) & 0xFF;
-		return " $"+Cpu.hexByte(val)+" + $#"+Cpu.hexByte(regs.getX())+" = $"+Cpu.hexByte(val+regs.getX());
+	private static MemoryModeTrace T_ZPX = (operand, a, x, y) -> {
+		int val = operand & 0xFF;
+		return " $"+Cpu.hexByte(val)+" + $#"+Cpu.hexByte(x)+" = $"+Cpu.hexByte(val+x);
 	};
 	
-	private static MemoryModeTrace T_ZPY = (bus, regs) -> {
-		int val = bus.read(regs.getInstructionAddress()+1) & 0xFF;
-		return " $"+Cpu.hexByte(val)+" + $#"+Cpu.hexByte(regs.getY())+" = $"+Cpu.hexByte(val+regs.getX());
+	private static MemoryModeTrace T_ZPY = (operand, a, x, y) -> {
+		int val = operand & 0xFF;
+		return " $"+Cpu.hexByte(val)+" + $#"+Cpu.hexByte(y)+" = $"+Cpu.hexByte(val+x);
 	};
 	
-	private static MemoryModeTrace T_ABS = (bus, regs) -> {
-		int valLo = bus.read(regs.getInstructionAddress()+1) & 0xFF;
-		int valHi = bus.read(regs.getInstructionAddress()+2) & 0xFF;
-		int val = (valHi << 8) | valLo;
+	private static MemoryModeTrace T_ABS = (operand, a, x, y) -> {
+		int val = operand & 0xFFFF;
 		return " $"+Cpu.hexShort(val);
 	};
 	
-	private static MemoryModeTrace T_ABA = (bus, regs) -> {
-		int valLo = bus.read(regs.getInstructionAddress()+1) & 0xFF;
-		int valHi = bus.read(regs.getInstructionAddress()+2) & 0xFF;
-		int val = (valHi << 8) | valLo;
-		return " $"+Cpu.hexShort(val)+" = #$"+Cpu.hexByte(regs.getA());
+	private static MemoryModeTrace T_ABA = (operand, a, x, y) -> {
+		int val = operand & 0xFFFF;
+		return " $"+Cpu.hexShort(val)+" = #$"+Cpu.hexByte(a);
 	};
 	
-	private static MemoryModeTrace T_ABX = (bus, regs) -> {
-		int valLo = bus.read(regs.getInstructionAddress()+1) & 0xFF;
-		int valHi = bus.read(regs.getInstructionAddress()+2) & 0xFF;
-		int val = (valHi << 8) | valLo;
-		return " $"+Cpu.hexShort(val)+" + $#"+Cpu.hexByte(regs.getX())+" = $"+Cpu.hexShort(val+regs.getX());
+	private static MemoryModeTrace T_ABX = (operand, a, x, y) -> {
+		int val = operand & 0xFFFF;
+		return " $"+Cpu.hexShort(val)+" + $#"+Cpu.hexByte(x)+" = $"+Cpu.hexShort(val+x);
 	};
 	
-	private static MemoryModeTrace T_ABY = (bus, regs) -> {
-		int valLo = bus.read(regs.getInstructionAddress()+1) & 0xFF;
-		int valHi = bus.read(regs.getInstructionAddress()+2) & 0xFF;
-		int val = (valHi << 8) | valLo;
-		return " $"+Cpu.hexShort(val)+" + $#"+Cpu.hexByte(regs.getY())+" = $"+Cpu.hexShort(val+regs.getX());
+	private static MemoryModeTrace T_ABY = (operand, a, x, y) -> {
+		int val = operand & 0xFFFF;
+		return " $"+Cpu.hexShort(val)+" + $#"+Cpu.hexByte(y)+" = $"+Cpu.hexShort(val+x);
 	};
 	
-	private static MemoryModeTrace T_IND = (bus, regs) -> {
+	private static MemoryModeTrace T_IND = (operand, a, x, y) -> {
 		return "";
 	};
 	
-	private static MemoryModeTrace T_IDX = (bus, regs) -> {
+	private static MemoryModeTrace T_IDX = (operand, a, x, y) -> {
 		return "";
 	};
 	
-	private static MemoryModeTrace T_IDY = (bus, regs) -> {
+	private static MemoryModeTrace T_IDY = (operand, a, x, y) -> {
 		return "";
 	};
 	
-	private static MemoryModeTrace T_REL = (bus, regs) -> {
+	private static MemoryModeTrace T_REL = (operand, a, x, y) -> {
 		return "";
 	};
 	
@@ -1,15 +1,18 @@
 package blue.endless.james.chip.mos6502;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 
-public class RegisterFile {
+import blue.endless.james.host.Snapshottable;
+
+public class RegisterFile implements Snapshottable {
 	
 	private byte a;
 	private byte x;
 	private byte y;
 	
 	/** Program Counter */
-	private long pc;
+	private int pc;
 	
 	/** Status register */
 	private int p;
@@ -23,8 +26,10 @@ public class RegisterFile {
 	/* Internal status, likely to be latches or analog behavior in the original hardware */
 	
 	/** Latched address to be fetched by instruction logic */
-	private long instructionAddress;
-	private long fetchLocation;
+	private int instructionAddress;
+	private int fetchLocation;
+	/** Operand bytes following the opcode, latched when the opcode is fetched */
+	private int operand;
 	private int debugLines = 0;
 	//private boolean controllerStrobe = false;
 	//private int controllerShift = 0;
@@ -46,7 +51,7 @@ public class RegisterFile {
 		return y & 0xFF;
 	}
 	
-	public long getPC() {
+	public int getPC() {
 		return this.pc;
 	}
 	
@@ -74,7 +79,7 @@ public class RegisterFile {
 	}
 	
 	/** Update the program counter to a new value */
-	public void setPC(long val) {
+	public void setPC(int val) {
 		//System.out.println("Jump -> "+Integer.toHexString((int) val));
 		this.pc = val;
 	}
@@ -100,12 +105,24 @@ public class RegisterFile {
 		this.s = (this.s + offset) & 0xFF;
 	}
 	
-	public void setFetchLocation(long val) {
-		fetchLocation = val & 0xFFFFL;
+	public void setFetchLocation(int val) {
+		fetchLocation = val & 0xFFFF;
+	}
+	
+	public int getFetchLocation() {
+		return fetchLocation;
+	}
+	
+	public void setOperand(int val) {
+		operand = val;
+	}
+	
+	public int getOperandLow() {
+		return operand & 0xFF;
 	}
 	
-	public long getFetchLocation() {
-		return fetchLocation & 0xFFFFL;
+	public int getOperandHigh() {
+		return (operand >>> 8) & 0xFF;
 	}
 	
 	public void set(StatusFlag flag) {
@@ -144,7 +161,7 @@ public class RegisterFile {
 		instructionAddress = pc & 0xFFFF;
 	}
 	
-	public long getInstructionAddress() {
+	public int getInstructionAddress() {
 		return instructionAddress;
 	}
 	
@@ -203,6 +220,34 @@ public class RegisterFile {
 		return probableStackTop;
 	}
 	
+	/** Saves the registers and latches; the call stack and stack top guess are only for debugging, so they're left behind */
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put(a);
+		out.put(x);
+		out.put(y);
+		out.putInt(pc);
+		out.putInt(p);
+		out.putInt(s);
+		out.putInt(instructionAddress);
+		out.putInt(fetchLocation);
+		out.putInt(operand);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		a = in.get();
+		x = in.get();
+		y = in.get();
+		pc = in.getInt();
+		p = in.getInt();
+		s = in.getInt();
+		instructionAddress = in.getInt();
+		fetchLocation = in.getInt();
+		operand = in.getInt();
+		callStack.clear();
+	}
+	
 	@Override
 	public String toString() {
 		return "{ a: "+Integer.toHexString(a & 0xFF)+", x: "+Integer.toHexString(x & 0xFF)+", y: "+Integer.toHexString(y & 0xFF)+" p: "+Integer.toHexString(p & 0xFF)+" }";
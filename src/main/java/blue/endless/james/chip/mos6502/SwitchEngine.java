@@ -0,0 +1,735 @@
+package blue.endless.james.chip.mos6502;
+
+import blue.endless.james.host.Bus16;
+
+/**
+ * The 6502's instruction set as a single switch, one case per opcode. Addressing modes and the common
+ * instructions are small static methods here instead of lambdas, and the rest of the microcode is
+ * called from its own case, so every call site has exactly one target and the JIT can inline the
+ * whole instruction into the dispatch.
+ * 
+ * <p>This mirrors INSTRUCTION_MODE and INSTRUCTION_LOGIC in {@link Opcode} exactly, including cycle
+ * counts; if those tables change, this has to change with them. The switch is kept under HotSpot's
+ * 8000-byte limit for compiling a method, so resist inlining anything further by hand.
+ */
+final class SwitchEngine {
+	private SwitchEngine() {}
+	
+	/**
+	 * Executes one instruction whose opcode and operand bytes have already been latched, with pc
+	 * pointing just past the opcode.
+	 * @return the number of cycles taken, not counting the opcode fetch
+	 */
+	static int execute(int opcode, Bus16 bus, RegisterFile regs) {
+		switch(opcode) {
+		case 0x00: // BRK
+			regs.setFetchLocation(0);
+			return Opcode.BRK.execute(bus, regs);
+		case 0x01: // ORA (zp,x)
+			return indirectX(bus, regs) + ora(bus, regs);
+		case 0x02: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x03: // SLO (zp,x)
+			return indirectX(bus, regs) + Opcode.SLO.execute(bus, regs);
+		case 0x04: // NOP zp
+			return zeroPage(regs) + 1;
+		case 0x05: // ORA zp
+			return zeroPage(regs) + ora(bus, regs);
+		case 0x06: // ASL zp
+			return zeroPage(regs) + Opcode.ASL.execute(bus, regs);
+		case 0x07: // SLO zp
+			return zeroPage(regs) + Opcode.SLO.execute(bus, regs);
+		case 0x08: // PHP
+			regs.setFetchLocation(0);
+			return Opcode.PHP.execute(bus, regs);
+		case 0x09: // ORA #imm
+			return immediate(regs) + ora(bus, regs);
+		case 0x0A: // ASL
+			regs.setFetchLocation(0);
+			return Opcode.ASL_A.execute(bus, regs);
+		case 0x0B: // ANC #imm
+			return immediate(regs);
+		case 0x0C: // NOP abs
+			return absolute(regs) + 1;
+		case 0x0D: // ORA abs
+			return absolute(regs) + ora(bus, regs);
+		case 0x0E: // ASL abs
+			return absolute(regs) + Opcode.ASL.execute(bus, regs);
+		case 0x0F: // SLO abs
+			return absolute(regs) + Opcode.SLO.execute(bus, regs);
+		case 0x10: // BPL rel
+			return relative(regs) + branch(regs, !regs.isSet(StatusFlag.NEGATIVE));
+		case 0x11: // ORA (zp),y
+			return indirectY(bus, regs) + ora(bus, regs);
+		case 0x12: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x13: // SLO (zp),y
+			return indirectY(bus, regs) + Opcode.SLO.execute(bus, regs);
+		case 0x14: // NOP zp,x
+			return zeroPageX(regs) + 1;
+		case 0x15: // ORA zp,x
+			return zeroPageX(regs) + ora(bus, regs);
+		case 0x16: // ASL zp,x
+			return zeroPageX(regs) + Opcode.ASL.execute(bus, regs);
+		case 0x17: // SLO zp,x
+			return zeroPageX(regs) + Opcode.SLO.execute(bus, regs);
+		case 0x18: // CLC
+			regs.clear(StatusFlag.CARRY);
+			return 1;
+		case 0x19: // ORA abs,y
+			return absoluteY(regs) + ora(bus, regs);
+		case 0x1A: // NOP
+			return 1;
+		case 0x1B: // SLO abs,y
+			return absoluteY(regs) + Opcode.SLO.execute(bus, regs);
+		case 0x1C: // NOP abs,x
+			return absoluteX(regs) + 1;
+		case 0x1D: // ORA abs,x
+			return absoluteX(regs) + ora(bus, regs);
+		case 0x1E: // ASL abs,x
+			return absoluteX(regs) + Opcode.ASL.execute(bus, regs);
+		case 0x1F: // SLO abs,x
+			return absoluteX(regs) + Opcode.SLO.execute(bus, regs);
+		case 0x20: // JSR abs
+			return absolute(regs) + Opcode.JSR.execute(bus, regs);
+		case 0x21: // AND (zp,x)
+			return indirectX(bus, regs) + and(bus, regs);
+		case 0x22: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x23: // RLA (zp,x)
+			return indirectX(bus, regs) + Opcode.RLA.execute(bus, regs);
+		case 0x24: // BIT zp
+			return zeroPage(regs) + Opcode.BIT.execute(bus, regs);
+		case 0x25: // AND zp
+			return zeroPage(regs) + and(bus, regs);
+		case 0x26: // ROL zp
+			return zeroPage(regs) + Opcode.ROL.execute(bus, regs);
+		case 0x27: // RLA zp
+			return zeroPage(regs) + Opcode.RLA.execute(bus, regs);
+		case 0x28: // PLP
+			regs.setFetchLocation(0);
+			return Opcode.PLP.execute(bus, regs);
+		case 0x29: // AND #imm
+			return immediate(regs) + and(bus, regs);
+		case 0x2A: // ROL
+			regs.setFetchLocation(0);
+			return Opcode.ROL_A.execute(bus, regs);
+		case 0x2B: // ANC #imm
+			return immediate(regs);
+		case 0x2C: // BIT abs
+			return absolute(regs) + Opcode.BIT.execute(bus, regs);
+		case 0x2D: // AND abs
+			return absolute(regs) + and(bus, regs);
+		case 0x2E: // ROL abs
+			return absolute(regs) + Opcode.ROL.execute(bus, regs);
+		case 0x2F: // RLA abs
+			return absolute(regs) + Opcode.RLA.execute(bus, regs);
+		case 0x30: // BMI rel
+			return relative(regs) + branch(regs, regs.isSet(StatusFlag.NEGATIVE));
+		case 0x31: // AND (zp),y
+			return indirectY(bus, regs) + and(bus, regs);
+		case 0x32: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x33: // RLA (zp),y
+			return indirectY(bus, regs) + Opcode.RLA.execute(bus, regs);
+		case 0x34: // NOP zp,x
+			return zeroPageX(regs) + 1;
+		case 0x35: // AND zp,x
+			return zeroPageX(regs) + and(bus, regs);
+		case 0x36: // ROL zp,x
+			return zeroPageX(regs) + Opcode.ROL.execute(bus, regs);
+		case 0x37: // RLA zp,x
+			return zeroPageX(regs) + Opcode.RLA.execute(bus, regs);
+		case 0x38: // SEC
+			regs.set(StatusFlag.CARRY);
+			return 1;
+		case 0x39: // AND abs,y
+			return absoluteY(regs) + and(bus, regs);
+		case 0x3A: // NOP
+			return 1;
+		case 0x3B: // RLA abs,y
+			return absoluteY(regs) + Opcode.RLA.execute(bus, regs);
+		case 0x3C: // NOP abs,x
+			return absoluteX(regs) + 1;
+		case 0x3D: // AND abs,x
+			return absoluteX(regs) + and(bus, regs);
+		case 0x3E: // ROL abs,x
+			return absoluteX(regs) + Opcode.ROL.execute(bus, regs);
+		case 0x3F: // RLA abs,x
+			return absoluteX(regs) + Opcode.RLA.execute(bus, regs);
+		case 0x40: // RTI
+			regs.setFetchLocation(0);
+			return Opcode.RTI.execute(bus, regs);
+		case 0x41: // EOR (zp,x)
+			return indirectX(bus, regs) + eor(bus, regs);
+		case 0x42: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x43: // SRE (zp,x)
+			return indirectX(bus, regs);
+		case 0x44: // NOP zp
+			return zeroPage(regs) + 1;
+		case 0x45: // EOR zp
+			return zeroPage(regs) + eor(bus, regs);
+		case 0x46: // LSR zp
+			return zeroPage(regs) + Opcode.LSR.execute(bus, regs);
+		case 0x47: // SRE zp
+			return zeroPage(regs);
+		case 0x48: // PHA
+			regs.setFetchLocation(0);
+			return Opcode.PHA.execute(bus, regs);
+		case 0x49: // EOR #imm
+			return immediate(regs) + eor(bus, regs);
+		case 0x4A: // LSR
+			regs.setFetchLocation(0);
+			return Opcode.LSR_A.execute(bus, regs);
+		case 0x4B: // ALR #imm
+			return immediate(regs);
+		case 0x4C: // JMP abs
+			return absolute(regs) + jmp(regs);
+		case 0x4D: // EOR abs
+			return absolute(regs) + eor(bus, regs);
+		case 0x4E: // LSR abs
+			return absolute(regs) + Opcode.LSR.execute(bus, regs);
+		case 0x4F: // SRE abs
+			return absolute(regs);
+		case 0x50: // BVC rel
+			return relative(regs) + branch(regs, !regs.isSet(StatusFlag.OVERFLOW));
+		case 0x51: // EOR (zp),y
+			return indirectY(bus, regs) + eor(bus, regs);
+		case 0x52: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x53: // SRE (zp),y
+			return indirectY(bus, regs);
+		case 0x54: // NOP zp,x
+			return zeroPageX(regs) + 1;
+		case 0x55: // EOR zp,x
+			return zeroPageX(regs) + eor(bus, regs);
+		case 0x56: // LSR zp,x
+			return zeroPageX(regs) + Opcode.LSR.execute(bus, regs);
+		case 0x57: // SRE zp,x
+			return zeroPageX(regs);
+		case 0x58: // CLI
+			regs.clear(StatusFlag.INTERRUPT_DISABLE);
+			return 1;
+		case 0x59: // EOR abs,y
+			return absoluteY(regs) + eor(bus, regs);
+		case 0x5A: // NOP
+			return 1;
+		case 0x5B: // SRE abs,y
+			return absoluteY(regs);
+		case 0x5C: // NOP abs,x
+			return absoluteX(regs) + 1;
+		case 0x5D: // EOR abs,x
+			return absoluteX(regs) + eor(bus, regs);
+		case 0x5E: // LSR abs,x
+			return absoluteX(regs) + Opcode.LSR.execute(bus, regs);
+		case 0x5F: // SRE abs,x
+			return absoluteX(regs);
+		case 0x60: // RTS
+			regs.setFetchLocation(0);
+			return Opcode.RTS.execute(bus, regs);
+		case 0x61: // ADC (zp,x)
+			return indirectX(bus, regs) + Opcode.ADC.execute(bus, regs);
+		case 0x62: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x63: // RRA (zp,x)
+			return indirectX(bus, regs);
+		case 0x64: // NOP zp
+			return zeroPage(regs) + 1;
+		case 0x65: // ADC zp
+			return zeroPage(regs) + Opcode.ADC.execute(bus, regs);
+		case 0x66: // ROR zp
+			return zeroPage(regs) + Opcode.ROR.execute(bus, regs);
+		case 0x67: // RRA zp
+			return zeroPage(regs);
+		case 0x68: // PLA
+			regs.setFetchLocation(0);
+			return Opcode.PLA.execute(bus, regs);
+		case 0x69: // ADC #imm
+			return immediate(regs) + Opcode.ADC.execute(bus, regs);
+		case 0x6A: // ROR
+			regs.setFetchLocation(0);
+			return Opcode.ROR_A.execute(bus, regs);
+		case 0x6B: // ARR #imm
+			return immediate(regs);
+		case 0x6C: // JMP (ind)
+			return MemoryMode.INDIRECT.prepareFetch(bus, regs) + jmp(regs);
+		case 0x6D: // ADC abs
+			return absolute(regs) + Opcode.ADC.execute(bus, regs);
+		case 0x6E: // ROR abs
+			return absolute(regs) + Opcode.ROR.execute(bus, regs);
+		case 0x6F: // RRA abs
+			return absolute(regs);
+		case 0x70: // BVS rel
+			return relative(regs) + branch(regs, regs.isSet(StatusFlag.OVERFLOW));
+		case 0x71: // ADC (zp),y
+			return indirectY(bus, regs) + Opcode.ADC.execute(bus, regs);
+		case 0x72: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x73: // RRA (zp),y
+			return indirectY(bus, regs);
+		case 0x74: // NOP zp,x
+			return zeroPageX(regs) + 1;
+		case 0x75: // ADC zp,x
+			return zeroPageX(regs) + Opcode.ADC.execute(bus, regs);
+		case 0x76: // ROR zp,x
+			return zeroPageX(regs) + Opcode.ROR.execute(bus, regs);
+		case 0x77: // RRA zp,x
+			return zeroPageX(regs);
+		case 0x78: // SEI
+			regs.set(StatusFlag.INTERRUPT_DISABLE);
+			return 1;
+		case 0x79: // ADC abs,y
+			return absoluteY(regs) + Opcode.ADC.execute(bus, regs);
+		case 0x7A: // NOP
+			return 1;
+		case 0x7B: // RRA abs,y
+			return absoluteY(regs);
+		case 0x7C: // NOP abs,x
+			return absoluteX(regs) + 1;
+		case 0x7D: // ADC abs,x
+			return absoluteX(regs) + Opcode.ADC.execute(bus, regs);
+		case 0x7E: // ROR abs,x
+			return absoluteX(regs) + Opcode.ROR.execute(bus, regs);
+		case 0x7F: // RRA abs,x
+			return absoluteX(regs);
+		case 0x80: // NOP #imm
+			return immediate(regs) + 1;
+		case 0x81: // STA (zp,x)
+			return indirectX(bus, regs) + sta(bus, regs);
+		case 0x82: // NOP #imm
+			return immediate(regs) + 1;
+		case 0x83: // SAX (zp,x)
+			return indirectX(bus, regs);
+		case 0x84: // STY zp
+			return zeroPage(regs) + sty(bus, regs);
+		case 0x85: // STA zp
+			return zeroPage(regs) + sta(bus, regs);
+		case 0x86: // STX zp
+			return zeroPage(regs) + stx(bus, regs);
+		case 0x87: // SAX zp
+			return zeroPage(regs);
+		case 0x88: // DEY
+			regs.setY(regs.getY() - 1);
+			return 1;
+		case 0x89: // NOP #imm
+			return immediate(regs) + 1;
+		case 0x8A: // TXA
+			regs.setA(regs.getX());
+			return 1;
+		case 0x8B: // XAA #imm
+			return immediate(regs);
+		case 0x8C: // STY abs
+			return absolute(regs) + sty(bus, regs);
+		case 0x8D: // STA abs
+			return absolute(regs) + sta(bus, regs);
+		case 0x8E: // STX abs
+			return absolute(regs) + stx(bus, regs);
+		case 0x8F: // SAX abs
+			return absolute(regs);
+		case 0x90: // BCC rel
+			return relative(regs) + branch(regs, !regs.isSet(StatusFlag.CARRY));
+		case 0x91: // STA (zp),y
+			return indirectY(bus, regs) + sta(bus, regs);
+		case 0x92: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0x93: // AHX (zp),y
+			return indirectY(bus, regs);
+		case 0x94: // STY zp,x
+			return zeroPageX(regs) + sty(bus, regs);
+		case 0x95: // STA zp,x
+			return zeroPageX(regs) + sta(bus, regs);
+		case 0x96: // STX zp,y
+			return zeroPageY(regs) + stx(bus, regs);
+		case 0x97: // SAX zp,y
+			return zeroPageY(regs);
+		case 0x98: // TYA
+			regs.setA(regs.getY());
+			return 1;
+		case 0x99: // STA abs,y
+			return absoluteY(regs) + sta(bus, regs);
+		case 0x9A: // TXS
+			regs.setFetchLocation(0);
+			return Opcode.TXS.execute(bus, regs);
+		case 0x9B: // TAS abs,y
+			return absoluteY(regs);
+		case 0x9C: // SHY abs,x
+			return absoluteX(regs);
+		case 0x9D: // STA abs,x
+			return absoluteX(regs) + sta(bus, regs);
+		case 0x9E: // SHX abs,x
+			return absoluteX(regs);
+		case 0x9F: // AHX abs,x
+			return absoluteX(regs);
+		case 0xA0: // LDY #imm
+			return immediate(regs) + ldy(bus, regs);
+		case 0xA1: // LDA (zp,x)
+			return indirectX(bus, regs) + lda(bus, regs);
+		case 0xA2: // LDX #imm
+			return immediate(regs) + ldx(bus, regs);
+		case 0xA3: // LAX (zp,x)
+			return indirectX(bus, regs);
+		case 0xA4: // LDY zp
+			return zeroPage(regs) + ldy(bus, regs);
+		case 0xA5: // LDA zp
+			return zeroPage(regs) + lda(bus, regs);
+		case 0xA6: // LDX zp
+			return zeroPage(regs) + ldx(bus, regs);
+		case 0xA7: // LAX zp
+			return zeroPage(regs);
+		case 0xA8: // TAY
+			regs.setY(regs.getA());
+			return 1;
+		case 0xA9: // LDA #imm
+			return immediate(regs) + lda(bus, regs);
+		case 0xAA: // TAX
+			regs.setX(regs.getA());
+			return 1;
+		case 0xAB: // LAX #imm
+			return immediate(regs);
+		case 0xAC: // LDY abs
+			return absolute(regs) + ldy(bus, regs);
+		case 0xAD: // LDA abs
+			return absolute(regs) + lda(bus, regs);
+		case 0xAE: // LDX abs
+			return absolute(regs) + ldx(bus, regs);
+		case 0xAF: // LAX abs
+			return absolute(regs);
+		case 0xB0: // BCS rel
+			return relative(regs) + branch(regs, regs.isSet(StatusFlag.CARRY));
+		case 0xB1: // LDA (zp),y
+			return indirectY(bus, regs) + lda(bus, regs);
+		case 0xB2: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0xB3: // LAX (zp),y
+			return indirectY(bus, regs);
+		case 0xB4: // LDY zp,x
+			return zeroPageX(regs) + ldy(bus, regs);
+		case 0xB5: // LDA zp,x
+			return zeroPageX(regs) + lda(bus, regs);
+		case 0xB6: // LDX zp,y
+			return zeroPageY(regs) + ldx(bus, regs);
+		case 0xB7: // LAX zp,y
+			return zeroPageY(regs);
+		case 0xB8: // CLV
+			regs.clear(StatusFlag.OVERFLOW);
+			return 1;
+		case 0xB9: // LDA abs,y
+			return absoluteY(regs) + lda(bus, regs);
+		case 0xBA: // TSX
+			regs.setX(regs.getS());
+			return 1;
+		case 0xBB: // LAS abs,y
+			return absoluteY(regs);
+		case 0xBC: // LDY abs,x
+			return absoluteX(regs) + ldy(bus, regs);
+		case 0xBD: // LDA abs,x
+			return absoluteX(regs) + lda(bus, regs);
+		case 0xBE: // LDX abs,x
+			return absoluteX(regs) + ldx(bus, regs);
+		case 0xBF: // LAX abs,x
+			return absoluteX(regs);
+		case 0xC0: // CPY #imm
+			return immediate(regs) + cpy(bus, regs);
+		case 0xC1: // CMP (zp,x)
+			return indirectX(bus, regs) + cmp(bus, regs);
+		case 0xC2: // NOP #imm
+			return immediate(regs) + 1;
+		case 0xC3: // DCP (zp,x)
+			return indirectX(bus, regs);
+		case 0xC4: // CPY zp
+			return zeroPage(regs) + cpy(bus, regs);
+		case 0xC5: // CMP zp
+			return zeroPage(regs) + cmp(bus, regs);
+		case 0xC6: // DEC zp
+			return zeroPage(regs) + Opcode.DEC.execute(bus, regs);
+		case 0xC7: // DCP zp
+			return zeroPage(regs);
+		case 0xC8: // INY
+			regs.setY(regs.getY() + 1);
+			return 1;
+		case 0xC9: // CMP #imm
+			return immediate(regs) + cmp(bus, regs);
+		case 0xCA: // DEX
+			regs.setX(regs.getX() - 1);
+			return 1;
+		case 0xCB: // AXS #imm
+			return immediate(regs);
+		case 0xCC: // CPY abs
+			return absolute(regs) + cpy(bus, regs);
+		case 0xCD: // CMP abs
+			return absolute(regs) + cmp(bus, regs);
+		case 0xCE: // DEC abs
+			return absolute(regs) + Opcode.DEC.execute(bus, regs);
+		case 0xCF: // DCP abs
+			return absolute(regs);
+		case 0xD0: // BNE rel
+			return relative(regs) + branch(regs, !regs.isSet(StatusFlag.ZERO));
+		case 0xD1: // CMP (zp),y
+			return indirectY(bus, regs) + cmp(bus, regs);
+		case 0xD2: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0xD3: // DCP (zp),y
+			return indirectY(bus, regs);
+		case 0xD4: // NOP zp,x
+			return zeroPageX(regs) + 1;
+		case 0xD5: // CMP zp,x
+			return zeroPageX(regs) + cmp(bus, regs);
+		case 0xD6: // DEC zp,x
+			return zeroPageX(regs) + Opcode.DEC.execute(bus, regs);
+		case 0xD7: // DCP zp,x
+			return zeroPageX(regs);
+		case 0xD8: // CLD
+			regs.clear(StatusFlag.DECIMAL);
+			return 1;
+		case 0xD9: // CMP abs,y
+			return absoluteY(regs) + cmp(bus, regs);
+		case 0xDA: // NOP
+			return 1;
+		case 0xDB: // DCP abs,y
+			return absoluteY(regs);
+		case 0xDC: // NOP abs,x
+			return absoluteX(regs) + 1;
+		case 0xDD: // CMP abs,x
+			return absoluteX(regs) + cmp(bus, regs);
+		case 0xDE: // DEC abs,x
+			return absoluteX(regs) + Opcode.DEC.execute(bus, regs);
+		case 0xDF: // DCP abs,x
+			return absoluteX(regs);
+		case 0xE0: // CPX #imm
+			return immediate(regs) + cpx(bus, regs);
+		case 0xE1: // SBC (zp,x)
+			return indirectX(bus, regs) + Opcode.SBC.execute(bus, regs);
+		case 0xE2: // NOP #imm
+			return immediate(regs) + 1;
+		case 0xE3: // ISC (zp,x)
+			return indirectX(bus, regs);
+		case 0xE4: // CPX zp
+			return zeroPage(regs) + cpx(bus, regs);
+		case 0xE5: // SBC zp
+			return zeroPage(regs) + Opcode.SBC.execute(bus, regs);
+		case 0xE6: // INC zp
+			return zeroPage(regs) + Opcode.INC.execute(bus, regs);
+		case 0xE7: // ISC zp
+			return zeroPage(regs);
+		case 0xE8: // INX
+			regs.setX(regs.getX() + 1);
+			return 1;
+		case 0xE9: // SBC #imm
+			return immediate(regs) + Opcode.SBC.execute(bus, regs);
+		case 0xEA: // NOP
+			return 1;
+		case 0xEB: // SBC #imm
+			return immediate(regs) + Opcode.SBC.execute(bus, regs);
+		case 0xEC: // CPX abs
+			return absolute(regs) + cpx(bus, regs);
+		case 0xED: // SBC abs
+			return absolute(regs) + Opcode.SBC.execute(bus, regs);
+		case 0xEE: // INC abs
+			return absolute(regs) + Opcode.INC.execute(bus, regs);
+		case 0xEF: // ISC abs
+			return absolute(regs);
+		case 0xF0: // BEQ rel
+			return relative(regs) + branch(regs, regs.isSet(StatusFlag.ZERO));
+		case 0xF1: // SBC (zp),y
+			return indirectY(bus, regs) + Opcode.SBC.execute(bus, regs);
+		case 0xF2: // KIL
+			regs.setFetchLocation(0);
+			return Opcode.KIL.execute(bus, regs);
+		case 0xF3: // ISC (zp),y
+			return indirectY(bus, regs);
+		case 0xF4: // NOP zp,x
+			return zeroPageX(regs) + 1;
+		case 0xF5: // SBC zp,x
+			return zeroPageX(regs) + Opcode.SBC.execute(bus, regs);
+		case 0xF6: // INC zp,x
+			return zeroPageX(regs) + Opcode.INC.execute(bus, regs);
+		case 0xF7: // ISC zp,x
+			return zeroPageX(regs);
+		case 0xF8: // SED
+			regs.set(StatusFlag.DECIMAL);
+			return 1;
+		case 0xF9: // SBC abs,y
+			return absoluteY(regs) + Opcode.SBC.execute(bus, regs);
+		case 0xFA: // NOP
+			return 1;
+		case 0xFB: // ISC abs,y
+			return absoluteY(regs);
+		case 0xFC: // NOP abs,x
+			return absoluteX(regs) + 1;
+		case 0xFD: // SBC abs,x
+			return absoluteX(regs) + Opcode.SBC.execute(bus, regs);
+		case 0xFE: // INC abs,x
+			return absoluteX(regs) + Opcode.INC.execute(bus, regs);
+		case 0xFF: // ISC abs,x
+			return absoluteX(regs);
+		default:
+			return 0;
+		}
+	}
+	
+	/* *------------------* *
+	 * | ADDRESSING MODES | *
+	 * *------------------* */
+	
+	private static int immediate(RegisterFile regs) {
+		regs.setFetchLocation(regs.getPC());
+		regs.incPC();
+		return 0;
+	}
+	
+	private static int zeroPage(RegisterFile regs) {
+		regs.setFetchLocation(regs.getOperandLow());
+		regs.incPC();
+		return 1;
+	}
+	
+	private static int zeroPageX(RegisterFile regs) {
+		regs.setFetchLocation((regs.getOperandLow() + regs.getX()) & 0xFF);
+		regs.incPC();
+		return 2;
+	}
+	
+	private static int zeroPageY(RegisterFile regs) {
+		regs.setFetchLocation((regs.getOperandLow() + regs.getY()) & 0xFF);
+		regs.incPC();
+		return 2;
+	}
+	
+	private static int absolute(RegisterFile regs) {
+		regs.setFetchLocation((regs.getOperandHigh() << 8) | regs.getOperandLow());
+		regs.incPC(2);
+		return 2;
+	}
+	
+	private static int absoluteX(RegisterFile regs) {
+		int high = regs.getOperandHigh();
+		int absAddress = ((high << 8) | regs.getOperandLow()) + regs.getX();
+		regs.setFetchLocation(absAddress);
+		regs.incPC(2);
+		return (((absAddress >> 8) & 0xFF) != high) ? 4 : 3;
+	}
+	
+	private static int absoluteY(RegisterFile regs) {
+		int high = regs.getOperandHigh();
+		int absAddress = ((high << 8) | regs.getOperandLow()) + regs.getY();
+		regs.setFetchLocation(absAddress);
+		regs.incPC(2);
+		return (((absAddress >> 8) & 0xFF) != high) ? 4 : 3;
+	}
+	
+	private static int indirectX(Bus16 bus, RegisterFile regs) {
+		int zpAddress = regs.getOperandLow() + regs.getX(); //not wrapped, same as MemoryMode.INDIRECT_X
+		regs.incPC();
+		int indLow = bus.read8(zpAddress);
+		int indHigh = bus.read8((zpAddress+1) & 0xFF);
+		regs.setFetchLocation((indHigh << 8) | indLow);
+		return 4;
+	}
+	
+	private static int indirectY(Bus16 bus, RegisterFile regs) {
+		int zpAddress = regs.getOperandLow();
+		regs.incPC();
+		int indLow = bus.read8(zpAddress);
+		int indHigh = bus.read8((zpAddress+1) & 0xFF);
+		int indAddress = (indHigh << 8) | indLow;
+		int absAddress = (indAddress + regs.getY()) & 0xFFFF;
+		regs.setFetchLocation(absAddress);
+		return (absAddress>>8 != indAddress>>8) ? 6 : 5;
+	}
+	
+	private static int relative(RegisterFile regs) {
+		regs.incPC();
+		regs.setFetchLocation(regs.getPC() + (byte) regs.getOperandLow());
+		return 1;
+	}
+	
+	/* *-------------------* *
+	 * | COMMON OPERATIONS | *
+	 * *-------------------* */
+	
+	private static int lda(Bus16 bus, RegisterFile regs) {
+		regs.setA(bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int ldx(Bus16 bus, RegisterFile regs) {
+		regs.setX(bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int ldy(Bus16 bus, RegisterFile regs) {
+		regs.setY(bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int sta(Bus16 bus, RegisterFile regs) {
+		bus.write8(regs.getFetchLocation(), regs.getA());
+		return 1;
+	}
+	
+	private static int stx(Bus16 bus, RegisterFile regs) {
+		bus.write8(regs.getFetchLocation(), regs.getX());
+		return 1;
+	}
+	
+	private static int sty(Bus16 bus, RegisterFile regs) {
+		bus.write8(regs.getFetchLocation(), regs.getY());
+		return 1;
+	}
+	
+	private static int and(Bus16 bus, RegisterFile regs) {
+		regs.setA(regs.getA() & bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int ora(Bus16 bus, RegisterFile regs) {
+		regs.setA(regs.getA() | bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int eor(Bus16 bus, RegisterFile regs) {
+		regs.setA(regs.getA() ^ bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int cmp(Bus16 bus, RegisterFile regs) {
+		regs.affectCZN(regs.getA() - bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int cpx(Bus16 bus, RegisterFile regs) {
+		regs.affectCZN(regs.getX() - bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int cpy(Bus16 bus, RegisterFile regs) {
+		regs.affectCZN(regs.getY() - bus.read8(regs.getFetchLocation()));
+		return 1;
+	}
+	
+	private static int jmp(RegisterFile regs) {
+		regs.setPC(regs.getFetchLocation());
+		return 1;
+	}
+	
+	private static int branch(RegisterFile regs, boolean taken) {
+		if (!taken) return 1;
+		
+		int branchTarget = regs.getFetchLocation();
+		int pc = regs.getPC() & 0xFFFF;
+		regs.setPC(branchTarget);
+		return ((branchTarget>>8)==(pc>>8)) ? 2 : 3;
+	}
+}
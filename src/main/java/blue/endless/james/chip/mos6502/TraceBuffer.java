@@ -0,0 +1,117 @@
+package blue.endless.james.chip.mos6502;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Ring buffer of executed instructions. Each record is packed into two longs as it's written, and
+ * only gets turned into text if somebody asks for it.
+ *
+ * <p>Indices run from 0 (the oldest record still held) to size()-1 (the instruction which just ran).
+ */
+public class TraceBuffer {
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/* Record layout:
+	 *   word 0: pc (16) | opcode (8) | operand (16) | a (8) | x (8) | y (8)
+	 *   word 1: s (8) | p (8) | cycles (48)
+	 */
+	private final long[] records;
+	private final int capacity;
+	private long written = 0L;
+
+	public TraceBuffer(int capacity) {
+		this.capacity = capacity;
+		this.records = new long[capacity*2];
+	}
+
+	public void record(int pc, int opcode, int operand, int a, int x, int y, int s, int p, long cycles) {
+		int slot = (int) (written % capacity) * 2;
+		records[slot] =
+				(pc & 0xFFFFL) |
+				((opcode & 0xFFL) << 16) |
+				((operand & 0xFFFFL) << 24) |
+				((a & 0xFFL) << 40) |
+				((x & 0xFFL) << 48) |
+				((y & 0xFFL) << 56);
+		records[slot+1] =
+				(s & 0xFFL) |
+				((p & 0xFFL) << 8) |
+				(cycles << 16);
+		written++;
+	}
+
+	public int size() {
+		return (int) Math.min(written, capacity);
+	}
+
+	public void clear() {
+		written = 0L;
+	}
+
+	private int slot(int index) {
+		return (int) ((written - size() + index) % capacity) * 2;
+	}
+
+	public int getPC(int index)      { return (int) (records[slot(index)] & 0xFFFF); }
+	public int getOpcode(int index)  { return (int) (records[slot(index)] >>> 16) & 0xFF; }
+	public int getOperand(int index) { return (int) (records[slot(index)] >>> 24) & 0xFFFF; }
+	public int getA(int index)       { return (int) (records[slot(index)] >>> 40) & 0xFF; }
+	public int getX(int index)       { return (int) (records[slot(index)] >>> 48) & 0xFF; }
+	public int getY(int index)       { return (int) (records[slot(index)] >>> 56) & 0xFF; }
+	public int getS(int index)       { return (int) (records[slot(index)+1] & 0xFF); }
+	public int getP(int index)       { return (int) (records[slot(index)+1] >>> 8) & 0xFF; }
+	public long getCycles(int index) { return records[slot(index)+1] >>> 16; }
+
+	/**
+	 * Formats one record as a nestest-style log line, e.g.
+	 * {@code A:00 X:00 Y:00 S:FD P:nvUbdIzc  $C000: 4C F5 C5 JMP $C5F5}
+	 */
+	public String format(int index) {
+		int opcode = getOpcode(index);
+		int operand = getOperand(index);
+		int p = getP(index);
+
+		StringBuilder trace = new StringBuilder(64);
+		trace.append("A:").append(Cpu.hexByte(getA(index)));
+		trace.append(" X:").append(Cpu.hexByte(getX(index)));
+		trace.append(" Y:").append(Cpu.hexByte(getY(index)));
+		trace.append(" S:").append(Cpu.hexByte(getS(index)));
+
+		trace.append(" P:");
+		trace.append(StatusFlag.NEGATIVE.isSet(p) ? 'N' : 'n');
+		trace.append(StatusFlag.OVERFLOW.isSet(p) ? 'V' : 'v');
+		trace.append(((p & 0x20) != 0) ? 'U' : 'u');
+		trace.append(((p & 0x10) != 0) ? 'B' : 'b');
+		trace.append(StatusFlag.DECIMAL.isSet(p) ? 'D' : 'd');
+		trace.append(StatusFlag.INTERRUPT_DISABLE.isSet(p) ? 'I' : 'i');
+		trace.append(StatusFlag.ZERO.isSet(p) ? 'Z' : 'z');
+		trace.append(StatusFlag.CARRY.isSet(p) ? 'C' : 'c');
+
+		trace.append("  $").append(Cpu.hexShort(getPC(index))).append(':');
+		int size = Opcode.INSTRUCTION_SIZE[opcode];
+		int[] bytes = { opcode, operand & 0xFF, operand >>> 8 };
+		for(int i=0; i<3; i++) {
+			if (i<size) {
+				trace.append(' ').append(Cpu.hexByte(bytes[i]));
+			} else {
+				trace.append("   ");
+			}
+		}
+		trace.append(' ');
+		trace.append(Opcode.INSTRUCTION_NAME[opcode]);
+		trace.append(Opcode.INSTRUCTION_TRACE[opcode].trace(operand, getA(index), getX(index), getY(index)));
+
+		return trace.toString();
+	}
+
+	/** Formats every record still in the buffer, oldest first. */
+	public List<String> formatAll() {
+		int size = size();
+		ArrayList<String> result = new ArrayList<>(size);
+		for(int i=0; i<size; i++) {
+			result.add(format(i));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,293 @@
+package blue.endless.james.chip.sm83;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Just enough of a classfile writer to emit the recompiler's block classes: a constant pool, fields,
+ * and methods whose bytecode is assembled by hand with {@link Code}. The only stack map frames it
+ * can describe are "same as the method's arguments, empty stack", which is all a tableswitch whose
+ * cases each return needs.
+ */
+class ClassFileBuilder {
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_PRIVATE = 0x0002;
+	public static final int ACC_STATIC = 0x0008;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+
+	/** Java 16 */
+	private static final int CLASSFILE_VERSION = 60;
+
+	private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream pool = new DataOutputStream(poolBytes);
+	private final HashMap<String, Integer> poolIndices = new HashMap<>();
+	private int poolCount = 1;
+
+	private final int thisClass;
+	private final int superClass;
+	private final int[] interfaces;
+	private final ArrayList<byte[]> fields = new ArrayList<>();
+	private final ArrayList<byte[]> methods = new ArrayList<>();
+
+	public ClassFileBuilder(String name, String superName, String... interfaceNames) {
+		thisClass = classRef(name);
+		superClass = classRef(superName);
+		interfaces = new int[interfaceNames.length];
+		for(int i=0; i<interfaceNames.length; i++) interfaces[i] = classRef(interfaceNames[i]);
+	}
+
+	/* Constant pool */
+
+	public int utf8(String value) {
+		return constant("U"+value, 1, out -> out.writeUTF(value));
+	}
+
+	public int integer(int value) {
+		return constant("I"+value, 3, out -> out.writeInt(value));
+	}
+
+	public int classRef(String internalName) {
+		int name = utf8(internalName);
+		return constant("C"+internalName, 7, out -> out.writeShort(name));
+	}
+
+	public int string(String value) {
+		int utf = utf8(value);
+		return constant("S"+value, 8, out -> out.writeShort(utf));
+	}
+
+	public int fieldRef(String owner, String name, String descriptor) {
+		return memberRef(9, owner, name, descriptor);
+	}
+
+	public int methodRef(String owner, String name, String descriptor) {
+		return memberRef(10, owner, name, descriptor);
+	}
+
+	public int interfaceMethodRef(String owner, String name, String descriptor) {
+		return memberRef(11, owner, name, descriptor);
+	}
+
+	private int memberRef(int tag, String owner, String name, String descriptor) {
+		int ownerIndex = classRef(owner);
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int nameAndType = constant("N"+name+":"+descriptor, 12, out -> {
+			out.writeShort(nameIndex);
+			out.writeShort(descriptorIndex);
+		});
+		return constant(tag+owner+"."+name+":"+descriptor, tag, out -> {
+			out.writeShort(ownerIndex);
+			out.writeShort(nameAndType);
+		});
+	}
+
+	private interface ConstantWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private int constant(String key, int tag, ConstantWriter writer) {
+		Integer existing = poolIndices.get(key);
+		if (existing!=null) return existing;
+
+		try {
+			pool.writeByte(tag);
+			writer.write(pool);
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex); //Can't happen with a ByteArrayOutputStream
+		}
+		int index = poolCount++;
+		poolIndices.put(key, index);
+		return index;
+	}
+
+	/* Members */
+
+	public void field(int access, String name, String descriptor) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(0); //no attributes
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		fields.add(bytes.toByteArray());
+	}
+
+	/**
+	 * Adds a method.
+	 * @param frameTargets bytecode offsets which are branched to, in increasing order. Every one of
+	 *        them has to have the method's arguments as its locals and an empty stack.
+	 */
+	public void method(int access, String name, String descriptor, int maxStack, int maxLocals, Code code, int... frameTargets) {
+		byte[] stackMap = null;
+		if (frameTargets.length>0) {
+			ByteArrayOutputStream frames = new ByteArrayOutputStream();
+			int last = -1;
+			for(int target : frameTargets) {
+				int delta = target - last - 1;
+				if (delta<64) {
+					frames.write(delta); //same_frame
+				} else {
+					frames.write(251); //same_frame_extended
+					frames.write(delta >> 8);
+					frames.write(delta);
+				}
+				last = target;
+			}
+			stackMap = frames.toByteArray();
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeShort(access);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1); //Code
+
+			byte[] bytecode = code.toByteArray();
+			int codeAttributeLength = 12 + bytecode.length;
+			if (stackMap!=null) codeAttributeLength += 8 + stackMap.length;
+
+			out.writeShort(utf8("Code"));
+			out.writeInt(codeAttributeLength);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(bytecode.length);
+			out.write(bytecode);
+			out.writeShort(0); //no exception table
+			if (stackMap==null) {
+				out.writeShort(0);
+			} else {
+				out.writeShort(1);
+				out.writeShort(utf8("StackMapTable"));
+				out.writeInt(2 + stackMap.length);
+				out.writeShort(frameTargets.length);
+				out.write(stackMap);
+			}
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		methods.add(bytes.toByteArray());
+	}
+
+	public byte[] toByteArray() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);
+			out.writeShort(CLASSFILE_VERSION);
+			out.writeShort(poolCount);
+			out.write(poolBytes.toByteArray());
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.length);
+			for(int i : interfaces) out.writeShort(i);
+			out.writeShort(fields.size());
+			for(byte[] field : fields) out.write(field);
+			out.writeShort(methods.size());
+			for(byte[] method : methods) out.write(method);
+			out.writeShort(0); //no class attributes
+		} catch (IOException ex) {
+			throw new IllegalStateException(ex);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * A growable buffer of bytecode. Only the opcodes the recompiler actually emits are named here.
+	 */
+	public static class Code {
+		public static final int ICONST_M1 = 0x02;
+		public static final int ICONST_0 = 0x03;
+		public static final int ACONST_NULL = 0x01;
+		public static final int BIPUSH = 0x10;
+		public static final int SIPUSH = 0x11;
+		public static final int LDC_W = 0x13;
+		public static final int ILOAD = 0x15;
+		public static final int ALOAD = 0x19;
+		public static final int ASTORE = 0x3A;
+		public static final int AALOAD = 0x32;
+		public static final int IADD = 0x60;
+		public static final int ISUB = 0x64;
+		public static final int ISHL = 0x78;
+		public static final int ISHR = 0x7A;
+		public static final int IAND = 0x7E;
+		public static final int IOR = 0x80;
+		public static final int TABLESWITCH = 0xAA;
+		public static final int IRETURN = 0xAC;
+		public static final int RETURN = 0xB1;
+		public static final int GETSTATIC = 0xB2;
+		public static final int PUTSTATIC = 0xB3;
+		public static final int GETFIELD = 0xB4;
+		public static final int PUTFIELD = 0xB5;
+		public static final int INVOKESPECIAL = 0xB7;
+		public static final int INVOKESTATIC = 0xB8;
+		public static final int INVOKEINTERFACE = 0xB9;
+		public static final int CHECKCAST = 0xC0;
+
+		private byte[] data = new byte[256];
+		private int length = 0;
+
+		public int position() {
+			return length;
+		}
+
+		public Code u1(int value) {
+			if (length==data.length) data = Arrays.copyOf(data, data.length*2);
+			data[length++] = (byte) value;
+			return this;
+		}
+
+		public Code u2(int value) {
+			return u1(value >> 8).u1(value);
+		}
+
+		public Code u4(int value) {
+			return u2(value >> 16).u2(value);
+		}
+
+		public Code op(int opcode) {
+			return u1(opcode);
+		}
+
+		/** Emits an opcode which takes a two-byte constant pool index, like getfield or checkcast */
+		public Code op(int opcode, int poolIndex) {
+			return u1(opcode).u2(poolIndex);
+		}
+
+		public Code load(int opcode, int local) {
+			return u1(opcode).u1(local);
+		}
+
+		/** Pushes an int using the shortest form that can hold it */
+		public Code pushInt(ClassFileBuilder builder, int value) {
+			if (value>=-1 && value<=5) return u1(ICONST_0 + value);
+			if (value>=Byte.MIN_VALUE && value<=Byte.MAX_VALUE) return u1(BIPUSH).u1(value);
+			if (value>=Short.MIN_VALUE && value<=Short.MAX_VALUE) return u1(SIPUSH).u2(value);
+			return op(LDC_W, builder.integer(value));
+		}
+
+		public void patch4(int position, int value) {
+			data[position  ] = (byte) (value >> 24);
+			data[position+1] = (byte) (value >> 16);
+			data[position+2] = (byte) (value >>  8);
+			data[position+3] = (byte) value;
+		}
+
+		public byte[] toByteArray() {
+			return Arrays.copyOf(data, length);
+		}
+	}
+}
@@ -1,8 +1,13 @@
 package blue.endless.james.chip.sm83;
 
-import blue.endless.james.host.Bus;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+
+import blue.endless.james.host.Bus16;
 import blue.endless.james.host.Debug;
+import blue.endless.james.host.DirectRegion;
 import blue.endless.james.host.Operand;
+import blue.endless.james.host.Snapshottable;
 
 /**
  * <p>The heart of the GameBoy (originally called Dot Matrix Game) is the DMG-CPU.
@@ -24,15 +29,24 @@ import blue.endless.james.host.Operand;
  * 
  * 
  */
-public class Sm83 {
+public class Sm83 implements Snapshottable {
 	public Sm83Registers regs = new Sm83Registers();
-	public Bus bus;
+	public Bus16 bus;
 	private boolean debug = false;
 	//private static int presumedStackTop = 0xFFFF;
 	
-	private int[] instructionData = new int[4];
 	public String debugString = "";
 	
+	private Bus16 directBus = null;
+	private DirectRegion[] directPages = null;
+	private Sm83Recompiler recompiler = null;
+	
+	private final IdentityHashMap<byte[], Sm83Instruction[]> decodeCaches = new IdentityHashMap<>();
+	private byte[] lastDecodedData = null;
+	private Sm83Instruction[] lastDecodeCache = null;
+	/** Bytes of the instruction being run when it couldn't come from the decode cache, reused every time */
+	private final int[] scratchBytes = new int[4];
+	
 	public void softReset() {
 		//presumedStackTop = 0xFFFF;
 		regs.sp = 0xFFFE;
@@ -49,18 +63,75 @@ public class Sm83 {
 		softReset();
 	}
 	
+	/**
+	 * Saves the registers, including the timer and interrupt latches which live in them. Only code in
+	 * read-only regions is ever decoded or compiled, so nothing cached needs to go when state is loaded.
+	 */
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.putInt(regs.af);
+		out.putInt(regs.bc);
+		out.putInt(regs.de);
+		out.putInt(regs.hl);
+		out.putInt(regs.sp);
+		out.putInt(regs.pc);
+		out.putInt(regs.flags);
+		Snapshottable.putBoolean(out, regs.stopped);
+		Snapshottable.putBoolean(out, regs.waitForInterrupt);
+		out.putInt(regs.instructionAddress);
+		Snapshottable.putBoolean(out, regs.enableInterrupts);
+		out.putInt(regs.interruptFlags);
+		out.putInt(regs.timerCycle);
+		out.putInt(regs.timerControl);
+		out.putInt(regs.timerCounter);
+		out.putInt(regs.timerResetValue);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		regs.af = in.getInt();
+		regs.bc = in.getInt();
+		regs.de = in.getInt();
+		regs.hl = in.getInt();
+		regs.sp = in.getInt();
+		regs.pc = in.getInt();
+		regs.flags = in.getInt();
+		regs.stopped = Snapshottable.getBoolean(in);
+		regs.waitForInterrupt = Snapshottable.getBoolean(in);
+		regs.instructionAddress = in.getInt();
+		regs.enableInterrupts = Snapshottable.getBoolean(in);
+		regs.interruptFlags = in.getInt();
+		regs.timerCycle = in.getInt();
+		regs.timerControl = in.getInt();
+		regs.timerCounter = in.getInt();
+		regs.timerResetValue = in.getInt();
+	}
+	
+	/**
+	 * Turns the compiling tier on or off. While it's on, hot blocks of cartridge code are compiled
+	 * into JVM classes; see Sm83Recompiler. Turning it off throws all compiled code away.
+	 */
+	public void setRecompiling(boolean recompiling) {
+		if (recompiling==isRecompiling()) return;
+		recompiler = (recompiling) ? new Sm83Recompiler(this) : null;
+	}
+	
+	public boolean isRecompiling() {
+		return recompiler!=null;
+	}
+	
 	public int clock() {
 		
 		if (regs.enableInterrupts || regs.waitForInterrupt) {
-			int interruptEnable = bus.read(0xFFFF);
-			int interruptFlag = bus.read(0xFF0F);
+			int interruptEnable = bus.read8(0xFFFF);
+			int interruptFlag = bus.read8(0xFF0F);
 			int toFire = interruptEnable & interruptFlag;
 			if (toFire!=0) regs.waitForInterrupt = false;
 		}
 		
 		if (regs.enableInterrupts) {
-			int interruptEnable = bus.read(0xFFFF);
-			int interruptFlag = bus.read(0xFF0F);
+			int interruptEnable = bus.read8(0xFFFF);
+			int interruptFlag = bus.read8(0xFF0F);
 			int toFire = interruptEnable & interruptFlag;
 			//System.out.println("IME: "+regs.enableInterrupts+" IE: "+Debug.hexByte(interruptEnable)+"IF: "+Debug.hexByte(interruptFlag)+" Queue: "+toFire);
 			
@@ -79,90 +150,223 @@ public class Sm83 {
 		
 		int cycles = 0;
 		if (!regs.waitForInterrupt) {
-		
-			//Grab instruction
-			regs.instructionAddress = (int) regs.pc;
-			
-			int op = bus.read(regs.pc) & 0xFF;
-			regs.pc++;
-			instructionData[0] = op;
-			
-			boolean cb = op==0xCB;
-			if (cb) {
-				op = bus.read(regs.pc) & 0xFF;
-				regs.pc++;
-				instructionData[1] = op;
-			}
-			
-			SM83Opcode opcode = (cb) ? cbInstructionLogic[op] : instructionLogic[op];
-			
-			int opSize = (cb) ? CB_INSTRUCTION_SIZE[op] : INSTRUCTION_SIZE[op];
-			
-			for(int i=(cb)?2:1; i<opSize; i++) {
-				instructionData[i] = bus.read(regs.pc) & 0xFF;
-				regs.pc++;
-			}
-			
-			Operand destOperand = (cb) ? cbInstructionDestOperand[op] : instructionDestOperand[op];
-			Operand sourceOperand = (cb) ? cbInstructionSourceOperand[op] : instructionSourceOperand[op];
-			
-			if (opcode!=null) {
-				cycles = opcode.execute(instructionData, destOperand, sourceOperand, bus, regs);
-				if (debug) System.out.println(trace(instructionData));
-			} else {
-				System.out.println("NO INSTRUCTION LOGIC FOR 0x"+Integer.toHexString(op));
+			if (bus!=directBus) {
+				directBus = bus;
+				directPages = bus.getDirectPages();
+				if (recompiler!=null) recompiler.reset();
 			}
 			
-			//if (regs.pc==0x0100) debug = true;
-			//if (regs.pc==0xc2c0) debug = true;
-			//if (regs.pc==0xc1b9) debug = false;
-			//if (regs.pc==0xc342) debug = true;
-			
-			if (instructionData[0] == 0x18 && instructionData[1] == 0xfe) {
-				if (debug) System.out.println("Machine caught in intentional crash. Stopping.");
-				regs.stopped = true;
-			}
+			cycles = -1;
+			if (recompiler!=null && directPages!=null && !debug) cycles = recompiler.step(directPages, bus, regs);
+			if (cycles<0) cycles = interpret();
 		} else {
 			cycles = 4;
 		}
 		
-		//update timer
+		tickTimer(cycles);
+		
+		//GBC mode
+		//if (regs.pc==0x100) {
+		//	regs.setA(0x11);
+		//}
+		
+		return cycles;
+	}
+	
+	/**
+	 * Runs the timer forward by this many cycles, requesting the timer interrupt for each overflow.
+	 * Cores use this directly to fast-forward through stretches where the cpu is idle.
+	 */
+	public void tickTimer(int cycles) {
 		if ((regs.timerControl & 0x4) != 0) {
 			regs.timerCycle += cycles;
 			
-			int clockSelectBits = regs.timerControl & 0x03;
-			
-			int clockDivisor = 16;
-			switch(clockSelectBits) {
-			case 0: clockDivisor = 1024; break;
-			case 1: clockDivisor = 16; break;
-			case 2: clockDivisor = 64; break;
-			case 3: clockDivisor = 256; break;
-			}
-			
+			int clockDivisor = timerDivisor();
 			while (regs.timerCycle>=clockDivisor) {
 				regs.timerCounter++;
 				regs.timerCycle -= clockDivisor;
 				if (regs.timerCounter > 0xFF) {
 					//request the timer interrupt because we went over
 					
-					int interruptFlag = bus.read(0xFF0F);
+					int interruptFlag = bus.read8(0xFF0F);
 					interruptFlag |= 0x4;
-					bus.write(0xFF0F, interruptFlag);
+					bus.write8(0xFF0F, interruptFlag);
 					
 					regs.timerCounter = regs.timerResetValue;
 				}
 			}
 		}
+	}
+	
+	/**
+	 * @return how many cycles the timer has to run before it next overflows and requests its
+	 *         interrupt, or Integer.MAX_VALUE if it's stopped
+	 */
+	public int cyclesUntilTimerOverflow() {
+		if ((regs.timerControl & 0x4) == 0) return Integer.MAX_VALUE;
+		int ticks = 0x100 - regs.timerCounter;
+		return Math.max(ticks*timerDivisor() - regs.timerCycle, 1);
+	}
+	
+	private int timerDivisor() {
+		switch(regs.timerControl & 0x03) {
+		case 0: return 1024;
+		case 1: return 16;
+		case 2: return 64;
+		case 3: return 256;
+		default: return 16;
+		}
+	}
+	
+	/** Runs one instruction through the interpreter, decoding it first unless it's in the decode cache. */
+	private int interpret() {
+		int cycles = 0;
 		
-		//GBC mode
-		//if (regs.pc==0x100) {
-		//	regs.setA(0x11);
-		//}
+		//Grab instruction
+		regs.instructionAddress = (int) regs.pc;
+		
+		int[] bytes;
+		int length;
+		SM83Opcode logic;
+		Operand dest;
+		Operand src;
+		Sm83Instruction instruction = cachedInstructionAt(regs.pc);
+		if (instruction!=null) {
+			bytes = instruction.bytes;
+			length = instruction.length;
+			logic = instruction.logic;
+			dest = instruction.dest;
+			src = instruction.src;
+		} else {
+			//Code in RAM can change under us, so read it fresh into scratch and let the table's own operands pick the immediates out of it
+			bytes = scratchBytes;
+			length = fetchInstruction(regs.pc, bytes);
+			boolean cb = bytes[0]==0xCB;
+			int op = (cb) ? bytes[1] : bytes[0];
+			logic = (cb) ? cbInstructionLogic[op] : instructionLogic[op];
+			dest = (cb) ? cbInstructionDestOperand[op] : instructionDestOperand[op];
+			src = (cb) ? cbInstructionSourceOperand[op] : instructionSourceOperand[op];
+		}
+		regs.pc += length;
+		
+		if (logic!=null) {
+			cycles = logic.execute(bytes, dest, src, bus, regs);
+			if (debug) System.out.println(trace(bytes));
+		} else {
+			System.out.println("NO INSTRUCTION LOGIC FOR 0x"+Integer.toHexString((bytes[0]==0xCB) ? bytes[1] : bytes[0]));
+		}
+		
+		//if (regs.pc==0x0100) debug = true;
+		//if (regs.pc==0xc2c0) debug = true;
+		//if (regs.pc==0xc1b9) debug = false;
+		//if (regs.pc==0xc342) debug = true;
+		
+		if (bytes[0] == 0x18 && bytes[1] == 0xfe) {
+			if (debug) System.out.println("Machine caught in intentional crash. Stopping.");
+			regs.stopped = true;
+		}
 		
 		return cycles;
 	}
 	
+	/**
+	 * Finds the decoded instruction at address. Instructions which sit entirely inside one read-only
+	 * region are decoded once and cached against that region's array, so a bank switch naturally
+	 * brings in that bank's own cache. Anything else can't be cached, and gets null.
+	 */
+	private Sm83Instruction cachedInstructionAt(int address) {
+		if (directPages!=null && (address & ~0xFFFF)==0) {
+			DirectRegion region = directPages[address >> 8];
+			if (region!=null && region.readOnly) {
+				Sm83Instruction[] cache = decodeCache(region.data);
+				int offset = (address - region.base) & region.mask;
+				Sm83Instruction result = cache[offset];
+				if (result!=null) return result;
+				
+				//Don't cache an instruction whose operand runs off into some other memory
+				int[] bytes = new int[4];
+				int last = address + fetchInstruction(address, bytes) - 1;
+				DirectRegion lastRegion = (last<=0xFFFF) ? directPages[last >> 8] : null;
+				if (lastRegion==null || lastRegion.data!=region.data || lastRegion.base!=region.base) return null;
+				
+				result = decode(bytes);
+				cache[offset] = result;
+				return result;
+			}
+		}
+		
+		return null;
+	}
+	
+	private Sm83Instruction[] decodeCache(byte[] data) {
+		if (data==lastDecodedData) return lastDecodeCache;
+		
+		Sm83Instruction[] result = decodeCaches.get(data);
+		if (result==null) {
+			result = new Sm83Instruction[data.length];
+			decodeCaches.put(data, result);
+		}
+		lastDecodedData = data;
+		lastDecodeCache = result;
+		return result;
+	}
+	
+	/** Reads the instruction at address into bytes, zeroing whatever it doesn't use. @return its length */
+	private int fetchInstruction(int address, int[] bytes) {
+		bytes[0] = fetch(address);
+		int length = 1;
+		if (bytes[0]==0xCB) {
+			bytes[1] = fetch(address+1);
+			length = CB_INSTRUCTION_SIZE[bytes[1]];
+		} else {
+			length = Math.max(INSTRUCTION_SIZE[bytes[0]], 1);
+		}
+		
+		for(int i=(bytes[0]==0xCB)?2:1; i<bytes.length; i++) {
+			bytes[i] = (i<length) ? fetch(address+i) : 0;
+		}
+		
+		return length;
+	}
+	
+	/** Decodes an instruction whose bytes have already been read */
+	Sm83Instruction decode(int[] bytes) {
+		boolean cb = bytes[0]==0xCB;
+		int op = (cb) ? bytes[1] : bytes[0];
+		int length = (cb) ? CB_INSTRUCTION_SIZE[op] : Math.max(INSTRUCTION_SIZE[op], 1);
+		
+		SM83Opcode logic = (cb) ? cbInstructionLogic[op] : instructionLogic[op];
+		Operand dest = (cb) ? cbInstructionDestOperand[op] : instructionDestOperand[op];
+		Operand src = (cb) ? cbInstructionSourceOperand[op] : instructionSourceOperand[op];
+		
+		int immediate = 0;
+		if (isImmediate(dest)) {
+			immediate = dest.load(bytes);
+			dest = new ValueOperand(immediate);
+		}
+		if (isImmediate(src)) {
+			immediate = src.load(bytes);
+			src = new ValueOperand(immediate);
+		}
+		
+		return new Sm83Instruction(bytes, length, logic, dest, src, immediate);
+	}
+	
+	/** True for operands whose value comes straight out of the instruction bytes, with no side effects and nothing to store to */
+	private boolean isImmediate(Operand operand) {
+		return operand==a8 || operand==a16 || operand==r8;
+	}
+	
+	/** Reads an instruction byte, straight out of the backing array if the bus has one for this page. */
+	private int fetch(int address) {
+		if (directPages!=null && (address & ~0xFFFF)==0) {
+			DirectRegion region = directPages[address >> 8];
+			if (region!=null) return region.read(address);
+		}
+		
+		return bus.read8(address);
+	}
+	
 	public int readTimerControl() {
 		return regs.timerControl & 0x07;
 	}
@@ -192,7 +396,7 @@ public class Sm83 {
 		regs.enableInterrupts = false;
 		regs.waitForInterrupt = false; //take us out of HALT if we're in HALT
 		flagContents = flagContents & ~flag; //clear from IF so we don't double-interrupt
-		bus.write(0xFF0F, flagContents);
+		bus.write8(0xFF0F, flagContents);
 		
 		push16(bus, regs, regs.pc);
 		regs.pc = i & 0xFF;
@@ -268,7 +472,7 @@ public class Sm83 {
 	}
 	
 	public interface SM83Opcode {
-		public int execute(int[] inst, Operand dest, Operand src, Bus bus, Sm83Registers regs);
+		public int execute(int[] inst, Operand dest, Operand src, Bus16 bus, Sm83Registers regs);
 	}
 	
 	public static SM83Opcode NOP = (inst, dest, src, bus, regs) -> 4; // - - - -
@@ -1035,27 +1239,27 @@ public class Sm83 {
 		if (op1!=null) op1.postfix();
 	}
 	
-	private static final void push16(Bus bus, Sm83Registers regs, int value) {
+	private static final void push16(Bus16 bus, Sm83Registers regs, int value) {
 		int lo = value & 0xFF;
 		int hi = (value >> 8) & 0xFF;
 		push8(bus, regs, hi);
 		push8(bus, regs, lo);
 	}
 	
-	private static final int pop16(Bus bus, Sm83Registers regs) {
+	private static final int pop16(Bus16 bus, Sm83Registers regs) {
 		int lo = pop8(bus, regs);
 		int hi = pop8(bus, regs);
 		int value = (hi << 8) | lo;
 		return value;
 	}
 	
-	private static final void push8(Bus bus, Sm83Registers regs, int value) {
+	private static final void push8(Bus16 bus, Sm83Registers regs, int value) {
 		regs.sp = (regs.sp - 1) & 0xFFFF;
-		bus.write(regs.sp, value & 0xFF);
+		bus.write8(regs.sp, value & 0xFF);
 	}
 	
-	private static final int pop8(Bus bus, Sm83Registers regs) {
-		int value = bus.read(regs.sp) & 0xFF;
+	private static final int pop8(Bus16 bus, Sm83Registers regs) {
+		int value = bus.read8(regs.sp);
 		regs.sp = (regs.sp + 1) & 0xFFFF;
 		return value;
 	}
@@ -1096,13 +1300,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = c.load(instruction) | 0xFF00;
-			return bus.read(ind);
+			return bus.read8(ind);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = c.load(instruction) | 0xFF00;
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 		}
 		
 		@Override
@@ -1113,13 +1317,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = bc.load(instruction);
-			return bus.read(ind);
+			return bus.read8(ind);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = bc.load(instruction);
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 		}
 		
 		@Override
@@ -1130,13 +1334,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = de.load(instruction);
-			return bus.read(ind);
+			return bus.read8(ind);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = de.load(instruction);
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 		}
 		
 		@Override
@@ -1147,13 +1351,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = hl.load(instruction);
-			return bus.read(ind);
+			return bus.read8(ind);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = hl.load(instruction);
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 		}
 		
 		@Override
@@ -1164,13 +1368,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = hl.load(instruction);
-			return bus.read(ind);
+			return bus.read8(ind);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = hl.load(instruction);
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 		}
 		
 		@Override
@@ -1186,13 +1390,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = hl.load(instruction);
-			return bus.read(ind);
+			return bus.read8(ind);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = hl.load(instruction);
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 		}
 		
 		@Override
@@ -1278,13 +1482,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int addr = (instruction[1] & 0xFF) | 0xFF00;
-			return bus.read(addr) & 0xFF;
+			return bus.read8(addr);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int addr = (instruction[1] & 0xFF) | 0xFF00;
-			bus.write(addr, value & 0xFF);
+			bus.write8(addr, value & 0xFF);
 		}
 		
 		@Override
@@ -1325,13 +1529,13 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = a16.load(instruction);
-			return bus.read(ind) & 0xFF;
+			return bus.read8(ind);
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = a16.load(instruction);
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 		}
 		
 		@Override
@@ -1349,19 +1553,19 @@ public class Sm83 {
 		@Override
 		public int load(int[] instruction) {
 			int ind = a16.load(instruction);
-			int valLow = bus.read(ind) & 0xFF;
+			int valLow = bus.read8(ind);
 			ind = (ind + 1) & 0xFFFF;
-			int valHigh = bus.read(ind) & 0xFF;
+			int valHigh = bus.read8(ind);
 			return (valHigh << 8) | valLow;
 		}
 		
 		@Override
 		public void store(int[] instruction, int value) {
 			int ind = a16.load(instruction);
-			bus.write(ind, value & 0xFF);
+			bus.write8(ind, value & 0xFF);
 			ind = (ind + 1) & 0xFFFF;
 			value = (value >> 8) & 0xFF;
-			bus.write(ind, value);
+			bus.write8(ind, value);
 		}
 		
 		@Override
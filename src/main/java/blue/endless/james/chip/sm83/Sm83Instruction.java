@@ -0,0 +1,42 @@
+package blue.endless.james.chip.sm83;
+
+import blue.endless.james.chip.sm83.Sm83.SM83Opcode;
+import blue.endless.james.host.Operand;
+
+/**
+ * One decoded instruction: the handler and operands to run it with, and the bytes it was decoded
+ * from. Immediate operands (d8/a8, d16/a16, r8) are already resolved into ValueOperands, so running
+ * the instruction never has to pick its bytes apart again.
+ *
+ * <p>Instructions decoded from read-only memory are cached and run over and over, so nothing should
+ * ever modify one, including its bytes.
+ */
+public final class Sm83Instruction {
+	/** The opcode byte (0xCB for prefixed instructions), followed by the rest of the instruction */
+	public final int[] bytes;
+	/** Length in bytes, including any 0xCB prefix. Illegal opcodes are 1 byte long. */
+	public final int length;
+	/** May be null for illegal opcodes */
+	public final SM83Opcode logic;
+	public final Operand dest;
+	public final Operand src;
+	/** The value of the immediate operand, sign-extended for r8, or 0 if there isn't one */
+	public final int immediate;
+
+	public Sm83Instruction(int[] bytes, int length, SM83Opcode logic, Operand dest, Operand src, int immediate) {
+		this.bytes = bytes;
+		this.length = length;
+		this.logic = logic;
+		this.dest = dest;
+		this.src = src;
+		this.immediate = immediate;
+	}
+
+	public int getOpcode() {
+		return (bytes[0]==0xCB) ? bytes[1] : bytes[0];
+	}
+
+	public boolean isPrefixed() {
+		return bytes[0]==0xCB;
+	}
+}
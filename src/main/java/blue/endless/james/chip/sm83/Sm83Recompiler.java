@@ -0,0 +1,364 @@
+package blue.endless.james.chip.sm83;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import blue.endless.james.chip.sm83.ClassFileBuilder.Code;
+import blue.endless.james.host.Bus16;
+import blue.endless.james.host.DirectRegion;
+
+/**
+ * Optional compiling tier for the Sm83. Each instruction the cpu runs out of read-only memory
+ * (cartridge ROM, the boot rom) heats up its pc; once a pc gets hot, the straight-line block starting
+ * there is compiled into a hidden class with one tableswitch case per instruction.
+ *
+ * <p>Each case does exactly what one trip through the interpreter would: set instructionAddress and
+ * pc, then run the instruction. Simple register moves and immediate loads are written out as direct
+ * field accesses on Sm83Registers. Everything else calls the same SM83Opcode the interpreter would,
+ * but from static final fields, so the JIT sees one constant handler and operand pair per call site.
+ * The cpu still runs one instruction per clock(), so interrupts, the timer and the PPU all see the
+ * same interleaving they do under the interpreter.
+ *
+ * <p>Blocks are keyed by the array they were decoded from and their offset in it. When an MBC swaps
+ * banks, the page shows a different array, and we fall back to the interpreter until code in the new
+ * bank gets hot. Writable memory (WRAM, HRAM, save RAM) is never compiled, so writes can't make a
+ * block stale.
+ */
+class Sm83Recompiler {
+	/** How many times an instruction has to run before we compile the block starting at it */
+	public static final int HOT_THRESHOLD = 64;
+	public static final int MAX_INSTRUCTIONS = 32;
+
+	private static final String CLASS_NAME       = "blue/endless/james/chip/sm83/Sm83CompiledBlock";
+	private static final String BLOCK_INTERFACE  = "blue/endless/james/chip/sm83/Sm83Recompiler$CompiledBlock";
+	private static final String REGISTERS        = "blue/endless/james/chip/sm83/Sm83Registers";
+	private static final String OPCODE           = "blue/endless/james/chip/sm83/Sm83$SM83Opcode";
+	private static final String OPERAND          = "blue/endless/james/host/Operand";
+	private static final String RUN_DESCRIPTOR   = "(ILblue/endless/james/host/Bus16;L"+REGISTERS+";)I";
+	private static final String EXECUTE_DESCRIPTOR = "([IL"+OPERAND+";L"+OPERAND+";Lblue/endless/james/host/Bus16;L"+REGISTERS+";)I";
+
+	/* Locals in the generated run method */
+	private static final int LOCAL_INDEX = 1;
+	private static final int LOCAL_BUS = 2;
+	private static final int LOCAL_REGS = 3;
+
+	/** Jumps, calls, returns, and anything else which leaves the pc somewhere other than the next instruction */
+	private static final boolean[] ENDS_BLOCK = new boolean[256];
+	static {
+		int[] controlFlow = {
+				0x10, 0x76, //STOP, HALT
+				0x18, 0x20, 0x28, 0x30, 0x38, //JR
+				0xC2, 0xC3, 0xCA, 0xD2, 0xDA, 0xE9, //JP
+				0xC4, 0xCC, 0xCD, 0xD4, 0xDC, //CALL
+				0xC0, 0xC8, 0xC9, 0xD0, 0xD8, 0xD9, //RET, RETI
+				0xC7, 0xCF, 0xD7, 0xDF, 0xE7, 0xEF, 0xF7, 0xFF, //RST
+		};
+		for(int op : controlFlow) ENDS_BLOCK[op] = true;
+	}
+
+	/** The register pair field holding each 8-bit register, in opcode order: b, c, d, e, h, l, (hl), a */
+	private static final String[] REGISTER_FIELD = { "bc", "bc", "de", "de", "hl", "hl", null, "af" };
+	private static final boolean[] REGISTER_HIGH = { true, false, true, false, true, false, false, true };
+	private static final String[] PAIR_FIELD = { "bc", "de", "hl", "sp" };
+
+	interface CompiledBlock {
+		/** Runs instruction number index of this block, and returns its cycle count, or -1 if there's no such instruction */
+		int run(int index, Bus16 bus, Sm83Registers regs);
+	}
+
+	private static final class Block {
+		final byte[] data;
+		final int[] pcs;
+		final CompiledBlock code;
+
+		Block(byte[] data, int[] pcs, CompiledBlock code) {
+			this.data = data;
+			this.pcs = pcs;
+			this.code = code;
+		}
+	}
+
+	private static final class CodeArray {
+		final int[] heat;
+		final Block[] blocks;
+
+		CodeArray(int length) {
+			heat = new int[length];
+			blocks = new Block[length];
+		}
+	}
+
+	private final Sm83 cpu;
+	private final IdentityHashMap<byte[], CodeArray> arrays = new IdentityHashMap<>();
+	private byte[] lastData = null;
+	private CodeArray lastArray = null;
+	private Block current = null;
+	private int index = 0;
+	private boolean broken = false;
+
+	public Sm83Recompiler(Sm83 cpu) {
+		this.cpu = cpu;
+	}
+
+	/**
+	 * Runs the instruction at pc if it's been compiled, or heats it up if it could be.
+	 * @return the instruction's cycle count, or -1 if the interpreter needs to run it
+	 */
+	public int step(DirectRegion[] pages, Bus16 bus, Sm83Registers regs) {
+		int pc = regs.pc;
+		if ((pc & ~0xFFFF)!=0) return -1;
+		DirectRegion region = pages[pc >> 8];
+		if (region==null || !region.readOnly) {
+			current = null;
+			return -1;
+		}
+
+		Block block = current;
+		if (block==null || index>=block.pcs.length || block.pcs[index]!=pc || block.data!=region.data) {
+			block = lookup(region, pc);
+			current = block;
+			index = 0;
+			if (block==null) return -1;
+		}
+
+		int cycles = block.code.run(index, bus, regs);
+		index++;
+		return cycles;
+	}
+
+	/** Forgets which block we're in, e.g. because the cpu was pointed at a different bus */
+	public void reset() {
+		current = null;
+	}
+
+	private Block lookup(DirectRegion region, int pc) {
+		CodeArray code = codeArray(region.data);
+		int offset = (pc - region.base) & region.mask;
+		Block block = code.blocks[offset];
+		if (block!=null && block.pcs[0]==pc) return block; //mirrors share an offset but not a pc
+
+		if (++code.heat[offset] < HOT_THRESHOLD || broken) return null;
+		code.heat[offset] = 0;
+
+		block = compile(region, pc);
+		if (block!=null) code.blocks[offset] = block;
+		return block;
+	}
+
+	private CodeArray codeArray(byte[] data) {
+		if (data==lastData) return lastArray;
+
+		CodeArray result = arrays.get(data);
+		if (result==null) {
+			result = new CodeArray(data.length);
+			arrays.put(data, result);
+		}
+		lastData = data;
+		lastArray = result;
+		return result;
+	}
+
+	private Block compile(DirectRegion region, int pc) {
+		ArrayList<Sm83Instruction> instructions = new ArrayList<>();
+		int[] pcs = new int[MAX_INSTRUCTIONS];
+
+		int address = pc;
+		while(instructions.size()<MAX_INSTRUCTIONS && (address >> 8)==(pc >> 8)) {
+			int op = region.read(address);
+			int size = (op==0xCB) ? 2 : Sm83.INSTRUCTION_SIZE[op];
+			if (size==0) break; //illegal opcode; let the interpreter complain about it
+			if ((address & 0xFF) + size > 0x100) break; //operand spills onto the next page
+
+			int[] bytes = new int[4];
+			for(int i=0; i<size; i++) bytes[i] = region.read(address+i);
+
+			Sm83Instruction instruction = cpu.decode(bytes);
+			if (instruction.logic==null) break;
+			if (op==0x18 && bytes[1]==0xFE) break; //the interpreter watches for this one to stop the machine
+
+			pcs[instructions.size()] = address;
+			instructions.add(instruction);
+			address += size;
+
+			if (op!=0xCB && ENDS_BLOCK[op]) break;
+		}
+
+		if (instructions.isEmpty()) return null;
+
+		try {
+			CompiledBlock code = define(instructions, pcs);
+			return new Block(region.data, Arrays.copyOf(pcs, instructions.size()), code);
+		} catch (Throwable t) {
+			System.out.println("Couldn't compile block at 0x"+Integer.toHexString(pc)+"; falling back to the interpreter.");
+			t.printStackTrace();
+			broken = true;
+			return null;
+		}
+	}
+
+	private CompiledBlock define(ArrayList<Sm83Instruction> instructions, int[] pcs) throws Throwable {
+		ClassFileBuilder builder = new ClassFileBuilder(CLASS_NAME, "java/lang/Object", BLOCK_INTERFACE);
+		ArrayList<Object> constants = new ArrayList<>();
+		IdentityHashMap<Object, Integer> constantFields = new IdentityHashMap<>();
+		ArrayList<String> constantTypes = new ArrayList<>();
+
+		Code code = new Code();
+		code.load(Code.ILOAD, LOCAL_INDEX);
+		int switchStart = code.position();
+		code.op(Code.TABLESWITCH);
+		while((code.position() % 4)!=0) code.u1(0);
+		int defaultSlot = code.position();
+		code.u4(0);
+		code.u4(0);
+		code.u4(instructions.size() - 1);
+		int caseSlots = code.position();
+		for(int i=0; i<instructions.size(); i++) code.u4(0);
+
+		int[] targets = new int[instructions.size() + 1];
+		for(int i=0; i<instructions.size(); i++) {
+			Sm83Instruction instruction = instructions.get(i);
+
+			targets[i] = code.position();
+			code.patch4(caseSlots + i*4, targets[i] - switchStart);
+
+			//regs.instructionAddress = pc; regs.pc = pc + size;
+			code.load(Code.ALOAD, LOCAL_REGS).pushInt(builder, pcs[i]).op(Code.PUTFIELD, builder.fieldRef(REGISTERS, "instructionAddress", "I"));
+			code.load(Code.ALOAD, LOCAL_REGS).pushInt(builder, pcs[i] + instruction.length).op(Code.PUTFIELD, builder.fieldRef(REGISTERS, "pc", "I"));
+
+			if (!emitDirect(builder, code, instruction.bytes)) {
+				pushConstant(builder, code, constants, constantFields, constantTypes, instruction.logic, "L"+OPCODE+";");
+				pushConstant(builder, code, constants, constantFields, constantTypes, instruction.bytes, "[I");
+				pushConstant(builder, code, constants, constantFields, constantTypes, instruction.dest, "L"+OPERAND+";");
+				pushConstant(builder, code, constants, constantFields, constantTypes, instruction.src, "L"+OPERAND+";");
+				code.load(Code.ALOAD, LOCAL_BUS);
+				code.load(Code.ALOAD, LOCAL_REGS);
+				code.op(Code.INVOKEINTERFACE, builder.interfaceMethodRef(OPCODE, "execute", EXECUTE_DESCRIPTOR)).u1(6).u1(0);
+			}
+			code.op(Code.IRETURN);
+		}
+
+		targets[instructions.size()] = code.position();
+		code.patch4(defaultSlot, targets[instructions.size()] - switchStart);
+		code.op(Code.ICONST_M1).op(Code.IRETURN);
+
+		builder.method(ClassFileBuilder.ACC_PUBLIC, "run", RUN_DESCRIPTOR, 8, 4, code, targets);
+
+		Code init = new Code();
+		init.load(Code.ALOAD, 0);
+		init.op(Code.INVOKESPECIAL, builder.methodRef("java/lang/Object", "<init>", "()V"));
+		init.op(Code.RETURN);
+		builder.method(ClassFileBuilder.ACC_PUBLIC, "<init>", "()V", 1, 1, init);
+
+		//Pull the handlers and operands out of the class data into static finals, where the JIT can trust them
+		Code clinit = new Code();
+		clinit.op(Code.INVOKESTATIC, builder.methodRef("java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;"));
+		clinit.op(Code.LDC_W, builder.string("_"));
+		clinit.op(Code.LDC_W, builder.classRef("[Ljava/lang/Object;"));
+		clinit.op(Code.INVOKESTATIC, builder.methodRef("java/lang/invoke/MethodHandles", "classData", "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"));
+		clinit.op(Code.CHECKCAST, builder.classRef("[Ljava/lang/Object;"));
+		clinit.load(Code.ASTORE, 0);
+		for(int i=0; i<constants.size(); i++) {
+			String type = constantTypes.get(i);
+			String castType = (type.startsWith("L")) ? type.substring(1, type.length()-1) : type;
+			builder.field(ClassFileBuilder.ACC_PRIVATE | ClassFileBuilder.ACC_STATIC | ClassFileBuilder.ACC_FINAL, "k"+i, type);
+			clinit.load(Code.ALOAD, 0).pushInt(builder, i).op(Code.AALOAD);
+			clinit.op(Code.CHECKCAST, builder.classRef(castType));
+			clinit.op(Code.PUTSTATIC, builder.fieldRef(CLASS_NAME, "k"+i, type));
+		}
+		clinit.op(Code.RETURN);
+		builder.method(ClassFileBuilder.ACC_STATIC, "<clinit>", "()V", 3, 1, clinit);
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(builder.toByteArray(), constants.toArray(), true);
+		return (CompiledBlock) lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+	}
+
+	private static void pushConstant(ClassFileBuilder builder, Code code, ArrayList<Object> constants, IdentityHashMap<Object, Integer> fields, ArrayList<String> types, Object value, String type) {
+		if (value==null) {
+			code.op(Code.ACONST_NULL);
+			return;
+		}
+
+		Integer field = fields.get(value);
+		if (field==null) {
+			field = constants.size();
+			constants.add(value);
+			types.add(type);
+			fields.put(value, field);
+		}
+		code.op(Code.GETSTATIC, builder.fieldRef(CLASS_NAME, "k"+field, type));
+	}
+
+	/**
+	 * Writes out instructions which only shuffle registers as plain field accesses, leaving the cycle
+	 * count on the stack.
+	 * @return false if this instruction has to go through its SM83Opcode instead
+	 */
+	private static boolean emitDirect(ClassFileBuilder builder, Code code, int[] instruction) {
+		int op = instruction[0];
+
+		if (op==0x00) { //NOP
+			code.pushInt(builder, 4);
+			return true;
+		}
+
+		if ((op & 0xCF)==0x01) { //LD rr, d16
+			String pair = PAIR_FIELD[op >> 4];
+			code.load(Code.ALOAD, LOCAL_REGS).pushInt(builder, instruction[1] | (instruction[2] << 8));
+			code.op(Code.PUTFIELD, builder.fieldRef(REGISTERS, pair, "I"));
+			code.pushInt(builder, 4);
+			return true;
+		}
+
+		if ((op & 0xC7)==0x03) { //INC rr, DEC rr
+			String pair = PAIR_FIELD[(op >> 4) & 0x3];
+			int fieldRef = builder.fieldRef(REGISTERS, pair, "I");
+			code.load(Code.ALOAD, LOCAL_REGS).load(Code.ALOAD, LOCAL_REGS).op(Code.GETFIELD, fieldRef);
+			code.pushInt(builder, 1).op(((op & 0x08)==0) ? Code.IADD : Code.ISUB);
+			code.pushInt(builder, 0xFFFF).op(Code.IAND);
+			code.op(Code.PUTFIELD, fieldRef);
+			code.pushInt(builder, 4);
+			return true;
+		}
+
+		if ((op & 0xC7)==0x06 && op!=0x36) { //LD r, d8
+			int dest = (op >> 3) & 0x7;
+			storeRegister(builder, code, dest, () -> code.pushInt(builder, instruction[1]));
+			code.pushInt(builder, 4);
+			return true;
+		}
+
+		if (op>=0x40 && op<0x80) { //LD r, r
+			int dest = (op >> 3) & 0x7;
+			int src = op & 0x7;
+			if (dest==6 || src==6) return false; //(hl) and HALT go through the bus
+			storeRegister(builder, code, dest, () -> loadRegister(builder, code, src));
+			code.pushInt(builder, 4);
+			return true;
+		}
+
+		return false;
+	}
+
+	/** Leaves the value of an 8-bit register on the stack */
+	private static void loadRegister(ClassFileBuilder builder, Code code, int register) {
+		code.load(Code.ALOAD, LOCAL_REGS).op(Code.GETFIELD, builder.fieldRef(REGISTERS, REGISTER_FIELD[register], "I"));
+		if (REGISTER_HIGH[register]) code.pushInt(builder, 8).op(Code.ISHR);
+		code.pushInt(builder, 0xFF).op(Code.IAND);
+	}
+
+	/** Stores the (0..0xFF) value pushed by value into an 8-bit register, keeping the other half of its pair */
+	private static void storeRegister(ClassFileBuilder builder, Code code, int register, Runnable value) {
+		int fieldRef = builder.fieldRef(REGISTERS, REGISTER_FIELD[register], "I");
+		boolean high = REGISTER_HIGH[register];
+		code.load(Code.ALOAD, LOCAL_REGS);
+		code.load(Code.ALOAD, LOCAL_REGS).op(Code.GETFIELD, fieldRef);
+		code.pushInt(builder, (high) ? 0x00FF : 0xFF00).op(Code.IAND);
+		value.run();
+		if (high) code.pushInt(builder, 8).op(Code.ISHL);
+		code.op(Code.IOR);
+		code.op(Code.PUTFIELD, fieldRef);
+	}
+}
@@ -1,12 +1,15 @@
 package blue.endless.james.core.catboy;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-import blue.endless.james.host.Bus;
+import blue.endless.james.host.Bus16;
+import blue.endless.james.host.DirectRegion;
+import blue.endless.james.host.Snapshottable;
 
-public abstract class DmgMapper implements Bus {
+public abstract class DmgMapper implements Bus16, Snapshottable {
 	public static final int BANK_LENGTH    = 0x4000;
 	public static final int BANK_TWO_START = BANK_LENGTH;
 	public static final int BANK_TWO_END   = BANK_TWO_START + BANK_LENGTH;
@@ -33,6 +36,8 @@ public abstract class DmgMapper implements Bus {
 		return result;
 	}
 	
+	protected final DirectRegion[] directPages = new DirectRegion[256];
+	
 	@Override
 	public boolean mapsRead(long address) {
 		if (address >= 0x0000 && address < 0x8000) return true;
@@ -40,6 +45,21 @@ public abstract class DmgMapper implements Bus {
 		return false;
 	}
 	
+	@Override
+	public DirectRegion[] getDirectPages() {
+		return directPages;
+	}
+	
+	/** Creates a region for an array mapped at start, and points every page from start to end at it. */
+	protected DirectRegion mapDirect(byte[] data, int start, int end, boolean readOnly) {
+		DirectRegion region = new DirectRegion(data, start, data.length - 1);
+		region.readOnly = readOnly;
+		for(int page=start >> 8; page<end >> 8; page++) {
+			directPages[page] = region;
+		}
+		return region;
+	}
+	
 	@Override
 	public boolean mapsWrite(long address) {
 		if (address >= 0x0000 && address < 0x8000) return true;
@@ -47,6 +67,16 @@ public abstract class DmgMapper implements Bus {
 		return false;
 	}
 	
+	@Override
+	public int read(long address) {
+		return read8((int) address);
+	}
+	
+	@Override
+	public void write(long address, int value) {
+		write8((int) address, value);
+	}
+	
 	public boolean isRamDirty() {
 		return false;
 	}
@@ -59,6 +89,15 @@ public abstract class DmgMapper implements Bus {
 		return null;
 	}
 	
+	/** Saves cart RAM and bank selections. Carts with neither don't need to override this. */
+	@Override
+	public void saveState(ByteBuffer out) {
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+	}
+	
 	public static class None extends DmgMapper {
 		private byte[] lowBank;
 		private byte[] highBank;
@@ -66,6 +105,8 @@ public abstract class DmgMapper implements Bus {
 		public None(List<byte[]> banks) {
 			this.lowBank = banks.get(0);
 			this.highBank = banks.get(1);
+			mapDirect(lowBank, 0x0000, BANK_TWO_START, true);
+			mapDirect(highBank, BANK_TWO_START, BANK_TWO_END, true);
 		}
 		
 		@Override
@@ -81,20 +122,20 @@ public abstract class DmgMapper implements Bus {
 		
 
 		@Override
-		public int read(long address) {
+		public int read8(int address) {
 			if (address >= 0x0000 && address < BANK_TWO_START) {
-				return lowBank[(int) address % BANK_LENGTH];
+				return lowBank[address % BANK_LENGTH] & 0xFF;
 			} else if (address >= BANK_TWO_START && address < BANK_TWO_END) {
-				int localAddress = (int) address - BANK_TWO_START;
-				return highBank[localAddress % BANK_LENGTH];
+				int localAddress = address - BANK_TWO_START;
+				return highBank[localAddress % BANK_LENGTH] & 0xFF;
 			}
 			
 			return 0xFF;
 		}
 
 		@Override
-		public void write(long address, int value) {
-			System.out.println("ROM WRITE TO NONEXISTANT MemoryBankController: 0x"+Integer.toHexString(value)+" at (0x"+Integer.toHexString((int) address)+")");
+		public void write8(int address, int value) {
+			System.out.println("ROM WRITE TO NONEXISTANT MemoryBankController: 0x"+Integer.toHexString(value)+" at (0x"+Integer.toHexString(address)+")");
 		}
 	}
 	
@@ -102,6 +143,7 @@ public abstract class DmgMapper implements Bus {
 		private List<byte[]> banks;
 		private byte[] saveRam = new byte[RAM_LENGTH];
 		private int selectedBank = 1;
+		private DirectRegion bankRegion;
 		private boolean ramEnable;
 		private boolean ramDirtyFlag = false;
 		
@@ -109,25 +151,34 @@ public abstract class DmgMapper implements Bus {
 			this.banks = banks;
 			this.selectedBank = 1;
 			Arrays.fill(saveRam, (byte) 0xFF);
+			
+			mapDirect(banks.get(0), 0x0000, BANK_TWO_START, true);
+			bankRegion = mapDirect(banks.get(selectedBank % banks.size()), BANK_TWO_START, BANK_TWO_END, true);
+			mapDirect(saveRam, RAM_START, RAM_END, false);
+		}
+		
+		/** Points the switchable bank at selectedBank. Bank numbers past the end of the ROM wrap, like the unconnected high bank lines on a real cart. */
+		private void updateBank() {
+			bankRegion.data = banks.get(selectedBank % banks.size());
 		}
 
 		@Override
-		public int read(long address) {
+		public int read8(int address) {
 			if (address >= 0x0000 && address < BANK_TWO_START) {
-				return banks.get(0)[(int) address % BANK_LENGTH];
+				return banks.get(0)[address % BANK_LENGTH] & 0xFF;
 			} else if (address >= BANK_TWO_START && address < BANK_TWO_END) {
-				int localAddress = (int) address - BANK_TWO_START;
-				return banks.get(selectedBank)[localAddress % BANK_LENGTH];
+				int localAddress = address - BANK_TWO_START;
+				return bankRegion.data[localAddress % BANK_LENGTH] & 0xFF;
 			} else if (address >= RAM_START && address < RAM_END) {
-				int localAddress = (int) address - RAM_START;
-				return saveRam[localAddress % RAM_LENGTH];
+				int localAddress = address - RAM_START;
+				return saveRam[localAddress % RAM_LENGTH] & 0xFF;
 			}
 			
 			return 0xFF;
 		}
 
 		@Override
-		public void write(long address, int value) {
+		public void write8(int address, int value) {
 			if (address >= 0x0000 && address < 0x2000) {
 				ramEnable = (value & 0x0F) == 0x0A;
 				//System.out.println((ramEnable) ? "RAM Enabled" : "RAM disabled");
@@ -136,6 +187,7 @@ public abstract class DmgMapper implements Bus {
 				if (value==0) value=1; //Cannot select bank 0 (or 0x20, or 0x40, or 0x60)
 				selectedBank = selectedBank & 0b1100000;
 				selectedBank = selectedBank | value;
+				updateBank();
 				//System.out.println("Swapped bank to "+selectedBank);
 			} else if (address >= 0x4000 && address < 0x6000) {
 				//TODO: RAM Bank number / ROM bank upper 2 bits
@@ -143,11 +195,11 @@ public abstract class DmgMapper implements Bus {
 				//TODO: ROM/RAM Mode Select
 			} else if (address >= RAM_START && address < RAM_END) {
 				if (!ramEnable) return;
-				int localAddress = (int) address - RAM_START;
+				int localAddress = address - RAM_START;
 				saveRam[localAddress % RAM_LENGTH] = (byte) value;
 				ramDirtyFlag = true;
 			} else {
-				System.out.println("ROM WRITE: 0x"+Integer.toHexString(value)+" at (0x"+Integer.toHexString((int) address)+")");
+				System.out.println("ROM WRITE: 0x"+Integer.toHexString(value)+" at (0x"+Integer.toHexString(address)+")");
 			}
 		}
 		
@@ -165,12 +217,30 @@ public abstract class DmgMapper implements Bus {
 		public byte[] getSaveRam() {
 			return saveRam;
 		}
+		
+		@Override
+		public void saveState(ByteBuffer out) {
+			out.put(saveRam);
+			out.putInt(selectedBank);
+			Snapshottable.putBoolean(out, ramEnable);
+		}
+		
+		/** Save RAM probably doesn't match the battery file any more, so it's marked dirty */
+		@Override
+		public void loadState(ByteBuffer in) {
+			in.get(saveRam);
+			selectedBank = in.getInt();
+			ramEnable = Snapshottable.getBoolean(in);
+			ramDirtyFlag = true;
+			updateBank();
+		}
 	}
 	
 	public static class Mbc5 extends DmgMapper {
 		private List<byte[]> banks;
 		private byte[] saveRam = new byte[RAM_LENGTH];
 		private int selectedBank = 1;
+		private DirectRegion bankRegion;
 		private int ramBank = 0;
 		private boolean ramEnable;
 		private boolean ramDirtyFlag = false;
@@ -179,25 +249,34 @@ public abstract class DmgMapper implements Bus {
 			this.banks = banks;
 			this.selectedBank = 1;
 			Arrays.fill(saveRam, (byte) 0xFF);
+			
+			mapDirect(banks.get(0), 0x0000, BANK_TWO_START, true);
+			bankRegion = mapDirect(banks.get(selectedBank % banks.size()), BANK_TWO_START, BANK_TWO_END, true);
+			mapDirect(saveRam, RAM_START, RAM_END, false);
+		}
+		
+		/** Points the switchable bank at selectedBank. Bank numbers past the end of the ROM wrap, like the unconnected high bank lines on a real cart. */
+		private void updateBank() {
+			bankRegion.data = banks.get(selectedBank % banks.size());
 		}
 
 		@Override
-		public int read(long address) {
+		public int read8(int address) {
 			if (address >= 0x0000 && address < BANK_TWO_START) {
-				return banks.get(0)[(int) address % BANK_LENGTH];
+				return banks.get(0)[address % BANK_LENGTH] & 0xFF;
 			} else if (address >= BANK_TWO_START && address < BANK_TWO_END) {
-				int localAddress = (int) address - BANK_TWO_START;
-				return banks.get(selectedBank)[localAddress % BANK_LENGTH];
+				int localAddress = address - BANK_TWO_START;
+				return bankRegion.data[localAddress % BANK_LENGTH] & 0xFF;
 			} else if (address >= RAM_START && address < RAM_END) {
-				int localAddress = (int) address - RAM_START;
-				return saveRam[localAddress % RAM_LENGTH];
+				int localAddress = address - RAM_START;
+				return saveRam[localAddress % RAM_LENGTH] & 0xFF;
 			}
 			
 			return 0xFF;
 		}
 
 		@Override
-		public void write(long address, int value) {
+		public void write8(int address, int value) {
 			if (address >= 0x0000 && address < 0x2000) {
 				ramEnable = (value & 0x0F) == 0x0A;
 				//System.out.println((ramEnable) ? "RAM Enabled" : "RAM disabled");
@@ -205,22 +284,24 @@ public abstract class DmgMapper implements Bus {
 				value = value & 0xFF; //lower 8 bits of bank number
 				selectedBank = selectedBank & 0xFF00;
 				selectedBank = selectedBank | value;
+				updateBank();
 				//System.out.println("Swapped bank to "+selectedBank);
 			} else if (address >= 0x3000 && address < 0x4000) {
 				value = value & 0x01;
 				selectedBank = selectedBank & 0xFF;
 				selectedBank = selectedBank | value;
+				updateBank();
 				//System.out.println("Swapped bank to "+selectedBank);
 			} else if (address >= 0x4000 && address < 0x6000) {
 				ramBank = value & 0x0F;
 				//System.out.println("RAM Bank is now "+ramBank);
 			} else if (address >= RAM_START && address < RAM_END) {
 				if (!ramEnable) return;
-				int localAddress = (int) address - RAM_START;
+				int localAddress = address - RAM_START;
 				saveRam[localAddress % RAM_LENGTH] = (byte) value;
 				ramDirtyFlag = true;
 			} else {
-				System.out.println("ROM WRITE: 0x"+Integer.toHexString(value)+" at (0x"+Integer.toHexString((int) address)+")");
+				System.out.println("ROM WRITE: 0x"+Integer.toHexString(value)+" at (0x"+Integer.toHexString(address)+")");
 			}
 		}
 		
@@ -238,5 +319,24 @@ public abstract class DmgMapper implements Bus {
 		public byte[] getSaveRam() {
 			return saveRam;
 		}
+		
+		@Override
+		public void saveState(ByteBuffer out) {
+			out.put(saveRam);
+			out.putInt(selectedBank);
+			out.putInt(ramBank);
+			Snapshottable.putBoolean(out, ramEnable);
+		}
+		
+		/** Save RAM probably doesn't match the battery file any more, so it's marked dirty */
+		@Override
+		public void loadState(ByteBuffer in) {
+			in.get(saveRam);
+			selectedBank = in.getInt();
+			ramBank = in.getInt();
+			ramEnable = Snapshottable.getBoolean(in);
+			ramDirtyFlag = true;
+			updateBank();
+		}
 	}
 }
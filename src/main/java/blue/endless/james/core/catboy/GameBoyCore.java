@@ -1,16 +1,26 @@
 package blue.endless.james.core.catboy;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 import blue.endless.james.chip.DmgPpu;
 import blue.endless.james.chip.sm83.Sm83;
+import blue.endless.james.host.Bus;
 import blue.endless.james.host.ControlSet;
 import blue.endless.james.host.Core;
 import blue.endless.james.host.Debug;
 import blue.endless.james.host.MappedBus;
+import blue.endless.james.host.Scheduler;
+import blue.endless.james.host.Snapshottable;
 import blue.endless.tinyevents.impl.ConsumerEvent;
 
-public class GameBoyCore implements Core {
+public class GameBoyCore implements Core, Snapshottable {
+	private static final int SNAPSHOT_MAGIC = 0x444D4700; //"DMG"
+	private static final int SNAPSHOT_VERSION = 3;
+	/** Longer serial lines get printed in pieces this long */
+	private static final int SERIAL_LINE_LENGTH = 128;
+	
 	public Sm83 cpu = new Sm83();
 	private DmgPpu ppu = new DmgPpu();
 	private MappedBus cpuBus = new MappedBus();
@@ -19,15 +29,39 @@ public class GameBoyCore implements Core {
 	private byte[] oam = new byte[0xA0];
 	private byte[] ram = new byte[0x2000];
 	private byte[] bios = null;
+	private boolean biosMapped = false;
 	private byte[] hram = new byte[0xFFFE-0xFF80];
 	private byte[] cart = null;
+	private DmgMapper mapper = null;
 	private int serialShiftRegister = 0xFF;
-	public String serialConsoleLine = "";
+	/** How many bytes have gone out the serial port. Saved, so a loaded state knows where in serialOutput it is */
+	private long serialSent = 0L;
+	/** The line being sent, up to its newline. Saved, and always saved whole, so snapshots stay the same size */
+	private byte[] serialLine = new byte[SERIAL_LINE_LENGTH];
+	private int serialLineLength = 0;
+	/**
+	 * Everything ever sent out the serial port, for test roms which report their results there, and how
+	 * much of it has been echoed as "Serial Console>" lines. Neither is saved: after run-ahead or rewind
+	 * loads an earlier state, bytes coming back around are just checked against what's already here,
+	 * and lines aren't printed twice.
+	 */
+	private byte[] serialOutput = new byte[256];
+	private int serialLength = 0;
+	private long serialPrinted = 0L;
 	private byte[] interruptEnable = new byte[1];
 	private byte[] interruptFlag = new byte[1];
 	private ControlSet controls = null;
 	private boolean isJoypadAction = false;
 	private boolean isJoypadDirection = false;
+	/** Counts ppu dots. The ppu is only brought up to date when its next event comes due, or when the cpu looks at it */
+	private Scheduler scheduler = new Scheduler();
+	private Scheduler.Event ppuEvent = new Scheduler.Event(this::onPpuEvent);
+	private long ppuSyncedTo = 0L;
+	/** The most we'll skip in one go when nothing at all can wake the cpu up: one frame */
+	private static final int FRAME_CYCLES = 154*457/2;
+	private int pollLoop = -1;
+	private long pollLoopStart = 0L;
+	private int pollInstructions = 0;
 	
 	public GameBoyCore() {
 		cpuBus.setUnmappedValue(0xFF);
@@ -44,11 +78,11 @@ public class GameBoyCore implements Core {
 		cpuBus.map(cpu::readTimerResetValue, cpu::writeTimerResetValue, 0xFF06);
 		cpuBus.map(cpu::readTimerControl, cpu::writeTimerControl, 0xFF07);
 		cpuBus.map(interruptFlag, 0xFF0F);
-		cpuBus.map(ppu::readLcdControl, ppu::writeLcdControl, 0xFF40);
-		cpuBus.map(ppu::readLcdStatus, ppu::writeLcdStatus, 0xFF41);
+		cpuBus.map(ppu::readLcdControl, this::writeLcdControl, 0xFF40);
+		cpuBus.map(this::readLcdStatus, ppu::writeLcdStatus, 0xFF41);
 		cpuBus.map(ppu::readSCY, ppu::writeSCY, 0xFF42);
 		cpuBus.map(ppu::readSCX, ppu::writeSCX, 0xFF43);
-		cpuBus.map(ppu::readLcdY, 0xFF44);
+		cpuBus.map(this::readLcdY, 0xFF44);
 		cpuBus.map(this::writeOamDma, 0xFF46);
 		cpuBus.map(ppu::readBGP, ppu::writeBGP, 0xFF47);
 		cpuBus.map(ppu::writeOBP0, 0xFF48);
@@ -70,15 +104,154 @@ public class GameBoyCore implements Core {
 		ppuBus.map(interruptFlag, 0xFF0F);
 		ppuBus.map(interruptEnable, 0xFFFF);
 		ppu.bus = ppuBus;
+		ppu.vram = vram;
+		ppu.oam = oam;
 	}
 	
 	public int clock() {
 		if (cpu.regs.stopped) System.out.println("Stopped.");
+		if (cpu.regs.waitForInterrupt) {
+			int skipped = skipHalt();
+			if (skipped>0) return skipped;
+		}
+		
 		int cycles = cpu.clock();
-		for(int i=0; i<cycles*2; i++) ppu.clock();
+		scheduler.advance(cycles*2);
+		pollInstructions++;
+		
+		//A taken JR NZ,-6 lands 4 bytes before itself
+		if (cpu.regs.pc==cpu.regs.instructionAddress-4) cycles += skipLyPoll();
+		
+		return cycles;
+	}
+	
+	/**
+	 * If the cpu is halted and nothing has woken it yet, jumps straight to the HALT step in which
+	 * something will: the timer overflowing or vblank starting, whichever is enabled in IE and comes
+	 * first. The timer and ppu are run forward exactly as if the cpu had sat there 4 cycles at a time.
+	 * @return the number of cycles skipped, or 0 if the cpu is about to wake up anyway
+	 */
+	private int skipHalt() {
+		if ((cpuBus.read8(0xFFFF) & cpuBus.read8(0xFF0F))!=0) return 0;
+		
+		long untilInterrupt = Math.min(cyclesUntilInterrupt(), FRAME_CYCLES);
+		int cycles = (int) ((untilInterrupt + 3) / 4) * 4;
+		if (cycles<=4) return 0;
+		
+		cpu.tickTimer(cycles);
+		scheduler.advance(cycles*2);
+		return cycles;
+	}
+	
+	/**
+	 * Checks whether the cpu has just gone around a {@code LDH A,($44); CP n; JR NZ,-6} loop, waiting
+	 * for LY to reach line n. Once it's been around twice (so we know what one trip costs), the loop
+	 * is skipped forward to the last trip before LY matches. That trip runs for real, so A and F come
+	 * out exactly as they would have. If interrupts are on, we stop short of anything which could
+	 * raise one.
+	 * @return the number of cycles skipped
+	 */
+	private int skipLyPoll() {
+		int loop = cpu.regs.pc;
+		if (!isLyPoll(loop)) {
+			pollLoop = -1;
+			return 0;
+		}
+		
+		long now = scheduler.now();
+		boolean knownLoop = (loop==pollLoop && pollInstructions==3);
+		long dotsPerTrip = now - pollLoopStart;
+		pollLoop = loop;
+		pollLoopStart = now;
+		pollInstructions = 0;
+		if (!knownLoop) return 0;
+		
+		syncPpu();
+		int line = cpuBus.read8(loop+3);
+		if (ppu.readLcdY()==line) return 0; //The next trip is the last one
+		int untilLine = ppu.dotsUntilLine(line);
+		long trips = (untilLine<0) ? Long.MAX_VALUE : (untilLine + dotsPerTrip - 1) / dotsPerTrip;
+		if (cpu.regs.enableInterrupts) {
+			long untilInterrupt = cyclesUntilInterrupt();
+			if (untilInterrupt!=Long.MAX_VALUE) trips = Math.min(trips, (untilInterrupt*2 - 1) / dotsPerTrip);
+		}
+		trips = Math.min(trips, FRAME_CYCLES*2 / dotsPerTrip);
 		
+		long skip = trips - 1;
+		if (skip<=0) return 0;
+		
+		int cycles = (int) (skip * dotsPerTrip / 2);
+		cpu.tickTimer(cycles);
+		scheduler.advance(cycles*2);
+		pollLoopStart = scheduler.now();
 		return cycles;
 	}
+	
+	private boolean isLyPoll(int address) {
+		return
+				cpuBus.read8(address  )==0xF0 && cpuBus.read8(address+1)==0x44 && //LDH A,($44)
+				cpuBus.read8(address+2)==0xFE &&                                    //CP n
+				cpuBus.read8(address+4)==0x20 && cpuBus.read8(address+5)==0xFA;     //JR NZ,-6
+	}
+	
+	/**
+	 * @return how many cycles until the timer or vblank (whichever are enabled in IE) next raise their
+	 *         interrupt, counted so that the interrupt is raised during the cycle this many cycles from
+	 *         now; 0 if an interrupt is already pending; or Long.MAX_VALUE if nothing can raise one.
+	 */
+	private long cyclesUntilInterrupt() {
+		int interruptEnable = cpuBus.read8(0xFFFF);
+		if ((interruptEnable & cpuBus.read8(0xFF0F))!=0) return 0; //Already waiting to be taken
+		
+		long result = Long.MAX_VALUE;
+		if ((interruptEnable & 0x04)!=0) {
+			int timer = cpu.cyclesUntilTimerOverflow();
+			if (timer!=Integer.MAX_VALUE) result = timer;
+		}
+		if ((interruptEnable & 0x01)!=0) {
+			syncPpu();
+			int dots = ppu.dotsUntilLine(144);
+			if (dots>=0) result = Math.min(result, (dots + 1) / 2);
+		}
+		return result;
+	}
+	
+	/** Brings the ppu up to the current dot */
+	private void syncPpu() {
+		long now = scheduler.now();
+		ppu.advance((int) (now - ppuSyncedTo));
+		ppuSyncedTo = now;
+	}
+	
+	private void schedulePpu() {
+		int dots = ppu.dotsUntilEvent();
+		if (dots<0) {
+			scheduler.cancel(ppuEvent);
+		} else {
+			scheduler.scheduleIn(ppuEvent, dots);
+		}
+	}
+	
+	private void onPpuEvent() {
+		syncPpu();
+		schedulePpu();
+	}
+	
+	private void writeLcdControl(int value) {
+		syncPpu();
+		ppu.writeLcdControl(value);
+		schedulePpu();
+	}
+	
+	private int readLcdStatus() {
+		syncPpu();
+		return ppu.readLcdStatus();
+	}
+	
+	private int readLcdY() {
+		syncPpu();
+		return ppu.readLcdY();
+	}
 
 	@Override
 	public int getFrameWidth() {
@@ -94,12 +267,24 @@ public class GameBoyCore implements Core {
 	public ConsumerEvent<int[]> onPresentFrame() {
 		return ppu.onPresentFrame();
 	}
+	
+	@Override
+	public boolean setRenderTarget(int[] target) {
+		if (target.length!=getFrameWidth()*getFrameHeight()) return false;
+		ppu.setScreen(target);
+		return true;
+	}
 
 	@Override
 	public void softReset() {
 		cpu.softReset();
+		syncPpu();
 		ppu.reset();
-		cpuBus.priorityMap(bios, 0);
+		schedulePpu();
+		if (!biosMapped) {
+			cpuBus.priorityMap(bios, 0);
+			biosMapped = true;
+		}
 	}
 
 	@Override
@@ -118,15 +303,88 @@ public class GameBoyCore implements Core {
 		//System.out.println("Write to UNMAP ROM: 0x"+Integer.toHexString(value));
 		if (value==0x01) {
 			cpuBus.unmap(bios);
+			biosMapped = false;
 			ppu.writeSCY(0); //FOR DEBUG
 		}
 	}
 	
+	/**
+	 * Saves the cpu, ppu, all of the console's memory, and the cartridge's state. The ppu is synced
+	 * first, so the scheduler's clock doesn't need saving: a loaded core starts over from dot zero
+	 * with nothing owed.
+	 */
+	@Override
+	public void saveState(ByteBuffer out) {
+		syncPpu();
+		Snapshottable.putHeader(out, SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+		cpu.saveState(out);
+		ppu.saveState(out);
+		out.put(vram);
+		out.put(oam);
+		out.put(ram);
+		out.put(hram);
+		out.put(interruptEnable);
+		out.put(interruptFlag);
+		out.putInt(serialShiftRegister);
+		out.putLong(serialSent);
+		out.putInt(serialLineLength);
+		out.put(serialLine);
+		Snapshottable.putBoolean(out, isJoypadAction);
+		Snapshottable.putBoolean(out, isJoypadDirection);
+		Snapshottable.putBoolean(out, biosMapped);
+		if (mapper!=null) mapper.saveState(out);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		Snapshottable.checkHeader(in, SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+		cpu.loadState(in);
+		ppu.loadState(in);
+		in.get(vram);
+		in.get(oam);
+		in.get(ram);
+		in.get(hram);
+		in.get(interruptEnable);
+		in.get(interruptFlag);
+		serialShiftRegister = in.getInt();
+		serialSent = in.getLong();
+		serialLineLength = in.getInt();
+		in.get(serialLine);
+		isJoypadAction = Snapshottable.getBoolean(in);
+		isJoypadDirection = Snapshottable.getBoolean(in);
+		boolean wasBiosMapped = Snapshottable.getBoolean(in);
+		if (mapper!=null) mapper.loadState(in);
+		
+		if (wasBiosMapped && !biosMapped && bios!=null) {
+			cpuBus.priorityMap(bios, 0);
+			biosMapped = true;
+		} else if (!wasBiosMapped && biosMapped) {
+			cpuBus.unmap(bios);
+			biosMapped = false;
+		}
+		
+		scheduler.reset();
+		ppuSyncedTo = 0L;
+		schedulePpu();
+		pollLoop = -1;
+		pollInstructions = 0;
+	}
+	
 	@Override
 	public void connectControls(ControlSet controls) {
 		this.controls = controls;
 	}
 	
+	@Override
+	public Bus getCpuBus() {
+		return cpuBus;
+	}
+	
+	public String getSerialOutput() {
+		//Only up to where this state is; run-ahead may have been further
+		return new String(serialOutput, 0, (int) Math.min(serialSent, serialLength), StandardCharsets.ISO_8859_1);
+	}
+	
 	public boolean isStopped() {
 		return cpu.regs.stopped;
 	}
@@ -164,12 +422,15 @@ public class GameBoyCore implements Core {
 	
 	public void writeSerialControl(int i) {
 		if (i==0x81) {
-			if (serialShiftRegister==0x0A) {
-				System.out.println("Serial Console> "+serialConsoleLine);
-				serialConsoleLine = "";
-			} else {
-				serialConsoleLine = serialConsoleLine + (char) serialShiftRegister;
+			recordSerialOutput((byte) serialShiftRegister);
+			if (serialShiftRegister==0x0A || serialLineLength==SERIAL_LINE_LENGTH) {
+				if (serialSent>serialPrinted) {
+					System.out.println("Serial Console> "+new String(serialLine, 0, serialLineLength, StandardCharsets.ISO_8859_1));
+					serialPrinted = serialSent;
+				}
+				serialLineLength = 0;
 			}
+			if (serialShiftRegister!=0x0A) serialLine[serialLineLength++] = (byte) serialShiftRegister;
 			//System.out.println("$"+Integer.toHexString((int) cpu.regs.pc)+" Serial control out: "+((char) serialShiftRegister));
 			serialShiftRegister = 0xFF;
 		} else {
@@ -177,21 +438,44 @@ public class GameBoyCore implements Core {
 		}
 	}
 	
+	/**
+	 * Adds a byte to serialOutput, unless a loaded state is sending it again. If a rewound state sends
+	 * something different, whatever came after it never happened, so it's dropped and printed afresh.
+	 */
+	private void recordSerialOutput(byte value) {
+		long at = serialSent++;
+		if (at<serialLength) {
+			if (serialOutput[(int) at]==value) return;
+			serialLength = (int) at;
+			serialPrinted = Math.min(serialPrinted, at);
+		}
+		while(serialLength<at) appendSerialOutput((byte) 0); //From a state saved somewhere else; nothing we can show
+		appendSerialOutput(value);
+	}
+	
+	private void appendSerialOutput(byte value) {
+		if (serialLength==serialOutput.length) serialOutput = Arrays.copyOf(serialOutput, serialLength*2);
+		serialOutput[serialLength++] = value;
+	}
+	
+	/** ControlSet's Up, Down, Left, Right bits, rearranged into the joypad register's Right, Left, Up, Down */
+	private static final int[] JOYPAD_DIRECTIONS = new int[16];
+	static {
+		for(int i=0; i<16; i++) {
+			if ((i & 0x01)!=0) JOYPAD_DIRECTIONS[i] |= 0x04;
+			if ((i & 0x02)!=0) JOYPAD_DIRECTIONS[i] |= 0x08;
+			if ((i & 0x04)!=0) JOYPAD_DIRECTIONS[i] |= 0x02;
+			if ((i & 0x08)!=0) JOYPAD_DIRECTIONS[i] |= 0x01;
+		}
+	}
+	
 	public int readJoypad() {
 		int value = 0xFF;
 		if (controls!=null) {
-			if (isJoypadAction) {
-				if (controls.get("A")) value &= ~0x01;
-				if (controls.get("B")) value &= ~0x02;
-				if (controls.get("Select")) value &= ~0x04;
-				if (controls.get("Start")) value &= ~0x08;
-			}
-			if (isJoypadDirection) {
-				if (controls.get("Right")) value &= ~0x01;
-				if (controls.get("Left")) value &= ~0x02;
-				if (controls.get("Up")) value &= ~0x04;
-				if (controls.get("Down")) value &= ~0x08;
-			}
+			int buttons = controls.getButtons();
+			//A, B, Select and Start are the same bits here as in ControlSet; the directions get shuffled
+			if (isJoypadAction) value &= ~(buttons & 0x0F);
+			if (isJoypadDirection) value &= ~JOYPAD_DIRECTIONS[(buttons >> ControlSet.UP) & 0x0F];
 		}
 		return value;
 	}
@@ -205,6 +489,7 @@ public class GameBoyCore implements Core {
 		cpuBus.unmapAllMappers();
 		if (this.cart != null) cpuBus.unmap(this.cart);
 		this.cart = cart;
+		this.mapper = null;
 		cpuBus.map(this.cart, 0x0000);
 	}
 	
@@ -212,6 +497,7 @@ public class GameBoyCore implements Core {
 		cpuBus.unmapAllMappers();
 		if (this.cart != null) cpuBus.unmap(this.cart);
 		this.cart = null;
+		this.mapper = mapper;
 		cpuBus.map(mapper);
 	}
 
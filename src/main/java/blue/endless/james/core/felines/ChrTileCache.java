@@ -0,0 +1,80 @@
+package blue.endless.james.core.felines;
+
+import java.util.IdentityHashMap;
+
+import blue.endless.james.host.DirectRegion;
+
+/**
+ * Caches pattern table tiles pre-expanded from two bitplanes into 64 pixel indices (0-3), one byte
+ * each, left to right and top to bottom. Tiles are keyed by the CHR array they were decoded from and
+ * their offset in it, so a bank switch which swaps a region's array just starts finding the other
+ * bank's tiles, and only writes to CHR-RAM ever need to throw a tile away.
+ */
+public class ChrTileCache {
+	public static final int TILE_BYTES = 16;
+	
+	private final IdentityHashMap<byte[], byte[][]> arrays = new IdentityHashMap<>();
+	private byte[] lastData = null;
+	private byte[][] lastTiles = null;
+	
+	/**
+	 * Finds the decoded tile whose pattern data starts at address, decoding it if this is the first
+	 * time it's been asked for.
+	 * @param region the pattern table the address falls in
+	 * @param address a tile-aligned address on the ppu bus
+	 */
+	public byte[] get(DirectRegion region, int address) {
+		byte[][] tiles = tilesFor(region.data, true);
+		int offset = (address - region.base) & region.mask;
+		int index = offset / TILE_BYTES;
+		
+		byte[] tile = tiles[index];
+		if (tile==null) {
+			tile = decode(region.data, index * TILE_BYTES);
+			tiles[index] = tile;
+		}
+		return tile;
+	}
+	
+	/**
+	 * Throws away the tile containing this byte of CHR data.
+	 */
+	public void invalidate(byte[] data, int offset) {
+		byte[][] tiles = tilesFor(data, false);
+		if (tiles==null) return;
+		tiles[offset / TILE_BYTES] = null;
+	}
+	
+	public void clear() {
+		arrays.clear();
+		lastData = null;
+		lastTiles = null;
+	}
+	
+	private byte[][] tilesFor(byte[] data, boolean create) {
+		if (data==lastData) return lastTiles;
+		
+		byte[][] result = arrays.get(data);
+		if (result==null) {
+			if (!create) return null;
+			result = new byte[data.length / TILE_BYTES][];
+			arrays.put(data, result);
+		}
+		lastData = data;
+		lastTiles = result;
+		return result;
+	}
+	
+	private static byte[] decode(byte[] data, int offset) {
+		byte[] tile = new byte[64];
+		for(int row=0; row<8; row++) {
+			int low = data[offset + row] & 0xFF;
+			int high = data[offset + row + 8] & 0xFF;
+			for(int column=0; column<8; column++) {
+				int shift = 7 - column;
+				tile[row*8 + column] = (byte) ((((high >>> shift) & 1) << 1) | ((low >>> shift) & 1));
+			}
+		}
+		return tile;
+	}
+}
@@ -1,8 +1,11 @@
 package blue.endless.james.core.felines;
 
+import java.nio.ByteBuffer;
+
 import blue.endless.james.host.ControlSet;
+import blue.endless.james.host.Snapshottable;
 
-public class Controller {
+public class Controller implements Snapshottable {
 	private int shiftRegister = 0;
 	
 	public int read() {
@@ -14,16 +17,18 @@ public class Controller {
 	
 	public void strobe(ControlSet controls) {
 		shiftRegister = 0xFFFFFF00;
-		if (controls!=null) {
-			if (controls.get("A")) shiftRegister |= 0x01;
-			if (controls.get("B")) shiftRegister |= 0x02;
-			if (controls.get("Select")) shiftRegister |= 0x04;
-			if (controls.get("Start")) shiftRegister |= 0x08;
-			if (controls.get("Up")) shiftRegister |= 0x10;
-			if (controls.get("Down")) shiftRegister |= 0x20;
-			if (controls.get("Left")) shiftRegister |= 0x40;
-			if (controls.get("Right")) shiftRegister |= 0x80;
-		}
+		//ControlSet's pad ids are already in the order the buttons shift out
+		if (controls!=null) shiftRegister |= controls.getButtons() & ControlSet.PAD_MASK;
 		//System.out.println("Final shiftRegister: "+Integer.toHexString(shiftRegister));
 	}
+	
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.putInt(shiftRegister);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		shiftRegister = in.getInt();
+	}
 }
@@ -1,19 +1,49 @@
 package blue.endless.james.core.felines;
 
+import java.nio.ByteBuffer;
+
 import blue.endless.james.chip.mos6502.Cpu;
+import blue.endless.james.chip.mos6502.IdleLoopDetector;
+import blue.endless.james.chip.mos6502.TraceBuffer;
 import blue.endless.james.core.felines.mapper.Mapper;
+import blue.endless.james.host.Bus;
 import blue.endless.james.host.ControlSet;
 import blue.endless.james.host.Core;
+import blue.endless.james.host.Scheduler;
+import blue.endless.james.host.Snapshottable;
 import blue.endless.tinyevents.impl.ConsumerEvent;
 
-public class NesCore implements Core {
+public class NesCore implements Core, Snapshottable {
+	/** "NES" and a 0x1A, like an iNES header */
+	private static final int SNAPSHOT_MAGIC = 0x4E45531A;
+	private static final int SNAPSHOT_VERSION = 1;
+	
 	private ConsumerEvent<int[]> onPresentFrame = ConsumerEvent.create();
-	Cpu cpu = new Cpu();
+	Cpu cpu;
 	Ppu ppu = new Ppu();
 	NesMemoryBus bus = new NesMemoryBus();
 	PpuMemoryBus ppuBus = new PpuMemoryBus();
+	/** Counts ppu dots. The ppu is only brought up to date when its next event comes due, or when the cpu touches its registers */
+	private Scheduler scheduler = new Scheduler();
+	private Scheduler.Event ppuEvent = new Scheduler.Event(this::onPpuEvent);
+	private long ppuSyncedTo = 0L;
+	/** Null if idle loops aren't being skipped */
+	private IdleLoopDetector idleLoops = new IdleLoopDetector();
+	private int idleLoop = -1;
+	private int idleLoopLength = 0;
+	private long idleLoopStart = 0L;
+	private int idleInstructions = 0;
+	/** The dot PPUSTATUS next changes on, as of when the idle loop was found */
+	private long idleUntil = 0L;
 	
 	public NesCore() {
+		this(Cpu.Engine.TABLE);
+	}
+	
+	public NesCore(Cpu.Engine engine) {
+		cpu = new Cpu(engine);
+		
+		bus.core = this;
 		bus.cpu = cpu;
 		bus.ppu = ppu;
 		bus.ppuBus = ppuBus;
@@ -24,27 +54,152 @@ public class NesCore implements Core {
 	@Override
 	public void hardReset() {
 		cpu.hardReset();
+		syncPpu();
 		ppu.hardReset();
+		schedulePpu();
 		bus.strobe = false;
 	}
 	
 	@Override
 	public void softReset() {
 		cpu.softReset();
+		syncPpu();
 		ppu.softReset();
+		schedulePpu();
 		bus.strobe = false;
 	}
 	
 	@Override
 	public int clock() {
 		int cycles = cpu.cycle(bus);
-		int ppuCycles = cycles*3;
-		for(int i=0; i<ppuCycles; i++) {
-			ppu.cycle(this, ppuBus);
+		scheduler.advance(cycles*3);
+		//The dot renderer draws on every dot, so it can't be left behind
+		if (ppu.getRenderer()==Ppu.Renderer.DOT) syncPpu();
+		idleInstructions++;
+		
+		if (idleLoops!=null) {
+			int pc = cpu.getRegisters().getPC();
+			int from = cpu.getRegisters().getInstructionAddress();
+			if (pc<=from && from-pc<IdleLoopDetector.MAX_LOOP_BYTES) cycles += skipIdleLoop(pc, from);
 		}
+		
 		return cycles;
 	}
 	
+	/**
+	 * Called whenever the cpu jumps a short way backwards. If the loop it just closed is an idle loop
+	 * (see IdleLoopDetector) and the cpu has been around it twice in a row without PPUSTATUS changing,
+	 * every trip takes the same number of dots and ends in the same state, so all the trips which would
+	 * finish before PPUSTATUS changes or an NMI arrives can be skipped. The trip which sees the change
+	 * still runs normally.
+	 * @return the number of cycles skipped
+	 */
+	private int skipIdleLoop(int loopStart, int loopEnd) {
+		long now = scheduler.now();
+		//If the status changed partway through the last trip, that trip may not have seen it yet
+		boolean knownLoop = (loopStart==idleLoop && idleInstructions==idleLoopLength && now<idleUntil);
+		long dotsPerTrip = now - idleLoopStart;
+		idleLoopStart = now;
+		idleInstructions = 0;
+		if (!knownLoop) {
+			idleLoopLength = idleLoops.analyze(bus.getDirectPages(), loopStart, loopEnd, NesCore::isQuietRead);
+			idleLoop = (idleLoopLength<0) ? -1 : loopStart;
+			if (idleLoop!=-1) {
+				syncPpu();
+				idleUntil = now + ppu.dotsUntilStatusChange();
+			}
+			return 0;
+		}
+		
+		long trips = (idleUntil - now - 1) / dotsPerTrip;
+		if (trips<=0) return 0;
+		
+		int cycles = (int) (trips * dotsPerTrip / 3);
+		cpu.cycles += cycles;
+		scheduler.advance(cycles*3);
+		if (ppu.getRenderer()==Ppu.Renderer.DOT) syncPpu();
+		idleLoopStart = scheduler.now();
+		return cycles;
+	}
+	
+	/** Addresses an idle loop may poll: RAM, which only the cpu writes to, and PPUSTATUS */
+	private static boolean isQuietRead(int address) {
+		return address<0x2000 || (address & 0xE007)==0x2002;
+	}
+	
+	/** Skipping idle loops is exact, so it's on unless something needs every instruction to really run */
+	public void setIdleLoopSkipping(boolean skip) {
+		idleLoops = (skip) ? new IdleLoopDetector() : null;
+		idleLoop = -1;
+	}
+	
+	public boolean isIdleLoopSkipping() {
+		return idleLoops!=null;
+	}
+	
+	/** Brings the ppu up to the current dot. Anything which touches ppu registers has to call this first. */
+	void syncPpu() {
+		long now = scheduler.now();
+		ppu.advance(this, ppuBus, (int) (now - ppuSyncedTo));
+		ppuSyncedTo = now;
+	}
+	
+	private void schedulePpu() {
+		if (ppu.getRenderer()==Ppu.Renderer.DOT) {
+			scheduler.cancel(ppuEvent);
+		} else {
+			scheduler.scheduleIn(ppuEvent, ppu.dotsUntilEvent());
+		}
+	}
+	
+	private void onPpuEvent() {
+		syncPpu();
+		schedulePpu();
+	}
+	
+	/** Turns on the cpu's and ppu's per-frame debug logging */
+	public void setDebug(boolean debug) {
+		cpu.setDebug(debug);
+		ppu.setDebug(debug);
+	}
+	
+	public void setRenderer(Ppu.Renderer renderer) {
+		syncPpu();
+		ppu.setRenderer(renderer);
+		schedulePpu();
+	}
+	
+	/**
+	 * Saves the cpu, ppu, RAM, and the cartridge's state. The ppu is synced first, so the scheduler's
+	 * clock doesn't need saving: a loaded core starts over from dot zero with nothing owed.
+	 */
+	@Override
+	public void saveState(ByteBuffer out) {
+		syncPpu();
+		Snapshottable.putHeader(out, SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+		cpu.saveState(out);
+		ppu.saveState(out);
+		bus.saveState(out);
+		if (bus.mapper!=null) bus.mapper.saveState(out);
+		ppuBus.saveState(out);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		Snapshottable.checkHeader(in, SNAPSHOT_MAGIC, SNAPSHOT_VERSION);
+		cpu.loadState(in);
+		ppu.loadState(in);
+		bus.loadState(in);
+		if (bus.mapper!=null) bus.mapper.loadState(in);
+		ppuBus.loadState(in);
+		
+		scheduler.reset();
+		ppuSyncedTo = 0L;
+		schedulePpu();
+		idleLoop = -1;
+		idleInstructions = 0;
+	}
+	
 	public void setMapper(Mapper mapper) {
 		bus.setMapper(mapper);
 		ppuBus.setMapper(mapper);
@@ -121,6 +276,13 @@ public class NesCore implements Core {
 	public ConsumerEvent<int[]> onPresentFrame() {
 		return onPresentFrame;
 	}
+	
+	@Override
+	public boolean setRenderTarget(int[] target) {
+		if (target.length!=getFrameWidth()*getFrameHeight()) return false;
+		ppu.setScreen(target);
+		return true;
+	}
 
 	@Override
 	public int getFrameWidth() {
@@ -179,6 +341,11 @@ public class NesCore implements Core {
 		this.bus.controls = controls;
 	}
 	
+	@Override
+	public Bus getCpuBus() {
+		return bus;
+	}
+	
 	private static char safeChar(byte val) {
 		if (val<0x20 || val==0x7F || val>=252) return '?';
 		return (char) (val & 0xFF);
@@ -196,10 +363,14 @@ public class NesCore implements Core {
 		cpu.getRegisters().addDebugLines(i);
 	}
 	
-	public ConsumerEvent<String> onInstruction() {
+	public ConsumerEvent<TraceBuffer> onInstruction() {
 		return cpu.onInstruction();
 	}
 	
+	public void setTracing(boolean tracing) {
+		cpu.setTracing(tracing);
+	}
+	
 	public void setStopped(boolean stopped) {
 		if (stopped) cpu.getRegisters().hang();
 	}
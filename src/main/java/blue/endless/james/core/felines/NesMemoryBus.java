@@ -1,20 +1,26 @@
 package blue.endless.james.core.felines;
 
+import java.nio.ByteBuffer;
+
 import blue.endless.james.chip.mos6502.Cpu;
 import blue.endless.james.core.felines.mapper.Mapper;
-import blue.endless.james.host.Bus;
+import blue.endless.james.host.Bus16;
 import blue.endless.james.host.ControlSet;
+import blue.endless.james.host.DirectRegion;
+import blue.endless.james.host.Snapshottable;
 
-public class NesMemoryBus implements Bus {
+public class NesMemoryBus implements Bus16, Snapshottable {
 	byte[] ram = new byte[0x0800]; // 2KiB (2048 Bytes) of system RAM
 	Controller controller1 = new Controller();
 	Controller controller2 = new Controller();
 	ControlSet controls;
 	boolean strobe = false;
+	NesCore core;
 	Cpu cpu;
 	Ppu ppu;
 	PpuMemoryBus ppuBus;
 	Mapper mapper;
+	private final DirectRegion[] directPages = new DirectRegion[256];
 	
 	public void setCpu(Cpu cpu) {
 		this.cpu = cpu;
@@ -26,6 +32,23 @@ public class NesMemoryBus implements Bus {
 	
 	public void setMapper(Mapper mapper) {
 		this.mapper = mapper;
+		
+		//$0000-$1FFF is 2KiB of RAM mirrored four times; everything past $4020 is up to the cart
+		DirectRegion ramRegion = new DirectRegion(ram, 0x0000, 0x07FF);
+		for(int page=0; page<0x100; page++) {
+			if (page<0x20) {
+				directPages[page] = ramRegion;
+			} else if (page>=0x41) {
+				directPages[page] = mapper.getDirectRegion(page << 8);
+			} else {
+				directPages[page] = null;
+			}
+		}
+	}
+	
+	@Override
+	public DirectRegion[] getDirectPages() {
+		return directPages;
 	}
 	
 	public void setControls(ControlSet controls) {
@@ -34,18 +57,29 @@ public class NesMemoryBus implements Bus {
 	
 	@Override
 	public int read(long addr) {
-		addr = addr & 0xFFFFL;
+		return read8((int) (addr & 0xFFFFL));
+	}
+	
+	@Override
+	public void write(long addr, int val) {
+		write8((int) (addr & 0xFFFFL), val);
+	}
+	
+	@Override
+	public int read8(int addr) {
+		addr &= 0xFFFF;
 		
 		int result = 0;
 		//if (source instanceof Cpu) {
 			
 			
 			if (addr<0x800) {
-				result = ram[(int)addr] & 0xFF;
+				result = ram[addr] & 0xFF;
 			} else if (addr < 0x2000) {
-				result = ram[(int) (addr % 0x800)] & 0xFF;
+				result = ram[addr % 0x800] & 0xFF;
 			} else if (addr < 0x3FFF) {
-				int ppuReg = (int) (addr % 8);
+				int ppuReg = addr % 8;
+				core.syncPpu();
 				
 				switch(ppuReg) {
 				case 0: //PPUCTRL
@@ -100,15 +134,18 @@ public class NesMemoryBus implements Bus {
 	
 	
 	@Override
-	public void write(long addr, int val) {
-		addr = addr & 0xFFFFL;
+	public void write8(int addr, int val) {
+		addr &= 0xFFFF;
 		
 		if (addr<0x800) {
-			ram[(int) addr] = (byte)val;
+			ram[addr] = (byte)val;
+			cpu.invalidateCode(addr);
 		} else if (addr < 0x2000) {
-			ram[(int) addr % 0x800] = (byte)val;
+			ram[addr % 0x800] = (byte)val;
+			cpu.invalidateCode(addr);
 		} else if (addr < 0x3FFF) {
-			int ppuReg = (int) (addr % 8);
+			int ppuReg = addr % 8;
+			core.syncPpu();
 			
 			switch(ppuReg) {
 			case 0: //PPUCTRL
@@ -144,13 +181,14 @@ public class NesMemoryBus implements Bus {
 			//OAMDMA
 			//System.out.println("Initiating DMA transfer on page "+Integer.toHexString(value & 0xFF));
 			int pageNumber = val & 0xFF;
-			long cpuaddr = pageNumber << 8;
-			//System.out.println("Initiating DMA transfer on page "+Integer.toHexString((int) cpuaddr));
+			int cpuaddr = pageNumber << 8;
+			core.syncPpu();
+			//System.out.println("Initiating DMA transfer on page "+Integer.toHexString(cpuaddr));
 			
 			for(int i=0; i<256; i++) {
-				//System.out.println("Transferring "+Integer.toHexString((int) (cpuaddr+i)));
+				//System.out.println("Transferring "+Integer.toHexString(cpuaddr+i));
 				//TODO: Translate to PPU bus address? Access OAM directly?
-				ppu.writeOamData(ppuBus, read(cpuaddr+i));
+				ppu.writeOamData(ppuBus, read8(cpuaddr+i));
 				
 				//ppu.dmaTransfer(cpuRead(cpuaddr+i));
 			}
@@ -166,7 +204,8 @@ public class NesMemoryBus implements Bus {
 			}
 		} else {
 			//All this crap is cartridge mapped
-			
+			mapper.cpuWrite(addr, val);
+			if (addr>=0x6000 && addr<0x8000) cpu.invalidateCode(addr); //Save RAM can hold code
 		}
 	}
 
@@ -179,5 +218,21 @@ public class NesMemoryBus implements Bus {
 	public boolean mapsWrite(long address) {
 		return true;
 	}
-
+	
+	/** Saves system RAM and the controller ports. The cpu, ppu, and mapper hanging off this bus save themselves. */
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put(ram);
+		Snapshottable.putBoolean(out, strobe);
+		controller1.saveState(out);
+		controller2.saveState(out);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		in.get(ram);
+		strobe = Snapshottable.getBoolean(in);
+		controller1.loadState(in);
+		controller2.loadState(in);
+	}
 }
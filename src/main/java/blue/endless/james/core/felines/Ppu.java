@@ -1,8 +1,11 @@
 package blue.endless.james.core.felines;
 
+import java.nio.ByteBuffer;
+
 import blue.endless.james.host.Bus;
+import blue.endless.james.host.Snapshottable;
 
-public class Ppu {
+public class Ppu implements Snapshottable {
 	Bus bus;
 	private PpuRegisterFile registers = new PpuRegisterFile();
 	private int[] screen = new int[280*240];
@@ -11,6 +14,31 @@ public class Ppu {
 	//private byte[] oam = new byte[256];
 	private long cycleNumber = 0L;
 	
+	public enum Renderer {
+		/** Works out every pixel on its own dot. Slow, but nothing can go stale. */
+		DOT,
+		/**
+		 * Draws a line at a time, fetching each tile row once per 8 pixels and sprites from an 8-slot
+		 * secondary OAM. Writes which change the picture mid-line catch the line up to the current
+		 * dot first.
+		 */
+		SCANLINE;
+	}
+	
+	private static final int SCREEN_WIDTH = 280;
+	private static final int SCREEN_HEIGHT = 240;
+	
+	private Renderer renderer = Renderer.DOT;
+	/** Logs register traffic; every frame reads and writes these several times, so it's off unless you're chasing a bug */
+	private boolean debug = false;
+	private PpuMemoryBus renderBus = null;
+	private int renderedLine = 0;
+	private int renderedPixel = 0;
+	private final int[] secondaryOam = new int[8*4];
+	private int secondaryOamCount = 0;
+	private final int[] lineColors = new int[32];
+	private final byte[] scratchTile = new byte[64];
+	
 	/** Colors which are displayable by the nes hardware */
 	//TODO: Palette loading
 	private static final int[] nesColors = new int[] {
@@ -49,6 +77,8 @@ public class Ppu {
 		
 		registers.scanline = 0;
 		registers.scanlinePixel = 0;
+		renderedLine = 0;
+		renderedPixel = 0;
 	}
 	
 	public void hardReset() {
@@ -58,19 +88,128 @@ public class Ppu {
 	}
 	
 	public int cycle(NesCore core, PpuMemoryBus bus) {
-		int addr = (int) (registers.scanline*280 + registers.scanlinePixel);
-		if (addr<0 | addr>=screen.length) addr = 0;
-		//screen[addr] = 0xFF2244CC;
+		renderBus = bus;
+		if (renderer==Renderer.DOT) {
+			int addr = (int) (registers.scanline*280 + registers.scanlinePixel);
+			if (addr<0 | addr>=screen.length) addr = 0;
+			//screen[addr] = 0xFF2244CC;
+			
+			screen[addr] = dotColor(bus, registers.scanline, registers.scanlinePixel);
+		}
+		
+		if (registers.scanlinePixel>256) {
+			//registers.oamaddr = 0L;
+		}
+		
+		//Advance frameCycle, scanline, and scanlinePixel
+		registers.frameCycle++;
+		
+		registers.scanlinePixel++;
+		if (registers.scanlinePixel>340) {
+			registers.scanlinePixel = 0;
+			registers.scanline++;
+			if (renderer==Renderer.SCANLINE) catchUp();
+		}
 		
+		if (registers.scanline==241L && registers.scanlinePixel==0) {
+			if (debug) System.out.println("Start vblank / PPUStatus VBL set");
+			registers.status |= 0x80;
+			
+			//registers.ppuaddr = 0;
+			if (registers.nmiOutput) {
+				core.triggerNMI();
+			}
+			//registers.nmiOccurred = true;
+		} else if (registers.scanline>=281) {
+			//We're starting a new frame
+			if (renderer==Renderer.SCANLINE) {
+				//The dot renderer dumps every off-screen dot into the top-left pixel, so that pixel ends up holding the frame's last dot
+				screen[0] = dotColor(bus, 280, 340);
+				renderedLine = 0;
+				renderedPixel = 0;
+			}
+			
+			if (registers.odd) {
+				registers.frameCycle = 1;
+				registers.scanline = 0;
+				registers.scanlinePixel = 1;
+			} else {
+				registers.frameCycle = 0;
+				registers.scanline = 0;
+				registers.scanlinePixel = 0;
+			}
+			//registers.nmiOccurred = false;
+			registers.status &= ~0x80;
+			registers.odd = !registers.odd;
+			
+			//System.out.println("FRAME");
+			core.onPresentFrame().fire(screen);
+		}
 		
 		
-		//START: process scanline pixel
+		//if (registers.scanlinePixel==1) System.out.println(registers.scanline);
 		
+		cycleNumber++;
+		return 1;
+	}
+	
+	
+	/**
+	 * Runs the given number of dots, exactly as if cycle() had been called that many times. The dot
+	 * renderer has to draw every one of them, but the scanline renderer catches up lazily, so it only
+	 * needs to stop for vblank and the end of the frame and can count its way past everything else.
+	 */
+	public void advance(NesCore core, PpuMemoryBus bus, int dots) {
+		if (renderer==Renderer.DOT) {
+			for(int i=0; i<dots; i++) cycle(core, bus);
+			return;
+		}
 		
-		long tileX = registers.scanlinePixel / 8;
-		long tileY = registers.scanline / 8;
-		long tileRow = registers.scanline % 8;
-		long tileColumn = registers.scanlinePixel % 8;
+		renderBus = bus;
+		while(dots>0) {
+			int idle = dotsUntilEvent() - 1;
+			if (idle>=dots) {
+				skipDots(dots);
+				return;
+			}
+			
+			skipDots(idle);
+			dots -= idle;
+			cycle(core, bus);
+			dots--;
+		}
+	}
+	
+	/**
+	 * @return how many dots until the next one which does more than count. For the scanline renderer
+	 *         that's vblank starting or the frame ending; the dot renderer draws on every dot.
+	 */
+	public int dotsUntilEvent() {
+		if (renderer==Renderer.DOT) return 1;
+		return dotsUntilStatusChange();
+	}
+	
+	/** @return how many dots until PPUSTATUS next changes on its own: vblank starting or the frame ending */
+	public int dotsUntilStatusChange() {
+		long line = (registers.scanline<241) ? 241 : 281;
+		return (int) ((line - registers.scanline)*341 - registers.scanlinePixel);
+	}
+	
+	/** Counts off dots which can't cross vblank or the end of the frame, without drawing anything */
+	private void skipDots(int dots) {
+		registers.frameCycle += dots;
+		cycleNumber += dots;
+		long pixel = registers.scanlinePixel + dots;
+		registers.scanline += pixel / 341;
+		registers.scanlinePixel = pixel % 341;
+	}
+	
+	/** Works out the color of one dot the slow way: a fresh set of bus reads, and a pass over all 64 sprites. */
+	private int dotColor(PpuMemoryBus bus, long scanline, long scanlinePixel) {
+		long tileX = scanlinePixel / 8;
+		long tileY = scanline / 8;
+		long tileRow = scanline % 8;
+		long tileColumn = scanlinePixel % 8;
 		//int tileId = (int) (tileY*32+tileX);
 		//System.out.println("Registers.CTRL: "+Integer.toHexString(registers.ctrl & 0xFF));
 		long page = (registers.ctrl >>> 4) & 1;
@@ -86,12 +225,9 @@ public class Ppu {
 		
 		long baseAddr = (page * 0x1000L);
 		//long baseAddr = 0x1000L; //Page 1 (background tiles) //TODO: Set from control register via 'page'
-		baseAddr += tileId*16+tileRow;
+		baseAddr += tileId*16;
 		
-		//The following reads are flipped due to how the shift registers are shifted. I approve.
-		int tileDataLow = (bus.read(baseAddr) >>> (7-tileColumn)) & 1;
-		int tileDataHigh = (bus.read(baseAddr + 8) >>> (7-tileColumn)) & 1;
-		int tilePalEntry = (tileDataHigh << 1) | tileDataLow;
+		int tilePalEntry = patternPixel(bus, (int) baseAddr, (int) tileRow, (int) tileColumn);
 		//tilePalEntry = (int) (Math.random()*16.0);
 		//int debug = bus.ppuRead(baseAddr);
 		
@@ -105,18 +241,19 @@ public class Ppu {
 		int nesColor = bus.read(0x3F00 + (attrByte*4 + tilePalEntry));
 		int rgbColor = nesColors[nesColor & 0b0111_1111];
 		
-		//if (registers.scanline==0 && registers.scanlinePixel==0) {
+		//if (scanline==0 && scanlinePixel==0) {
 			//System.out.println("TileId: "+tileId);
 		//	System.out.println("OffsetAddr: "+Integer.toHexString((int) offsetAddr)+", BaseAddr: "+Integer.toHexString((int) baseAddr));
 		//	System.out.println("rawPage: "+registers.ctrl);
 		//	System.out.println("tilex: "+tileX+", tiley: "+tileY+", tileRow: "+tileRow+", tileColumn: "+tileColumn+", page: "+page);
 		//	System.out.println("    tileLow:"+tileDataLow+", tileHi: "+tileDataHigh+", tilePaletteEntry: "+tilePalEntry+", debug: "+Integer.toHexString(debug));
 		//}
+		int color;
 		if (tilePalEntry!=0) {
-			screen[addr] = rgbColor;
+			color = rgbColor;
 		} else {
 			nesColor = bus.read(0x3F00 + (attrByte*4 + tilePalEntry));
-			screen[addr] = nesColors[nesColor & 0b0111_1111];
+			color = nesColors[nesColor & 0b0111_1111];
 		}
 		
 		int spritePage = (registers.ctrl >>> 3) & 1;
@@ -134,23 +271,21 @@ public class Ppu {
 			boolean hFlip = (attribs & 0x40)!=0;
 			boolean vFlip = (attribs & 0x80)!=0;
 			
-			if (registers.scanline>=spriteY && registers.scanline<spriteY+8) {
-				if (registers.scanlinePixel>=spriteX && registers.scanlinePixel<spriteX+8) {
-					int sprColumn = (int) (registers.scanlinePixel - spriteX) % 8;
-					int sprRow = (int) (registers.scanline - spriteY) % 8;
+			if (scanline>=spriteY && scanline<spriteY+8) {
+				if (scanlinePixel>=spriteX && scanlinePixel<spriteX+8) {
+					int sprColumn = (int) (scanlinePixel - spriteX) % 8;
+					int sprRow = (int) (scanline - spriteY) % 8;
 					if (vFlip) sprRow = 7-sprRow;
 					if (hFlip) sprColumn = 7-sprColumn;
-					int curAddr = spriteBaseAddr + (tileIndex*16) + sprRow;
+					int curAddr = spriteBaseAddr + (tileIndex*16);
 					
-					int spriteDataLow = (bus.read(curAddr) >>> (7-sprColumn)) & 1;
-					int spriteDataHigh = (bus.read(curAddr + 8) >>> (7-sprColumn)) & 1;
-					int spritePalEntry = (spriteDataHigh << 1) | spriteDataLow;
+					int spritePalEntry = patternPixel(bus, curAddr, sprRow, sprColumn);
 					
 					if (spritePalEntry>0) {
 						int spriteNesColor = bus.read(0x3F00 + (paletteIndex*4 + spritePalEntry));
 						//int spriteNesColor = palette[paletteIndex*4 + spritePalEntry];
 						int spriteRgbColor = nesColors[spriteNesColor & 0b0111_1111];
-						screen[addr] = spriteRgbColor;
+						color = spriteRgbColor;
 					}
 					
 				}
@@ -158,60 +293,184 @@ public class Ppu {
 			}
 		}
 		
-		//END: process scanline pixel
+		return color;
+	}
+	
+	/** Gets the 2-bit palette entry for one pixel of the tile whose pattern data starts at tileAddr */
+	private static int patternPixel(PpuMemoryBus bus, int tileAddr, int row, int column) {
+		byte[] tile = bus.readTile(tileAddr);
+		if (tile!=null) return tile[row*8 + column];
 		
+		//The following reads are flipped due to how the shift registers are shifted. I approve.
+		int low = (bus.read8(tileAddr + row) >>> (7-column)) & 1;
+		int high = (bus.read8(tileAddr + row + 8) >>> (7-column)) & 1;
+		return (high << 1) | low;
+	}
+	
+	/** Gets a whole decoded tile, falling back on decoding it from the bus into a scratch tile if the mapper can't hand out its CHR */
+	private byte[] tileAt(PpuMemoryBus bus, int tileAddr) {
+		byte[] tile = bus.readTile(tileAddr);
+		if (tile!=null) return tile;
 		
+		for(int i=0; i<64; i++) {
+			scratchTile[i] = (byte) patternPixel(bus, tileAddr, i / 8, i % 8);
+		}
+		return scratchTile;
+	}
+	
+	/**
+	 * Draws every visible pixel from the last one drawn up to (but not including) the current dot.
+	 * Called at the end of each line, and before any write which could change what the rest of the
+	 * frame looks like, so that each pixel comes out as it would have if it were drawn on its dot.
+	 */
+	private void catchUp() {
+		if (renderer!=Renderer.SCANLINE || renderBus==null) return;
+		int line = (int) registers.scanline;
+		int pixel = (int) registers.scanlinePixel;
 		
+		while(renderedLine<line && renderedLine<SCREEN_HEIGHT) {
+			renderLine(renderBus, renderedLine, renderedPixel, SCREEN_WIDTH);
+			renderedLine++;
+			renderedPixel = 0;
+		}
 		
-		if (registers.scanlinePixel>256) {
-			//registers.oamaddr = 0L;
+		if (renderedLine==line && line<SCREEN_HEIGHT) {
+			int end = Math.min(pixel, SCREEN_WIDTH);
+			if (end>renderedPixel) {
+				renderLine(renderBus, line, renderedPixel, end);
+				renderedPixel = end;
+			}
+		}
+	}
+	
+	/** Draws pixels from through to-1 of one line: background a tile at a time, then the sprites in secondary OAM. */
+	private void renderLine(PpuMemoryBus bus, int line, int from, int to) {
+		for(int i=0; i<lineColors.length; i++) {
+			lineColors[i] = nesColors[bus.read8(0x3F00 + i) & 0b0111_1111];
 		}
 		
-		//Advance frameCycle, scanline, and scanlinePixel
-		registers.frameCycle++;
+		int tileY = line / 8;
+		int tileRow = line % 8;
+		if (tileY>=29) tileY = 0;
+		int page = (registers.ctrl >>> 4) & 1;
+		int rowStart = line * SCREEN_WIDTH;
 		
-		registers.scanlinePixel++;
-		if (registers.scanlinePixel>340) {
-			registers.scanlinePixel = 0;
-			registers.scanline++;
+		int x = from;
+		while(x<to) {
+			int tileX = x / 8;
+			if (tileX>=31) tileX = 0;
+			
+			int tileId = bus.read8(0x2000 + tileY*32 + tileX);
+			byte[] tile = tileAt(bus, page*0x1000 + tileId*16);
+			int tileOffset = tileRow*8 - (x & ~7);
+			
+			int attrByte = bus.read8(0x23C0 | (tileX >> 2) | ((tileY >> 2) << 3));
+			if ((tileY & 0x02) != 0) attrByte >>= 4;
+			if ((tileX & 0x02) != 0) attrByte >>= 2;
+			int paletteBase = (attrByte & 0x03) * 4;
+			
+			int tileEnd = Math.min((x & ~7) + 8, to);
+			for(; x<tileEnd; x++) {
+				screen[rowStart + x] = lineColors[paletteBase + tile[tileOffset + x]];
+			}
 		}
 		
-		if (registers.scanline==241L && registers.scanlinePixel==0) {
-			System.out.println("Start vblank / PPUStatus VBL set");
-			registers.status |= 0x80;
+		evaluateSprites(bus, line);
+		int spriteBaseAddr = ((registers.ctrl >>> 3) & 1) * 0x1000;
+		//Lower OAM indices win, so draw them last
+		for(int slot=secondaryOamCount-1; slot>=0; slot--) {
+			int spriteY   = secondaryOam[slot*4 + 0];
+			int tileIndex = secondaryOam[slot*4 + 1];
+			int attribs   = secondaryOam[slot*4 + 2];
+			int spriteX   = secondaryOam[slot*4 + 3];
 			
-			//registers.ppuaddr = 0;
-			if (registers.nmiOutput) {
-				core.triggerNMI();
-			}
-			//registers.nmiOccurred = true;
-		} else if (registers.scanline>=281) {
-			//We're starting a new frame
-			if (registers.odd) {
-				registers.frameCycle = 1;
-				registers.scanline = 0;
-				registers.scanlinePixel = 1;
-			} else {
-				registers.frameCycle = 0;
-				registers.scanline = 0;
-				registers.scanlinePixel = 0;
+			int paletteBase = ((attribs & 0x3) + 4) * 4;
+			boolean hFlip = (attribs & 0x40)!=0;
+			boolean vFlip = (attribs & 0x80)!=0;
+			
+			int sprRow = line - spriteY;
+			if (vFlip) sprRow = 7-sprRow;
+			byte[] tile = tileAt(bus, spriteBaseAddr + tileIndex*16);
+			int rowOffset = sprRow*8;
+			
+			int start = Math.max(spriteX, from);
+			int end = Math.min(spriteX + 8, to);
+			for(int px=start; px<end; px++) {
+				int sprColumn = px - spriteX;
+				if (hFlip) sprColumn = 7-sprColumn;
+				int entry = tile[rowOffset + sprColumn];
+				if (entry>0) screen[rowStart + px] = lineColors[paletteBase + entry];
 			}
-			//registers.nmiOccurred = false;
-			registers.status &= ~0x80;
-			registers.odd = !registers.odd;
+		}
+	}
+	
+	/** Copies the first 8 sprites (in OAM order) which cover this line into secondary OAM, like the real sprite evaluation does. */
+	private void evaluateSprites(PpuMemoryBus bus, int line) {
+		secondaryOamCount = 0;
+		for(int i=0; i<64 && secondaryOamCount<8; i++) {
+			int base = i*4;
+			int spriteY = bus.readOAM(base);
+			if (spriteY>=0xEF) continue;
+			if (line<spriteY || line>=spriteY+8) continue;
 			
-			//System.out.println("FRAME");
-			core.onPresentFrame().fire(screen);
+			int slot = secondaryOamCount*4;
+			secondaryOam[slot + 0] = spriteY;
+			secondaryOam[slot + 1] = bus.readOAM(base + 1);
+			secondaryOam[slot + 2] = bus.readOAM(base + 2);
+			secondaryOam[slot + 3] = bus.readOAM(base + 3);
+			secondaryOamCount++;
 		}
-		
-		
-		//if (registers.scanlinePixel==1) System.out.println(registers.scanline);
-		
-		cycleNumber++;
-		return 1;
 	}
 	
+	public void setDebug(boolean debug) {
+		this.debug = debug;
+	}
 	
+	public void setRenderer(Renderer renderer) {
+		if (renderer==this.renderer) return;
+		if (renderer==Renderer.SCANLINE) {
+			//Everything up to now was drawn on its dot
+			renderedLine = (int) registers.scanline;
+			renderedPixel = (int) registers.scanlinePixel;
+		} else {
+			catchUp();
+		}
+		this.renderer = renderer;
+	}
+	
+	public Renderer getRenderer() {
+		return renderer;
+	}
+	
+	/**
+	 * Draws from now on into the given array, which must hold SCREEN_WIDTH*SCREEN_HEIGHT pixels. Any
+	 * part of a line already drawn stays in the old array, so switch between frames.
+	 */
+	public void setScreen(int[] screen) {
+		if (screen.length!=SCREEN_WIDTH*SCREEN_HEIGHT) throw new IllegalArgumentException("Screen must be "+SCREEN_WIDTH+"x"+SCREEN_HEIGHT);
+		this.screen = screen;
+	}
+	
+	/** Saves the registers and how far rendering has got, but not the screen or which renderer is in use */
+	@Override
+	public void saveState(ByteBuffer out) {
+		registers.saveState(out);
+		out.putLong(cycleNumber);
+		out.putInt(renderedLine);
+		out.putInt(renderedPixel);
+		out.putInt(secondaryOamCount);
+		for(int i=0; i<secondaryOam.length; i++) out.putInt(secondaryOam[i]);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		registers.loadState(in);
+		cycleNumber = in.getLong();
+		renderedLine = in.getInt();
+		renderedPixel = in.getInt();
+		secondaryOamCount = in.getInt();
+		for(int i=0; i<secondaryOam.length; i++) secondaryOam[i] = in.getInt();
+	}
 
 	public int readControl() {
 		return registers.ctrl & 0xFF; //TODO: INCORRECT; READS FROM THIS REGISTER ARE ALWAYS STALE
@@ -225,17 +484,18 @@ public class Ppu {
 		int result = registers.status & 0xFF;
 		//System.out.println(result);
 		registers.status = (byte) (registers.status & ~0x80); // (byte) (registers.status & 0x7F); //Reading status clears vblank
-		System.out.println("Reading out: "+Integer.toHexString(result)+" / "+registers.status);
+		if (debug) System.out.println("Reading out: "+Integer.toHexString(result)+" / "+registers.status);
 		registers.writeToggle = false; //Reading status resets write toggle for ppuscroll and ppuaddr regs
 		return result;
 	}
 	
 	public void writeControl(int value) {
+		catchUp();
 		if ((value & 0x80) != 0) {
-			if (!registers.nmiOutput) System.out.println("NMI Enable");
+			if (debug && !registers.nmiOutput) System.out.println("NMI Enable");
 			registers.nmiOutput = true;
 		} else {
-			if (registers.nmiOutput) System.out.println("NMI Disable");
+			if (debug && registers.nmiOutput) System.out.println("NMI Disable");
 			registers.nmiOutput = false;
 		}
 		
@@ -266,20 +526,23 @@ public class Ppu {
 	}
 
 	public void writePpuData(Bus bus, int value) {
+		catchUp();
 		registers.ppuaddr = registers.ppuaddr & 0xFFFF;
 		value = value & 0xFF;
 		
 		bus.write(registers.ppuaddr, value);
-		System.out.println("PPU $"+Integer.toHexString((int) registers.ppuaddr)+" = "+value);
+		if (debug) System.out.println("PPU $"+Integer.toHexString((int) registers.ppuaddr)+" = "+value);
 		registers.ppuaddr = (registers.ppuaddr + registers.addressIncrement) & 0xFFFF;
 	}
 	
 	public void writeOamData(PpuMemoryBus bus, int value) {
+		catchUp();
 		bus.writeOAM(registers.oamaddr, value);
 		registers.oamaddr = ( registers.oamaddr + 1 ) & 0xFF;
 	}
 
 	public void writeScroll(int value) {
+		catchUp();
 		if (registers.writeToggle) {
 			registers.scrolly = value;
 		} else {
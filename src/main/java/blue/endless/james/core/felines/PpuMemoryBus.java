@@ -1,15 +1,22 @@
 package blue.endless.james.core.felines;
 
+import java.nio.ByteBuffer;
+
 import blue.endless.james.core.felines.mapper.Mapper;
-import blue.endless.james.host.Bus;
+import blue.endless.james.host.Bus16;
+import blue.endless.james.host.DirectRegion;
+import blue.endless.james.host.Snapshottable;
 
-public class PpuMemoryBus implements Bus {
+public class PpuMemoryBus implements Bus16, Snapshottable {
 	private byte[] vram = new byte[0x800];
 	private byte[] palette = new byte[256];
 	private byte[] oam = new byte[256];
 	
 	Ppu ppu;
 	private Mapper mapper;
+	/** The two pattern tables, if the mapper exposes them as plain arrays */
+	private DirectRegion[] chrRegions = new DirectRegion[2];
+	private ChrTileCache tileCache = new ChrTileCache();
 	
 	public void setPpu(Ppu ppu) {
 		this.ppu = ppu;
@@ -17,10 +24,36 @@ public class PpuMemoryBus implements Bus {
 	
 	public void setMapper(Mapper mapper) {
 		this.mapper = mapper;
+		
+		chrRegions[0] = mapper.getChrRegion(0x0000);
+		chrRegions[1] = mapper.getChrRegion(0x1000);
+		tileCache.clear();
+	}
+	
+	/**
+	 * Gets the tile whose pattern data starts at addr, already split into 64 pixel indices (0-3) laid
+	 * out a row at a time.
+	 * @param addr a tile-aligned address in the pattern tables ($0000-$1FFF)
+	 * @return the decoded tile, or null if the mapper needs its pattern data read through ppuRead
+	 */
+	public byte[] readTile(int addr) {
+		DirectRegion region = chrRegions[(addr >> 12) & 1];
+		if (region==null) return null;
+		return tileCache.get(region, addr);
 	}
 	
 	@Override
 	public int read(long addr) {
+		return read8((int) (addr & 0xFFFFL));
+	}
+	
+	@Override
+	public void write(long addr, int val) {
+		write8((int) (addr & 0xFFFFL), val);
+	}
+	
+	@Override
+	public int read8(int addr) {
 		addr &= 0xFFFF;
 		
 		int result = 0;
@@ -30,15 +63,15 @@ public class PpuMemoryBus implements Bus {
 			
 		} else if (addr<0x3000) {
 			//$2000-$2FFF: Nametables 0-3; reside in vram
-			long physicalAddress = mapper.ppuMirror(addr) & 0x7FF;
+			int physicalAddress = (int) mapper.ppuMirror(addr) & 0x7FF;
 			result = readVRam(physicalAddress);
 		} else if (addr<0x3F00) {
 			//$3000 is mirrored from $2000, so subtract $1000 and get the mapper index
-			long physicalAddress = mapper.ppuMirror(addr - 0x1000) & 0x800;
+			int physicalAddress = (int) mapper.ppuMirror(addr - 0x1000) & 0x800;
 			result = readVRam(physicalAddress);
 		} else if (addr<0x3FFF) {
 			//Palette ram
-			int physicalAddress = (int) (addr-0x3F00) & 0xFF;
+			int physicalAddress = (addr-0x3F00) & 0xFF;
 			result = palette[physicalAddress];
 		}
 		
@@ -46,34 +79,38 @@ public class PpuMemoryBus implements Bus {
 	}
 
 	@Override
-	public void write(long addr, int val) {
+	public void write8(int addr, int val) {
 		addr &= 0xFFFF;
 		
 		if (addr < 0x2000) {
-			//0..200 is CHR ROM. If the cart has CHR-RAM we want to enable writes here but those carts are rare.
+			//0..200 is CHR ROM, unless the cart has CHR-RAM
+			if (mapper.chrWrite(addr, val & 0xFF)) {
+				DirectRegion region = chrRegions[addr >> 12];
+				if (region!=null) tileCache.invalidate(region.data, (addr - region.base) & region.mask);
+			}
 		} else if (addr < 0x3000){ 
 			//0x2000..0x2FFF is nametable vram. Mirroring applies
-			long physicalAddress = mapper.ppuMirror(addr) & 0x7FF;
+			int physicalAddress = (int) mapper.ppuMirror(addr) & 0x7FF;
 			writeVRam(physicalAddress, val & 0xFF);
 			
 		} else if (addr < 0x3F00) {
 			//0x3000..0x3EFF is typically mirrored, but we're going to block writes to this region for now.
 		} else if (addr<0xFFFF) {
 			//0x3F00..0x3FFF is palette wam
-			palette[(int) addr & 0xFF] = (byte) val;
-			//ppu.setPalette((int)addr & 0xFF, val);
+			palette[addr & 0xFF] = (byte) val;
+			//ppu.setPalette(addr & 0xFF, val);
 		}
 	}
 	
 	
-	private void writeVRam(long addr, int value) {
+	private void writeVRam(int addr, int value) {
 		addr = addr & 0x7FF;
 		if (addr>=vram.length || addr < 0) return;
-		vram[(int) addr] = (byte) (value & 0xFF);
+		vram[addr] = (byte) (value & 0xFF);
 	}
 	
-	private int readVRam(long addr) {
-		int index = (int) (addr & 0x7FF);
+	private int readVRam(int addr) {
+		int index = addr & 0x7FF;
 		return vram[index] & 0xFF;
 	}
 	
@@ -86,6 +123,23 @@ public class PpuMemoryBus implements Bus {
 		int index = (int) (addr & 0xFF);
 		return oam[index] & 0xFF;
 	}
+	
+	/** Saves nametable vram, palette ram, and OAM. The mapper's CHR memory is the mapper's to save. */
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put(vram);
+		out.put(palette);
+		out.put(oam);
+	}
+	
+	/** Load the mapper first: its CHR-RAM may have changed too, so every decoded tile is thrown away */
+	@Override
+	public void loadState(ByteBuffer in) {
+		in.get(vram);
+		in.get(palette);
+		in.get(oam);
+		tileCache.clear();
+	}
 
 	@Override
 	public boolean mapsRead(long address) {
@@ -1,6 +1,10 @@
 package blue.endless.james.core.felines;
 
-public class PpuRegisterFile {
+import java.nio.ByteBuffer;
+
+import blue.endless.james.host.Snapshottable;
+
+public class PpuRegisterFile implements Snapshottable {
 	byte ctrl;
 	byte mask;
 	byte status;
@@ -29,4 +33,52 @@ public class PpuRegisterFile {
 	
 	//boolean nmiOccurred = false; //use status bit
 	boolean nmiOutput = false;
+	
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put(ctrl);
+		out.put(mask);
+		out.put(status);
+		out.put(oamdata);
+		out.putInt(scrollx);
+		out.putInt(scrolly);
+		out.put(ppudata);
+		out.putLong(oamaddr);
+		out.putLong(ppuaddr);
+		out.putLong(dmaaddr);
+		out.putLong(frameCycle);
+		out.putLong(scanlinePixel);
+		out.putLong(scanline);
+		Snapshottable.putBoolean(out, odd);
+		out.putLong(vramAddress);
+		out.putLong(tempAddress);
+		out.putInt(fineScroll);
+		Snapshottable.putBoolean(out, writeToggle);
+		out.putInt(addressIncrement);
+		Snapshottable.putBoolean(out, nmiOutput);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		ctrl = in.get();
+		mask = in.get();
+		status = in.get();
+		oamdata = in.get();
+		scrollx = in.getInt();
+		scrolly = in.getInt();
+		ppudata = in.get();
+		oamaddr = in.getLong();
+		ppuaddr = in.getLong();
+		dmaaddr = in.getLong();
+		frameCycle = in.getLong();
+		scanlinePixel = in.getLong();
+		scanline = in.getLong();
+		odd = Snapshottable.getBoolean(in);
+		vramAddress = in.getLong();
+		tempAddress = in.getLong();
+		fineScroll = in.getInt();
+		writeToggle = Snapshottable.getBoolean(in);
+		addressIncrement = in.getInt();
+		nmiOutput = Snapshottable.getBoolean(in);
+	}
 }
@@ -1,6 +1,11 @@
 package blue.endless.james.core.felines.mapper;
 
-public interface Mapper {
+import java.nio.ByteBuffer;
+
+import blue.endless.james.host.DirectRegion;
+import blue.endless.james.host.Snapshottable;
+
+public interface Mapper extends Snapshottable {
 	
 	/**
 	 * Reads a byte from memory, from the perspective of the Cpu.
@@ -35,6 +40,52 @@ public interface Mapper {
 	 */
 	public long ppuMirror(long addr);
 	
+	/**
+	 * Optionally describes a page of cartridge space ($4020-$FFFF) which can be read straight from an
+	 * array, with exactly the same results as cpuRead. Regions are collected once, when the mapper is
+	 * connected, so bank switches must update the returned region in place.
+	 * @param addr any address in the page
+	 * @return a region for the page, or null if reads need to go through cpuRead
+	 */
+	public default DirectRegion getDirectRegion(int addr) {
+		return null;
+	}
+	
+	/**
+	 * Optionally describes a pattern table ($0000-$0FFF or $1000-$1FFF) which can be read straight
+	 * from an array, with exactly the same results as ppuRead. Like getDirectRegion, regions are
+	 * collected once, so bank switches must update the returned region in place.
+	 * @param addr any address in the pattern table
+	 * @return a region for the pattern table, or null if reads need to go through ppuRead
+	 */
+	public default DirectRegion getChrRegion(int addr) {
+		return null;
+	}
+	
+	/**
+	 * Writes a byte into the pattern tables ($0000-$1FFF), for carts which have CHR-RAM there.
+	 * @return true if the write landed in CHR-RAM, false if the address is ROM or unmapped
+	 */
+	public default boolean chrWrite(long addr, int value) {
+		return false;
+	}
+	
+	/**
+	 * Saves the cart's RAM and bank selections; ROM never changes, so it's left out. Mappers with no
+	 * state of their own don't need to override this.
+	 */
+	@Override
+	public default void saveState(ByteBuffer out) {
+	}
+	
+	/**
+	 * Reads back what saveState wrote. Bank switches have to update the regions handed out by
+	 * getDirectRegion and getChrRegion in place, just as they do when the cpu switches banks.
+	 */
+	@Override
+	public default void loadState(ByteBuffer in) {
+	}
+	
 	//public int physicalRead(long addr);
 	//public int physicalWrite(long addr, int val);
 }
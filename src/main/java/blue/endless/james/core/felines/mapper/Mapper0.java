@@ -1,11 +1,16 @@
 package blue.endless.james.core.felines.mapper;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
+import blue.endless.james.host.DirectRegion;
+
 public class Mapper0 implements Mapper {
 	private ArrayList<byte[]> prgBanks = new ArrayList<>();
 	private ArrayList<byte[]> chrBanks = new ArrayList<>();
 	private byte[] saveRam = new byte[0x1000];
+	/** Carts which ship without any CHR-ROM get 8KiB of CHR-RAM instead */
+	private byte[] chrRam = new byte[0x2000];
 	private Mirror mirror;
 	
 	@Override
@@ -71,12 +76,12 @@ public class Mapper0 implements Mapper {
 		if (addr<0) return 0;
 		if (addr<0x1000) {
 			//Pattern table 0
-			byte[] bank = chrBanks.get(0);
+			byte[] bank = getChr();
 			//System.out.println("Addr: "+addr);
 			return bank[(int) (addr % bank.length)] & 0xFF;
 		} else if (addr<0x2000) {
 			//because of a quirk of how the ines format works, this is still "bank 0"
-			byte[] bank = chrBanks.get(0);
+			byte[] bank = getChr();
 			return bank[(int) (addr % bank.length)] & 0xFF;
 		} else {
 			//2000-2FBF : nametables (VRAM)
@@ -90,6 +95,43 @@ public class Mapper0 implements Mapper {
 		return -1; //No override
 	}
 
+	@Override
+	public boolean chrWrite(long addr, int value) {
+		if (addr<0 || addr>=0x2000 || !chrBanks.isEmpty()) return false;
+		chrRam[(int) addr] = (byte) value;
+		return true;
+	}
+	
+	@Override
+	public DirectRegion getChrRegion(int addr) {
+		byte[] bank = getChr();
+		if (Integer.bitCount(bank.length)!=1) return null;
+		DirectRegion region = new DirectRegion(bank, 0x0000, bank.length - 1);
+		region.readOnly = !chrBanks.isEmpty();
+		return region;
+	}
+	
+	private byte[] getChr() {
+		return (chrBanks.isEmpty()) ? chrRam : chrBanks.get(0);
+	}
+	
+	@Override
+	public DirectRegion getDirectRegion(int addr) {
+		//Pages are only direct if every byte in them takes the same path through cpuRead
+		int page = (addr >> 8) & 0xFF;
+		if (page>=0x60 && page<0x7F) {
+			return new DirectRegion(saveRam, 0x6000, saveRam.length - 1);
+		} else if (page>=0x80 && page<0xBF && prgBanks.size()>0) {
+			return new DirectRegion(prgBanks.get(0), 0x8000, 0x0FFF);
+		} else if (page>=0xC0 && prgBanks.size()>0) {
+			byte[] bank = prgBanks.get(prgBanks.size()-1);
+			if (Integer.bitCount(bank.length)!=1) return null;
+			return new DirectRegion(bank, 0xC000, bank.length - 1);
+		}
+		
+		return null;
+	}
+	
 	public void addPrgBank(byte[] prgBank) {
 		prgBanks.add(prgBank);
 		System.out.println("PostAddState: "+toString());
@@ -116,6 +158,19 @@ public class Mapper0 implements Mapper {
 		return saveRam;
 	}
 	
+	/** Mapper 0 can't switch banks, so all there is to save is its RAM */
+	@Override
+	public void saveState(ByteBuffer out) {
+		out.put(saveRam);
+		out.put(chrRam);
+	}
+	
+	@Override
+	public void loadState(ByteBuffer in) {
+		in.get(saveRam);
+		in.get(chrRam);
+	}
+	
 	/*
 	@Override
 	public int physicalRead(long addr) {
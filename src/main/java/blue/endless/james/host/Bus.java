@@ -6,4 +6,17 @@ public interface Bus {
 	
 	public int read(long address);
 	public void write(long address, int value);
+	
+	/**
+	 * Optionally exposes which 256-byte pages of this bus are plain memory, so that hot paths like
+	 * instruction fetch can skip read() for them. Entries which are null must go through read().
+	 * 
+	 * <p>The array belongs to the bus and stays current for as long as the bus lives, so callers may
+	 * keep a reference to it. Entries are only replaced when the bus's own mapping changes; bank
+	 * switches update the existing DirectRegion in place.
+	 * @return an array of 256 pages, or null if this bus doesn't support direct reads
+	 */
+	public default DirectRegion[] getDirectPages() {
+		return null;
+	}
 }
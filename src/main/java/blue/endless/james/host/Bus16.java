@@ -0,0 +1,29 @@
+package blue.endless.james.host;
+
+/**
+ * A Bus with a 16-bit address space, as seen by the 8-bit cpus. Addresses are plain ints and bytes
+ * always come back unsigned, so cores don't need long arithmetic or masks on every access.
+ *
+ * <p>Addresses past $FFFF are handled the same way read(long) and write(long, int) handle them.
+ */
+public interface Bus16 extends Bus {
+	/**
+	 * Reads a byte from this bus.
+	 * @return the byte at address, from 0x00 to 0xFF
+	 */
+	public int read8(int address);
+
+	/**
+	 * Writes the low 8 bits of value to this bus.
+	 */
+	public void write8(int address, int value);
+
+	/**
+	 * Reads a little-endian 16-bit value, wrapping around at the end of the address space.
+	 */
+	public default int read16le(int address) {
+		int low = read8(address);
+		int high = read8((address + 1) & 0xFFFF);
+		return (high << 8) | low;
+	}
+}
@@ -1,71 +1,122 @@
 package blue.endless.james.host;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Named buttons, pressed by keys. Each name gets a small integer id when it's registered (binding
+ * a key registers it), and the whole set lives in one AtomicLong: the low 32 bits are which buttons
+ * are held, the high 32 are which ones are locked. The key listener writes it from the AWT thread,
+ * and the emulation thread reads every button at once with a single volatile load.
+ *
+ * <p>Looking up a name nobody registered doesn't hand out an id; it just reads as never held.
+ *
+ * <p>The standard pad is always ids A through RIGHT, in the order the NES shifts them out, so
+ * cores can read getButtons() directly instead of looking anything up.
+ */
 public class ControlSet {
+	public static final int A      = 0;
+	public static final int B      = 1;
+	public static final int SELECT = 2;
+	public static final int START  = 3;
+	public static final int UP     = 4;
+	public static final int DOWN   = 5;
+	public static final int LEFT   = 6;
+	public static final int RIGHT  = 7;
+	/** Bits of getButtons() which belong to the standard pad */
+	public static final int PAD_MASK = 0xFF;
+	public static final int MAX_BUTTONS = 32;
+
+	private static final String[] PAD_NAMES = { "A", "B", "Select", "Start", "Up", "Down", "Left", "Right" };
+
 	private ArrayList<Binding> bindings = new ArrayList<>();
-	
+	private HashMap<String, Integer> ids = new HashMap<>();
+	private final AtomicLong state = new AtomicLong();
+
+	public ControlSet() {
+		for(String name : PAD_NAMES) register(name);
+	}
+
+	/** @return the id for a button name, or -1 if it was never registered */
+	public synchronized int getId(String name) {
+		Integer id = ids.get(name);
+		return (id==null) ? -1 : id;
+	}
+
+	/**
+	 * Gets the id for a button name, handing out a new one if it hasn't been registered before.
+	 * @throws IllegalStateException if all MAX_BUTTONS ids are taken
+	 */
+	public synchronized int register(String name) {
+		Integer id = ids.get(name);
+		if (id!=null) return id;
+		if (ids.size()>=MAX_BUTTONS) throw new IllegalStateException("ControlSet only has room for "+MAX_BUTTONS+" buttons");
+		int next = ids.size();
+		ids.put(name, next);
+		return next;
+	}
+
 	public void acceptKey(int key, boolean active) {
 		for(Binding binding : bindings) {
-			if (binding.getKey()==key) {
-				binding.setActive(active);
+			if (binding.key==key) {
+				binding.state = active;
+
+				boolean held = false;
+				for(Binding other : bindings) {
+					if (other.id==binding.id && other.state) held = true;
+				}
+				long bit = 1L << binding.id;
+				if (held) {
+					state.getAndUpdate(it -> it | bit);
+				} else {
+					state.getAndUpdate(it -> it & ~bit & ~(bit << 32)); //Letting go unlocks
+				}
 			}
 		}
 	}
-	
+
+	/** Every button which is held and not locked, as a bitmask of ids */
+	public int getButtons() {
+		long value = state.get();
+		return (int) (value & ~(value >>> 32));
+	}
+
+	/** @return false for -1, so an id from getId can be polled whether or not it was registered */
+	public boolean get(int id) {
+		if (id<0) return false;
+		return (getButtons() & (1 << id))!=0;
+	}
+
 	public boolean get(String name) {
-		for(Binding binding : bindings) {
-			if (binding.getName().equals(name)) {
-				if (binding.isActive()) return true;
-			}
-		}
-		return false;
+		return get(getId(name));
+	}
+
+	/** Makes a held button read as released until it's let go and pressed again */
+	public void lock(int id) {
+		if (id<0) return;
+		long bit = 1L << (id + 32);
+		state.getAndUpdate(it -> it | bit);
 	}
-	
+
 	public void lock(String name) {
-		for(Binding binding : bindings) {
-			if (binding.getName().equals(name)) {
-				binding.lock();
-				return;
-			}
-		}
+		lock(getId(name));
 	}
-	
+
 	public ControlSet bind(int key, String name) {
-		bindings.add(new Binding(name, key));
+		bindings.add(new Binding(register(name), key));
 		return this;
 	}
-	
+
 	private static class Binding {
-		private int key;
+		private final int id;
+		private final int key;
+		/** Only touched by whichever thread calls acceptKey */
 		private boolean state;
-		private String name;
-		private boolean lock;
-		
-		public int getKey() {
-			return key;
-		}
-		
-		public boolean isActive() {
-			return state & !lock;
-		}
-		
-		public String getName() {
-			return name;
-		}
-		
-		public Binding(String name, int key) {
+
+		public Binding(int id, int key) {
+			this.id = id;
 			this.key = key;
-			this.name = name;
-		}
-		
-		public void setActive(boolean active) {
-			this.state = active;
-			lock &= active;
-		}
-		
-		public void lock() {
-			lock = true;
 		}
 	}
 }
@@ -34,5 +34,21 @@ public interface Core {
 	public void setStopped(boolean stopped);
 	
 	public void connectControls(ControlSet controls);
+	
+	/**
+	 * Asks the core to draw its next frames straight into the given array (getFrameWidth() by
+	 * getFrameHeight() pixels) and present them from there, instead of from its own.
+	 * @return false if this core can't draw into someone else's array, in which case nothing changes
+	 */
+	public default boolean setRenderTarget(int[] target) {
+		return false;
+	}
+	
+	/**
+	 * Gets the bus as the main CPU sees it, so that debuggers and test runners can look at memory. Reading I/O
+	 * registers through it has the same side effects it would have on the CPU.
+	 */
+	public Bus getCpuBus();
+	
 	void connectBios(byte[] gbRom);
 }
@@ -0,0 +1,27 @@
+package blue.endless.james.host;
+
+/**
+ * A page of plain memory which can be read straight out of its backing array instead of going
+ * through {@link Bus#read(long)}. An address maps to {@code data[(address - base) & mask]}, so a
+ * mask smaller than the region also describes mirroring.
+ * 
+ * <p>Regions only describe memory where reading has no side effects. The owning bus may swap
+ * {@code data} in place (for example on a bank switch), so don't hold on to the array itself.
+ */
+public class DirectRegion {
+	public byte[] data;
+	public int base;
+	public int mask;
+	/** True if nothing on the bus can write to this memory (cartridge ROM, boot roms), so code in it never changes while it's mapped */
+	public boolean readOnly = false;
+	
+	public DirectRegion(byte[] data, int base, int mask) {
+		this.data = data;
+		this.base = base;
+		this.mask = mask;
+	}
+	
+	public int read(int address) {
+		return data[(address - base) & mask] & 0xFF;
+	}
+}
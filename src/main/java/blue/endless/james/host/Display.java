@@ -1,15 +1,28 @@
 package blue.endless.james.host;
 
 import java.awt.Color;
+import java.awt.EventQueue;
 import java.awt.Graphics2D;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
 import java.awt.image.BufferStrategy;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.swing.JFrame;
 
-public class Display {
+/**
+ * A window showing frames from an EmulatorSession. Frames are handed to a render thread through a
+ * TripleBuffer, and the render thread does all the scaling and blitting, so the emulation thread
+ * never waits on AWT. Cores which support it draw straight into the TripleBuffer's images.
+ */
+public class Display implements FrameSink {
+	private static final String TITLE = "Felines";
+	/** Even with no new frames, repaint this often so resizes and exposes get filled in */
+	private static final long REPAINT_NANOS = 100_000_000L;
+	
 	public static final int SPACE = KeyEvent.VK_SPACE;
 	public static final int ENTER = KeyEvent.VK_ENTER;
 	public static final int UP = KeyEvent.VK_UP;
@@ -17,14 +30,17 @@ public class Display {
 	
 	private JFrame frame = new JFrame();
 	private int[] rawFrame;
-	private BufferedImage curFrame;
+	private volatile BufferedImage curFrame;
+	private TripleBuffer frames = new TripleBuffer();
+	private Thread renderThread = null;
 	//private boolean[] scanCodes = new boolean[256];
 	private ControlSet controls = new ControlSet();
 	
 	public Display() {
-		frame.setTitle("Felines");
+		frame.setTitle(TITLE);
 		frame.setIgnoreRepaint(true);
-		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+		//Closing the window just disposes it, so whoever's running the session gets to shut down cleanly; see addCloseListener
+		frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
 		frame.setSize(640, 640);
 		
 		controls.bind(KeyEvent.VK_Q, "Select");
@@ -39,6 +55,13 @@ public class Display {
 		controls.bind(KeyEvent.VK_RIGHT, "Right");
 		controls.bind(KeyEvent.VK_ESCAPE, "Pause");
 		controls.bind(KeyEvent.VK_SPACE, "Step");
+		controls.bind(KeyEvent.VK_TAB, "FastForward");
+		controls.bind(KeyEvent.VK_EQUALS, "SpeedUp");
+		controls.bind(KeyEvent.VK_MINUS, "SpeedDown");
+		controls.bind(KeyEvent.VK_F, "FrameSkip");
+		controls.bind(KeyEvent.VK_R, "Rewind");
+		controls.bind(KeyEvent.VK_G, "RunAhead");
+		frame.setFocusTraversalKeysEnabled(false); //Otherwise Swing eats Tab
 		
 		frame.addKeyListener(new KeyListener() {
 			@Override
@@ -56,14 +79,46 @@ public class Display {
 		});
 	}
 	
+	/** Runs the listener on the AWT thread when the window is closed, e.g. to stop the EmulatorSession showing in it */
+	public void addCloseListener(Runnable listener) {
+		frame.addWindowListener(new WindowAdapter() {
+			@Override
+			public void windowClosed(WindowEvent e) {
+				listener.run();
+			}
+		});
+	}
+	
 	public void show() {
 		frame.setVisible(true);
 		frame.createBufferStrategy(2);
+		
+		renderThread = new Thread(this::renderLoop, "Display");
+		renderThread.setDaemon(true);
+		renderThread.start();
 	}
 	
+	/** Wakes the render thread up to show the newest frame. Never blocks. */
+	@Override
 	public void present() {
-		paintFrame(curFrame);
-		frame.getBufferStrategy().show();
+		if (renderThread!=null) LockSupport.unpark(renderThread);
+	}
+	
+	private void renderLoop() {
+		long lastPaint = 0L;
+		while(true) {
+			LockSupport.parkNanos(this, REPAINT_NANOS);
+			if (!frame.isDisplayable()) return; //Window's closed
+			
+			boolean newFrame = frames.acquire();
+			if (newFrame) curFrame = frames.getFrontFrame().image;
+			
+			long now = System.nanoTime();
+			if (curFrame!=null && (newFrame || now-lastPaint>=REPAINT_NANOS)) {
+				paintFrame(curFrame);
+				lastPaint = now;
+			}
+		}
 	}
 	
 	private void paintFrame(BufferedImage im) {
@@ -89,6 +144,12 @@ public class Display {
 		} while (buffer.contentsLost());
 	}
 	
+	/** Puts the status in the title bar */
+	@Override
+	public void setStatus(String status) {
+		EventQueue.invokeLater(() -> frame.setTitle(TITLE+" - "+status));
+	}
+	
 	public int[] getRawFrame() {
 		return rawFrame;
 	}
@@ -97,16 +158,21 @@ public class Display {
 		return curFrame;
 	}
 	
+	/**
+	 * Publishes the frame for the render thread to pick up. Frames drawn into a render target are
+	 * published where they are; anything else is copied into one first. Never blocks.
+	 */
+	@Override
 	public void setFrame(int[] data, int width, int height) {
-		BufferedImage im;
-		if (curFrame!=null && curFrame.getWidth()==width && curFrame.getHeight()==height) {
-			//Reuse curFrame
-			im = curFrame;
-		} else {
-			im = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-		}
-		im.setRGB(0, 0, width, height, data, 0, width);
-		curFrame = im;
+		TripleBuffer.Frame back = frames.getBackFrame(width, height);
+		if (data!=back.data) System.arraycopy(data, 0, back.data, 0, width*height);
+		frames.publish();
+	}
+	
+	/** Lends out the TripleBuffer's back image, so the core draws straight into displayable memory */
+	@Override
+	public int[] getRenderTarget(int width, int height) {
+		return frames.getBackFrame(width, height).data;
 	}
 	
 	private int multiplier(int vsize, int nativeSize) {
@@ -0,0 +1,559 @@
+package blue.endless.james.host;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+import blue.endless.james.core.catboy.GameBoyCore;
+
+/**
+ * One running emulator: a Core, the FrameSink its frames go to, the timer which paces it, and the
+ * controls and pause/step state driving it. Sessions don't share anything, so a process can host as
+ * many of them as it has threads for.
+ */
+public class EmulatorSession implements Runnable {
+	/** Run speed for going as fast as the host can manage, never waiting on the timer */
+	public static final double UNCAPPED = Double.POSITIVE_INFINITY;
+	/** The run speeds SpeedUp and SpeedDown step through */
+	private static final double[] SPEED_PRESETS = { 0.25, 0.5, 1.0, 2.0, 4.0, 8.0, UNCAPPED };
+	private static final int MAX_FRAME_SKIP = 4;
+	/** RunAhead cycles through 0 to this many frames */
+	private static final int MAX_RUN_AHEAD = 3;
+	/** How often the achieved frame rate is measured */
+	private static final long RATE_WINDOW_NANOS = 500_000_000L;
+	
+	private final Core core;
+	private final FrameSink sink;
+	private final ControlSet controls;
+	//Registered up front, so keys can be bound to them later and polling them every frame doesn't go through ControlSet's name map
+	private final int fastForwardButton;
+	private final int pauseButton;
+	private final int stepButton;
+	private final int rewindButton;
+	private final int speedUpButton;
+	private final int speedDownButton;
+	private final int frameSkipButton;
+	private final int runAheadButton;
+	private PeriodicTimer timer;
+	private boolean framePresented = false;
+	private boolean stepping = false;
+	private boolean step = false;
+	private volatile boolean running = false;
+	private long lastDisplay = -1L;
+	private volatile double runSpeed = 1.0;
+	private volatile int frameSkip = 1;
+	/** The speed the timer's period was last set for, or UNCAPPED if it isn't being used */
+	private double timerSpeed = 1.0;
+	private int framesSinceShown = 0;
+	private boolean frameShown = true;
+	/** Null if this session can't rewind */
+	private RewindBuffer rewind = null;
+	/** Null unless a movie is being recorded, in which case the core polls latched instead of controls */
+	private InputMovie.Recorder recorder = null;
+	private InputMovie.LatchedControls latched = null;
+	private boolean inputsLatched = false;
+	private boolean frameSinceLatch = false;
+	private int lastFrameHash = 0;
+	/** Frames to run past the real one before showing anything; 0 is off */
+	private volatile int runAhead = 0;
+	private final Snapshot runAheadState = new Snapshot();
+	/** True while running frames which will be taken back */
+	private boolean aheadOfTime = false;
+	/** False while running frames which shouldn't reach the sink */
+	private boolean showFrames = true;
+
+	//Throughput, written only by the session's own thread, and only once a frame so it's cheap to keep
+	private volatile long framesPresented = 0L;
+	private volatile long cyclesRun = 0L;
+	private volatile long startNanos = 0L;
+	private volatile double emulatedFramesPerSecond = 0.0;
+	private long windowStart = 0L;
+	private long windowFrames = 0L;
+	private volatile double runAheadMillis = 0.0;
+	private long windowRunAheadNanos = 0L;
+	private long windowRunAheads = 0L;
+
+	public EmulatorSession(Core core, FrameSink sink, ControlSet controls) {
+		this.core = core;
+		this.sink = sink;
+		this.controls = controls;
+		fastForwardButton = controls.register("FastForward");
+		pauseButton = controls.register("Pause");
+		stepButton = controls.register("Step");
+		rewindButton = controls.register("Rewind");
+		speedUpButton = controls.register("SpeedUp");
+		speedDownButton = controls.register("SpeedDown");
+		frameSkipButton = controls.register("FrameSkip");
+		runAheadButton = controls.register("RunAhead");
+
+		core.connectControls(controls);
+		core.onPresentFrame().register(this::presentFrame);
+	}
+
+	public Core getCore() {
+		return core;
+	}
+
+	public ControlSet getControls() {
+		return controls;
+	}
+
+	public boolean isStepping() {
+		return stepping;
+	}
+	
+	/**
+	 * Sets how fast to run relative to the real hardware: 1.0 for normal speed, 2.0 for double, and
+	 * so on, or UNCAPPED to run flat out. Safe to call from any thread; takes effect at the next frame.
+	 */
+	public void setRunSpeed(double speed) {
+		if (speed<=0 || Double.isNaN(speed)) throw new IllegalArgumentException("Run speed must be positive");
+		this.runSpeed = speed;
+	}
+	
+	public double getRunSpeed() {
+		return runSpeed;
+	}
+	
+	/**
+	 * Only sends every Nth frame the core produces on to the FrameSink, so fast-forwarding isn't held
+	 * back by drawing. 1 sends every frame.
+	 */
+	public void setFrameSkip(int frameSkip) {
+		this.frameSkip = Math.max(frameSkip, 1);
+	}
+	
+	public int getFrameSkip() {
+		return frameSkip;
+	}
+
+	/**
+	 * Records every frame into the given buffer, and steps back through it for as long as Rewind is
+	 * held. Call before run(). Passing null turns rewinding off.
+	 */
+	public void setRewindBuffer(RewindBuffer rewind) {
+		if (rewind!=null && !(core instanceof Snapshottable)) throw new IllegalArgumentException("This core can't save its state");
+		this.rewind = rewind;
+	}
+	
+	public RewindBuffer getRewindBuffer() {
+		return rewind;
+	}
+
+	/**
+	 * Runs this many frames ahead of the real one, with the buttons held right now, shows the last of
+	 * them, and then puts the core back. Games that take a frame or two to react to input then react
+	 * on the very next frame shown, at the cost of emulating frames+1 frames for every one shown.
+	 * Turned off while a movie is being recorded, since the frames shown aren't the ones recorded.
+	 * NesCore's DOT renderer is too slow for this; use SCANLINE. getRunAheadBudget shows how close to
+	 * the limit it's running.
+	 */
+	public void setRunAhead(int frames) {
+		if (frames<0) throw new IllegalArgumentException("Can't run a negative number of frames ahead");
+		if (frames>0 && !(core instanceof Snapshottable)) throw new IllegalStateException("Core can't save states, so it can't run ahead");
+		this.runAhead = frames;
+	}
+
+	public int getRunAhead() {
+		return runAhead;
+	}
+
+	/**
+	 * Records the buttons held on every frame into the given movie. The core is handed controls
+	 * which only change between frames, so that the movie can be replayed exactly; see InputMovie.
+	 * Call before run(), right after a hard reset, and close the recorder once run() returns; run()
+	 * writes out the last frame before it does.
+	 * Rewinding is turned off while recording, since it would take back frames already written out.
+	 * Passing null stops recording.
+	 */
+	public void setMovieRecorder(InputMovie.Recorder recorder) {
+		this.recorder = recorder;
+		inputsLatched = false;
+		frameSinceLatch = false;
+		if (recorder!=null) {
+			latched = new InputMovie.LatchedControls();
+			core.connectControls(latched);
+		} else {
+			latched = null;
+			core.connectControls(controls);
+		}
+	}
+	
+	public InputMovie.Recorder getMovieRecorder() {
+		return recorder;
+	}
+
+	/** Asks the session to return from run() at the next frame. Safe to call from any thread. */
+	public void stop() {
+		running = false;
+	}
+
+	/** Runs the core in real time until it stops or stop() is called */
+	@Override
+	public void run() {
+		running = true;
+		startNanos = System.nanoTime();
+
+		/*
+		 * Let's Talk: Core t`iming strategy!
+		 * 
+		 * We clock on the Core's video refresh rate, whether or not that's a good fit for our own. Because we're
+		 * nowhere near fullscreen exclusive mode, whatever we present will likely be filtered through a compositor and
+		 * a window manager, so all we can really do is present the frames "when" the frames "happen" and hope the OS
+		 * sorts things out okay. Accordingly, we will focus on the emulated hardware's "when"s and try to find the best
+		 * places to wait around to equalize the two timelines.
+		 * 
+		 * The best-case scenario is to use PeriodicTimer; it combines the most accurate, low-granularity time source
+		 * available to the system with careful handling of fractional time and jitter management. So any time the
+		 * emulated system produces a frame "within reasonable time", we will then ask PeriodicTimer to sync up the time
+		 * streams for us.
+		 * 
+		 * But what is "reasonable time"? We're talking about emulating systems from 2.8MHz up to about 28MHz - as low
+		 * as 35ns per instruction, as high as 357ns. From my tests, calling System.currentTimeMillis or System.nanoTime
+		 * eats up half a millisecond to a millisecond - up to 1,000,000ns! We absolutely cannot use functions which
+		 * execute in these time scales on a per-cycle or per-instruction basis, we'd have no time left for emulating!
+		 * 
+		 * (note: I have seen some reported benchmarks of these functions as low as 25ns. I have never seen numbers this
+		 * low in practice, and I live in a linux world where fast monotonic clocks are the norm. Either way, 25ns out
+		 * of a 35ns budget places per-instruction timing firmly out of reach)
+		 * 
+		 * So rather than measuring real-world time, let's think about what that means to the emulated hardware: there
+		 * is a CPU, and that CPU has a clock frequency, so a certain number of clock cycles should equate to a concrete
+		 * elapsed time in the emulated timeline. If that elapsed time is equal to two cycles' worth of video refresh,
+		 * then there's no video to time our emulation by and we'd better start using CPU cycles to sync up the
+		 * timelines. Luckily, we know we just ate up 1/30th of a second (or whatever two divided by the video refresh
+		 * rate winds up being) and can call PeriodicTimer twice to scrub forward to the equivalent moment in actual
+		 * real-world time.
+		 * 
+		 * So, what do we need? cyclesPerFrame. We can find this conversion ratio by taking the cpu cyclesPerSecond
+		 * times 1/framesPerSecond. The seconds cancel out, and we're left with cycles/frames.
+		 * 
+		 * For the DMG, for example, this is 4194304 * (1/59.73) == 70220 cycles per frame. Therefore if we do not
+		 * receive any frames from the core after stepping it through 140442 clock cycles, we can safely skip two frames
+		 * worth of real-world time and return to the top of the emulation loop.
+		 */
+
+		double framesPerSecond = core.getRefreshRate();
+		double cyclesPerFrame = core.getClockSpeed() * (1.0/framesPerSecond);
+		long cyclesPerTwoFrames = (long) (cyclesPerFrame * 2.0);
+
+		timer = PeriodicTimer.forFPS(framesPerSecond);
+		timerSpeed = 1.0;
+		lastDisplay = timer.getLastTimestamp();
+		windowStart = startNanos;
+		windowFrames = framesPresented;
+		lendRenderTarget();
+
+		while(running && !core.isStopped()) {
+			pollSpeedControls();
+			double speed = (controls.get(fastForwardButton)) ? UNCAPPED : runSpeed;
+			boolean capped = speed!=UNCAPPED;
+			if (speed!=timerSpeed) {
+				//Also restarts the timer's schedule, so coming back from uncapped doesn't try to catch up
+				if (capped) timer.setPeriodHertz(framesPerSecond * speed);
+				timerSpeed = speed;
+			}
+			
+
+			if (stepping) {
+				if (controls.get(pauseButton)) {
+					controls.lock(pauseButton);
+					stepping = false;
+				}
+				if (controls.get(stepButton)) {
+					controls.lock(stepButton);
+					step = true;
+				}
+
+
+				sink.present();
+				if (step) {
+					int clocked = 0;
+					for(int i=0; i<10; i++) {
+						clocked+= core.clock();
+						if (recorder!=null && frameSinceLatch) latchInputs();
+					}
+					cyclesRun += clocked;
+					step = false;
+				}
+			} else {
+
+				if (controls.get(pauseButton)) {
+					controls.lock(pauseButton);
+					//core.setStopped(true);
+					stepping = true;
+				}
+
+
+				//updateOverlays();
+				if (frameShown) {
+					sink.present();
+					frameShown = false;
+				}
+				
+				//We're between frames here, so this is where states are recorded, or stepped back to and then run again to show them
+				if (recorder!=null) latchInputs();
+				if (rewind!=null && recorder==null) {
+					if (controls.get(rewindButton)) {
+						if (!rewind.rewind((Snapshottable) core)) {
+							//Nothing further back; hold still
+							if (capped) timer.waitForPeriod();
+							continue;
+						}
+					} else {
+						rewind.push((Snapshottable) core);
+					}
+				}
+				int ahead = (recorder==null) ? runAhead : 0;
+				showFrames = (ahead==0);
+				framePresented = false;
+
+				long cyclesWithoutFrame = 0;
+				while (!framePresented) {
+					if (core.isStopped()) break;
+					cyclesWithoutFrame += core.clock();
+
+					if (cyclesWithoutFrame > cyclesPerTwoFrames) {
+						cyclesRun += cyclesWithoutFrame;
+						cyclesWithoutFrame = 0;
+						//updateOverlays();
+						sink.present();
+						if (capped) {
+							timer.waitForPeriod();
+							timer.waitForPeriod();
+						}
+					}
+				}
+				cyclesRun += cyclesWithoutFrame;
+				showFrames = true;
+				if (ahead>0 && framePresented) runAhead(ahead, cyclesPerTwoFrames);
+				measureRate();
+
+				if (!core.isStopped() && capped) {
+					timer.waitForPeriod();
+					lastDisplay = timer.getLastTimestamp();
+				}
+			}
+		}
+		//updateOverlays();
+		sink.present();
+		if (recorder!=null) finishRecording();
+		running = false;
+	}
+
+	public void updateOverlays() {
+		if (!(sink instanceof Display)) return;
+		BufferedImage im = ((Display) sink).getFrame();
+		if (im!=null) {
+			Graphics2D g = (Graphics2D) im.getGraphics();
+
+			if (core.isStopped()) {
+				g.setColor(new Color(255, 127, 127));
+				//g.drawString("Core Stopped.", 16, 16);
+			} else if (core instanceof GameBoyCore) {
+				g.setColor(new Color((int) (Math.random()*128), 190, 1));
+				String debug = ((GameBoyCore)core).cpu.debugString;
+				String[] lines = debug.split("\n");
+				for(int i=0; i<lines.length; i++) {
+					//g.drawString(lines[i], 2, 25+(i*16));
+				}
+			}
+
+			g.dispose();
+		}
+	}
+
+	/**
+	 * SpeedUp and SpeedDown step through SPEED_PRESETS, FrameSkip cycles through 1 to MAX_FRAME_SKIP,
+	 * and RunAhead through 0 to MAX_RUN_AHEAD. Changes are shown through the sink's status.
+	 */
+	private void pollSpeedControls() {
+		int buttons = controls.getButtons();
+		if (buttons==0) return;
+		
+		if ((buttons & (1 << speedUpButton))!=0) {
+			controls.lock(speedUpButton);
+			for(double preset : SPEED_PRESETS) {
+				if (preset>runSpeed) {
+					runSpeed = preset;
+					break;
+				}
+			}
+			sink.setStatus("Speed: "+describeSpeed(runSpeed));
+		}
+		if ((buttons & (1 << speedDownButton))!=0) {
+			controls.lock(speedDownButton);
+			for(int i=SPEED_PRESETS.length-1; i>=0; i--) {
+				if (SPEED_PRESETS[i]<runSpeed) {
+					runSpeed = SPEED_PRESETS[i];
+					break;
+				}
+			}
+			sink.setStatus("Speed: "+describeSpeed(runSpeed));
+		}
+		if ((buttons & (1 << frameSkipButton))!=0) {
+			controls.lock(frameSkipButton);
+			frameSkip = (frameSkip % MAX_FRAME_SKIP) + 1;
+			sink.setStatus("Showing every "+frameSkip+" frame(s)");
+		}
+		if ((buttons & (1 << runAheadButton))!=0 && core instanceof Snapshottable) {
+			controls.lock(runAheadButton);
+			runAhead = (runAhead + 1) % (MAX_RUN_AHEAD + 1);
+			sink.setStatus("Running "+runAhead+" frame(s) ahead");
+		}
+	}
+	
+	private static String describeSpeed(double speed) {
+		return (speed==UNCAPPED) ? "uncapped" : speed+"x";
+	}
+	
+	/**
+	 * Saves the core, runs it the given number of frames ahead showing only the last one, and loads it
+	 * back. Frames which never come (the screen is off, say) just cut the run short.
+	 */
+	private void runAhead(int frames, long cyclesPerTwoFrames) {
+		long start = System.nanoTime();
+		runAheadState.save((Snapshottable) core);
+		aheadOfTime = true;
+		for(int i=0; i<frames; i++) {
+			showFrames = (i==frames-1);
+			framePresented = false;
+			long cycles = 0;
+			while(!framePresented && !core.isStopped() && cycles<=cyclesPerTwoFrames) cycles += core.clock();
+			if (!framePresented) break;
+		}
+		aheadOfTime = false;
+		showFrames = true;
+		runAheadState.load((Snapshottable) core);
+		
+		windowRunAheadNanos += System.nanoTime() - start;
+		windowRunAheads++;
+	}
+	
+	/** Once per frame, and only looks at the clock once the window might be over */
+	private void measureRate() {
+		long now = System.nanoTime();
+		long elapsed = now - windowStart;
+		if (elapsed<RATE_WINDOW_NANOS) return;
+		
+		emulatedFramesPerSecond = (framesPresented - windowFrames) / (elapsed / 1_000_000_000.0);
+		runAheadMillis = (windowRunAheads==0) ? 0.0 : (windowRunAheadNanos / (double) windowRunAheads) / 1_000_000.0;
+		windowStart = now;
+		windowFrames = framesPresented;
+		windowRunAheadNanos = 0L;
+		windowRunAheads = 0L;
+	}
+
+	/**
+	 * Called between frames while recording: writes out the frame which just finished, with the
+	 * buttons it ran under and the hash of what it drew, and latches the buttons for the next one.
+	 */
+	private void latchInputs() {
+		try {
+			if (inputsLatched) {
+				if (!frameSinceLatch) return; //Still partway through the same frame
+				recorder.frame(latched.getLatched(), lastFrameHash);
+			}
+			latched.latch(InputMovie.sample(controls));
+			inputsLatched = true;
+			frameSinceLatch = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+			setMovieRecorder(null);
+		}
+	}
+
+	/** Writes out the last frame, if it finished; the recorder still needs closing afterwards */
+	private void finishRecording() {
+		if (!inputsLatched || !frameSinceLatch) return;
+		try {
+			recorder.frame(latched.getLatched(), lastFrameHash);
+			frameSinceLatch = false;
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void presentFrame(int[] frame) {
+		framePresented = true;
+		if (!aheadOfTime) {
+			framesPresented++;
+			if (recorder!=null) {
+				lastFrameHash = InputMovie.hashFrame(frame);
+				frameSinceLatch = true;
+			}
+		}
+		if (!showFrames) return;
+		
+		framesSinceShown++;
+		if (framesSinceShown<frameSkip) return;
+		framesSinceShown = 0;
+		
+		int width = core.getFrameWidth();
+		int height = core.getFrameHeight();
+		if (frame.length==width*height) {
+			sink.setFrame(frame, width, height);
+			lendRenderTarget();
+		}
+		frameShown = true;
+	}
+	
+	/** If the sink lends out arrays to draw into, point the core at the next one so frames never get copied */
+	private void lendRenderTarget() {
+		int[] target = sink.getRenderTarget(core.getFrameWidth(), core.getFrameHeight());
+		if (target!=null) core.setRenderTarget(target);
+	}
+
+	public long getFramesPresented() {
+		return framesPresented;
+	}
+
+	public long getCyclesRun() {
+		return cyclesRun;
+	}
+
+	/** @return frames presented per second of wall-clock time since run() was called */
+	public double getFramesPerSecond() {
+		double seconds = secondsRunning();
+		return (seconds<=0) ? 0.0 : framesPresented / seconds;
+	}
+
+	/**
+	 * @return frames the core produced per second of wall-clock time, measured over the last half
+	 *         second or so, whether or not frame skip let them through. At 1x this is the core's
+	 *         refresh rate; uncapped, it's how fast the host can go.
+	 */
+	public double getEmulatedFramesPerSecond() {
+		return emulatedFramesPerSecond;
+	}
+
+	/**
+	 * @return milliseconds each shown frame spent running ahead (saving, the extra frames, and loading
+	 *         back), averaged over the last half second or so
+	 */
+	public double getRunAheadMillis() {
+		return runAheadMillis;
+	}
+
+	/** @return how much of one frame's time at 1x getRunAheadMillis takes up; at 1.0 or more, run-ahead can't keep up */
+	public double getRunAheadBudget() {
+		return runAheadMillis / (1000.0 / core.getRefreshRate());
+	}
+
+	/** @return emulated time over wall-clock time since run() was called, so 1.0 is full speed */
+	public double getSpeed() {
+		double seconds = secondsRunning();
+		return (seconds<=0) ? 0.0 : (cyclesRun / core.getClockSpeed()) / seconds;
+	}
+
+	/** @return the timestamp, in PeriodicTimer's milliseconds, of the last frame shown */
+	public long getLastDisplay() {
+		return lastDisplay;
+	}
+
+	private double secondsRunning() {
+		if (startNanos==0L) return 0.0;
+		return (System.nanoTime() - startNanos) / 1_000_000_000.0;
+	}
+}
@@ -0,0 +1,31 @@
+package blue.endless.james.host;
+
+/**
+ * Somewhere for an EmulatorSession to send the frames its core produces: a window, a video encoder, a
+ * network stream, or nothing at all.
+ */
+public interface FrameSink {
+	/**
+	 * Hands over the most recent frame. If data came from getRenderTarget, it now belongs to the sink
+	 * again; otherwise it belongs to the core, and may change once this returns.
+	 */
+	public void setFrame(int[] data, int width, int height);
+	
+	/**
+	 * Lends out an array for the core to draw its next frame straight into, so that setFrame doesn't
+	 * have to copy it. The array is only good until the next setFrame.
+	 * @return an array of width*height pixels, or null if this sink always copies
+	 */
+	public default int[] getRenderTarget(int width, int height) {
+		return null;
+	}
+	
+	/** Shows the most recent frame, again if nothing new has arrived since the last time */
+	public void present();
+	
+	/**
+	 * Shows a short description of how the session is running, e.g. "Speed: 2.0x". Only called when
+	 * it changes, which is when somebody presses a key, so there's no hurry.
+	 */
+	public default void setStatus(String status) {}
+}
@@ -0,0 +1,454 @@
+package blue.endless.james.host;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import blue.endless.james.core.catboy.GBLoader;
+import blue.endless.james.core.catboy.GameBoyCore;
+import blue.endless.james.core.felines.INESLoader;
+import blue.endless.james.core.felines.NesCore;
+
+/**
+ * Runs roms with no window and no timer: each one gets its own Core, clocked as fast as it'll go
+ * on a pool of worker threads, until it's been running for a set number of frames or its
+ * CompletionSignature says it's done. Cores don't share anything, so any number of them can run at
+ * once.
+ */
+public class HeadlessRunner {
+	/** Seconds of emulated time to wait before pressing reset for a rom which asks for it */
+	private static final double RESET_DELAY = 0.1;
+	
+	private final CoreFactory factory;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int maxFrames = 60*60;
+	private CompletionSignature completion = core -> null;
+	private Map<Path, Path> movies = new HashMap<>();
+
+	public HeadlessRunner(CoreFactory factory) {
+		this.factory = factory;
+	}
+
+	public HeadlessRunner setThreads(int threads) {
+		this.threads = Math.max(threads, 1);
+		return this;
+	}
+
+	/** Sets how long each rom may run, in frames of emulated time, before it's given up on */
+	public HeadlessRunner setMaxFrames(int maxFrames) {
+		this.maxFrames = maxFrames;
+		return this;
+	}
+
+	public HeadlessRunner setCompletion(CompletionSignature completion) {
+		this.completion = completion;
+		return this;
+	}
+
+	/**
+	 * Plays an input movie on the given rom instead of letting it run by itself. The rom runs for as
+	 * many frames as the movie has, as fast as it'll go, and fails if any frame doesn't hash to what
+	 * the movie recorded.
+	 */
+	public HeadlessRunner setMovie(Path rom, Path movie) {
+		movies.put(rom, movie);
+		return this;
+	}
+
+	/**
+	 * Runs every rom and waits for all of them to finish.
+	 * @return one Result per rom, in the same order
+	 */
+	public List<Result> runAll(List<Path> roms) throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, Math.max(roms.size(), 1)));
+		try {
+			List<Future<Result>> futures = new ArrayList<>();
+			for(Path rom : roms) {
+				futures.add(pool.submit(() -> run(rom)));
+			}
+
+			List<Result> results = new ArrayList<>();
+			for(int i=0; i<roms.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch (ExecutionException e) {
+					results.add(new Result(roms.get(i), 0, 0L, new int[0], null, e.getCause()));
+				}
+			}
+			return results;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Loads and runs one rom on the calling thread */
+	public Result run(Path rom) {
+		Core core;
+		try {
+			core = factory.create(rom);
+		} catch (IOException | RuntimeException e) {
+			return new Result(rom, 0, 0L, new int[0], null, e);
+		}
+
+		Path movie = movies.get(rom);
+		if (movie!=null) return replay(rom, core, movie);
+
+		IntList frameHashes = new IntList();
+		core.onPresentFrame().register(frame -> frameHashes.add(Arrays.hashCode(frame)));
+		core.connectControls(new ControlSet());
+
+		//Count emulated time instead of presented frames, so roms which turn the screen off still time out
+		long cyclesPerFrame = Math.max((long) (core.getClockSpeed() / core.getRefreshRate()), 1L);
+		long cycleLimit = cyclesPerFrame * maxFrames;
+		long nextCheck = cyclesPerFrame;
+		long cycles = 0L;
+		String completed = null;
+		//When the rom asks for the reset button, it's pressed once RESET_DELAY of emulated time has gone by
+		long resetDelay = Math.max((long) (core.getClockSpeed() * RESET_DELAY), 1L);
+		long resetDue = -1L;
+		boolean resetPressed = false;
+		try {
+			core.hardReset();
+			while(cycles<cycleLimit && !core.isStopped()) {
+				cycles += core.clock();
+				if (cycles>=nextCheck) {
+					nextCheck += cyclesPerFrame;
+					completed = completion.check(core);
+					if (completed!=null) break;
+
+					if (!completion.wantsReset(core)) {
+						resetDue = -1L;
+						resetPressed = false;
+					} else if (!resetPressed) {
+						if (resetDue<0) resetDue = cycles + resetDelay;
+						if (cycles>=resetDue) {
+							core.softReset();
+							resetPressed = true; //Until the rom says something else, so one request is one press
+						}
+					}
+				}
+			}
+			if (completed==null) completed = completion.check(core);
+		} catch (RuntimeException e) {
+			return new Result(rom, (int) (cycles / cyclesPerFrame), cycles, frameHashes.toArray(), null, e);
+		}
+
+		return new Result(rom, (int) (cycles / cyclesPerFrame), cycles, frameHashes.toArray(), completed, null);
+	}
+
+	/**
+	 * Replays a movie from a hard reset, exactly the way EmulatorSession recorded it: latch a frame's
+	 * buttons, run until the core presents a frame, check its hash, repeat.
+	 */
+	private Result replay(Path rom, Core core, Path moviePath) {
+		IntList frameHashes = new IntList();
+		boolean[] presented = { false };
+		core.onPresentFrame().register(frame -> {
+			frameHashes.add(InputMovie.hashFrame(frame));
+			presented[0] = true;
+		});
+		InputMovie.LatchedControls latched = new InputMovie.LatchedControls();
+		core.connectControls(latched);
+
+		//A frame that never comes means the run has gone somewhere the recording didn't
+		long cyclesPerFrame = Math.max((long) (core.getClockSpeed() / core.getRefreshRate()), 1L);
+		long frameCycleLimit = cyclesPerFrame * 60 * 60;
+		long cycles = 0L;
+		int frames = 0;
+		try(InputMovie.Player player = new InputMovie.Player(new FileInputStream(moviePath.toFile()))) {
+			InputMovie.Header header = player.getHeader();
+			if (!header.system.equals(InputMovie.Header.systemOf(core))) throw new IOException("Movie was recorded on "+header.system+", not "+InputMovie.Header.systemOf(core));
+			if (header.romChecksum!=0L && header.romChecksum!=InputMovie.checksum(rom)) throw new IOException("Movie was recorded on a different rom");
+
+			core.hardReset();
+			while(player.next()) {
+				latched.latch(player.getMask());
+				presented[0] = false;
+				long frameCycles = 0L;
+				while(!presented[0]) {
+					if (core.isStopped()) throw new IllegalStateException("Core stopped during frame "+frames+" of the movie");
+					if (frameCycles>frameCycleLimit) throw new IllegalStateException("Frame "+frames+" of the movie never came");
+					frameCycles += core.clock();
+				}
+				cycles += frameCycles;
+				if (header.hasHashes && frameHashes.last()!=player.getExpectedHash()) {
+					throw new IllegalStateException("Frame "+frames+" doesn't match the movie");
+				}
+				frames++;
+			}
+		} catch (IOException | RuntimeException e) {
+			return new Result(rom, frames, cycles, frameHashes.toArray(), null, e);
+		}
+
+		return new Result(rom, frames, cycles, frameHashes.toArray(), "movie matched for "+frames+" frames", null);
+	}
+
+	/**
+	 * Recognizes the convention blargg's test roms use to report results in memory: a status byte at
+	 * {@code address}, then the bytes DE B0 61, then a zero-terminated message. The status is 0x80
+	 * while the test runs, 0x81 while it waits for the reset button to be pressed, and the result
+	 * code once it's done.
+	 */
+	public static CompletionSignature memorySignature(long address) {
+		return new CompletionSignature() {
+			@Override
+			public String check(Core core) {
+				int status = readStatus(core);
+				if (status<0 || status==0x80 || status==0x81) return null;
+
+				Bus bus = core.getCpuBus();
+				StringBuilder message = new StringBuilder();
+				for(int i=0; i<1024; i++) {
+					int ch = bus.read(address+4+i);
+					if (ch==0) break;
+					message.append((char) ch);
+				}
+				return "status "+status+": "+message.toString().trim();
+			}
+
+			@Override
+			public boolean wantsReset(Core core) {
+				return readStatus(core)==0x81;
+			}
+
+			/** @return the status byte, or -1 if the signature isn't there yet */
+			private int readStatus(Core core) {
+				Bus bus = core.getCpuBus();
+				if (bus.read(address+1)!=0xDE || bus.read(address+2)!=0xB0 || bus.read(address+3)!=0x61) return -1;
+				return bus.read(address);
+			}
+		};
+	}
+
+	/** Recognizes the "Passed" or "Failed" which blargg's Game Boy test roms print out the serial port */
+	public static CompletionSignature serialSignature() {
+		return core -> {
+			if (!(core instanceof GameBoyCore)) return null;
+			String output = ((GameBoyCore) core).getSerialOutput();
+			if (output.contains("Passed") || output.contains("Failed")) return output.trim().replace('\n', ' ');
+			return null;
+		};
+	}
+
+	/** Any of the signatures, whichever shows up first */
+	public static CompletionSignature anyOf(CompletionSignature... signatures) {
+		return new CompletionSignature() {
+			@Override
+			public String check(Core core) {
+				for(CompletionSignature signature : signatures) {
+					String result = signature.check(core);
+					if (result!=null) return result;
+				}
+				return null;
+			}
+
+			@Override
+			public boolean wantsReset(Core core) {
+				for(CompletionSignature signature : signatures) {
+					if (signature.wantsReset(core)) return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Picks a core by file extension: .gb and .gbc roms get a GameBoyCore (which needs a boot rom to
+	 * start up), .nes roms get a NesCore.
+	 */
+	public static CoreFactory defaultFactory(byte[] gbBios) {
+		return rom -> {
+			String name = rom.getFileName().toString().toLowerCase();
+			try(InputStream in = new FileInputStream(rom.toFile())) {
+				if (name.endsWith(".nes")) {
+					NesCore core = new NesCore();
+					INESLoader.loadCartridge(in, core);
+					return core;
+				} else if (name.endsWith(".gb") || name.endsWith(".gbc")) {
+					if (gbBios==null) throw new IOException("Game Boy roms need a boot rom (--bios)");
+					GameBoyCore core = new GameBoyCore();
+					core.connectBios(gbBios);
+					GBLoader.loadCartridge(in, core);
+					return core;
+				} else {
+					throw new IOException("Don't know what system runs "+rom.getFileName());
+				}
+			}
+		};
+	}
+
+	/** Turns on per-frame debug logging in the cores the factory makes, for cores which have it */
+	private static CoreFactory debugFactory(CoreFactory factory) {
+		return rom -> {
+			Core core = factory.create(rom);
+			if (core instanceof NesCore) ((NesCore) core).setDebug(true);
+			return core;
+		};
+	}
+
+	/**
+	 * Usage: HeadlessRunner [--threads n] [--frames n] [--bios gb_bios.bin] [--verbose] [[--movie movie.jmov] rom]...
+	 *
+	 * <p>A --movie plays that input movie on the rom right after it, and checks every frame against
+	 * it. Prints one line per rom, and exits with a nonzero status if any of them failed to load,
+	 * crashed, never signalled completion, or didn't match its movie.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int frames = 60*60;
+		byte[] bios = null;
+		boolean verbose = false;
+		List<Path> roms = new ArrayList<>();
+		Map<Path, Path> movies = new HashMap<>();
+		Path movie = null;
+		for(int i=0; i<args.length; i++) {
+			switch(args[i]) {
+			case "--threads":
+				threads = Integer.parseInt(args[++i]);
+				break;
+			case "--frames":
+				frames = Integer.parseInt(args[++i]);
+				break;
+			case "--bios":
+				bios = Files.readAllBytes(Path.of(args[++i]));
+				break;
+			case "--verbose":
+				verbose = true;
+				break;
+			case "--movie":
+				movie = Path.of(args[++i]);
+				break;
+			default:
+				Path rom = Path.of(args[i]);
+				roms.add(rom);
+				if (movie!=null) movies.put(rom, movie);
+				movie = null;
+			}
+		}
+
+		//Loading and resetting a rom prints a few lines, which would bury the results. A null stream still takes
+		//System.out's lock, so anything printed per frame has to stay behind a debug flag; --verbose turns those on
+		PrintStream out = System.out;
+		if (!verbose) System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		CoreFactory factory = defaultFactory(bios);
+		if (verbose) factory = debugFactory(factory);
+
+		HeadlessRunner runner = new HeadlessRunner(factory)
+				.setThreads(threads)
+				.setMaxFrames(frames)
+				.setCompletion(anyOf(serialSignature(), memorySignature(0x6000), memorySignature(0xA000)));
+		movies.forEach(runner::setMovie);
+
+		long start = System.nanoTime();
+		List<Result> results = runner.runAll(roms);
+		long elapsed = (System.nanoTime() - start) / 1_000_000L;
+
+		int failed = 0;
+		for(Result result : results) {
+			out.println(result);
+			if (!result.isComplete()) failed++;
+		}
+		out.println(results.size()+" roms, "+failed+" incomplete, "+elapsed+"ms");
+		System.exit((failed==0) ? 0 : 1);
+	}
+
+	@FunctionalInterface
+	public interface CoreFactory {
+		/** Creates a new Core with the rom loaded, ready for hardReset */
+		public Core create(Path rom) throws IOException;
+	}
+
+	@FunctionalInterface
+	public interface CompletionSignature {
+		/**
+		 * Checked once per frame of emulated time.
+		 * @return a description of the rom's result once it's finished, or null if it's still going
+		 */
+		public String check(Core core);
+
+		/**
+		 * Checked once per frame of emulated time, while the rom hasn't finished. The runner presses
+		 * reset (softReset) once this has been true for a little while, and not again until it's gone
+		 * false in between.
+		 */
+		public default boolean wantsReset(Core core) {
+			return false;
+		}
+	}
+
+	public static class Result {
+		public final Path rom;
+		/** Frames of emulated time the rom ran for */
+		public final int frames;
+		public final long cycles;
+		/** Arrays.hashCode of every frame the core presented, in order */
+		public final int[] frameHashes;
+		/** What the CompletionSignature reported, or null if it never did */
+		public final String completion;
+		/** What went wrong loading or running the rom, if anything */
+		public final Throwable error;
+
+		public Result(Path rom, int frames, long cycles, int[] frameHashes, String completion, Throwable error) {
+			this.rom = rom;
+			this.frames = frames;
+			this.cycles = cycles;
+			this.frameHashes = frameHashes;
+			this.completion = completion;
+			this.error = error;
+		}
+
+		public boolean isComplete() {
+			return error==null && completion!=null;
+		}
+
+		/** The hash of the last frame presented, or 0 if there wasn't one */
+		public int lastFrameHash() {
+			return (frameHashes.length==0) ? 0 : frameHashes[frameHashes.length-1];
+		}
+
+		@Override
+		public String toString() {
+			String status;
+			if (error!=null) {
+				status = "ERROR "+error;
+			} else if (completion!=null) {
+				status = "DONE "+completion;
+			} else {
+				status = "TIMEOUT";
+			}
+			return rom+": "+status+" ("+frames+" frames, "+frameHashes.length+" presented, last frame "+Integer.toHexString(lastFrameHash())+")";
+		}
+	}
+
+	/** Frame hashes arrive one at a time for thousands of frames, so keep them unboxed */
+	private static class IntList {
+		private int[] data = new int[64];
+		private int size = 0;
+
+		public void add(int value) {
+			if (size==data.length) data = Arrays.copyOf(data, size*2);
+			data[size++] = value;
+		}
+
+		public int last() {
+			return (size==0) ? 0 : data[size-1];
+		}
+
+		public int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+}
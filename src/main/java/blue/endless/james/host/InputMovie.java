@@ -0,0 +1,194 @@
+package blue.endless.james.host;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Input movies: the buttons held on every frame of a run, from power-on, so the run can be played
+ * back exactly. Cores read their controls live, whenever the game polls them, so a recording
+ * can't just note what was held when. Instead the core is given LatchedControls, which only change
+ * between frames, and the movie stores one latch per frame. Replaying the same latches from a hard
+ * reset gives the same run, instruction for instruction.
+ *
+ * <p>Each frame can also carry a hash of the picture it produced, so replaying an archived movie
+ * checks that the ppus still draw exactly what they used to.
+ *
+ * <p>The file is a small header followed by one record per frame (a byte of buttons, then the
+ * frame's hash if there are hashes), gzipped as it's written. Button bits are in BUTTONS order,
+ * which is the same as ControlSet's pad ids.
+ */
+public class InputMovie {
+	public static final String[] BUTTONS = { "A", "B", "Select", "Start", "Up", "Down", "Left", "Right" };
+	private static final int MAGIC = 0x4A4D4F56; //"JMOV"
+	private static final int VERSION = 1;
+
+	/** Reads which of BUTTONS are held right now, as a bitmask */
+	public static int sample(ControlSet controls) {
+		return controls.getButtons() & ControlSet.PAD_MASK;
+	}
+
+	public static int hashFrame(int[] frame) {
+		return Arrays.hashCode(frame);
+	}
+
+	/** CRC32 of a rom file, so a movie can tell whether it's being played back on the right one */
+	public static long checksum(Path rom) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update(Files.readAllBytes(rom));
+		return crc.getValue();
+	}
+
+	public static class Header {
+		/** Which core recorded this; see systemOf */
+		public final String system;
+		/** CRC32 of the rom, or 0 if nobody knew it */
+		public final long romChecksum;
+		public final boolean hasHashes;
+
+		public Header(String system, long romChecksum, boolean hasHashes) {
+			this.system = system;
+			this.romChecksum = romChecksum;
+			this.hasHashes = hasHashes;
+		}
+
+		public static String systemOf(Core core) {
+			return core.getClass().getSimpleName();
+		}
+	}
+
+	/**
+	 * A ControlSet the core can poll as often as it likes, which only ever changes when latch is
+	 * called between frames. Only the buttons in BUTTONS are ever held.
+	 */
+	public static class LatchedControls extends ControlSet {
+		private int mask = 0;
+
+		public void latch(int mask) {
+			this.mask = mask;
+		}
+
+		public int getLatched() {
+			return mask;
+		}
+
+		@Override
+		public int getButtons() {
+			return mask;
+		}
+	}
+
+	/** Streams a movie out as it's recorded */
+	public static class Recorder implements Closeable {
+		private final DataOutputStream out;
+		private final boolean hashes;
+		private int frames = 0;
+
+		public Recorder(OutputStream out, Header header) throws IOException {
+			this.out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(out)));
+			this.hashes = header.hasHashes;
+			this.out.writeInt(MAGIC);
+			this.out.writeInt(VERSION);
+			this.out.writeUTF(header.system);
+			this.out.writeLong(header.romChecksum);
+			this.out.writeBoolean(header.hasHashes);
+		}
+
+		/** Records the buttons latched for one frame, and the hash of what it drew (ignored if this movie has no hashes) */
+		public void frame(int mask, int frameHash) throws IOException {
+			out.writeByte(mask);
+			if (hashes) out.writeInt(frameHash);
+			frames++;
+		}
+
+		public int getFrames() {
+			return frames;
+		}
+
+		@Override
+		public void close() throws IOException {
+			out.close();
+		}
+	}
+
+	/** Streams a movie back in, a frame at a time */
+	public static class Player implements Closeable {
+		private final DataInputStream in;
+		private final Header header;
+		private int mask = 0;
+		private int expectedHash = 0;
+		private int frames = 0;
+
+		public Player(InputStream in) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(in)));
+			if (this.in.readInt()!=MAGIC) throw new IOException("Not an input movie");
+			int version = this.in.readInt();
+			if (version!=VERSION) throw new IOException("Input movie is version "+version+", but only version "+VERSION+" can be played");
+			String system = this.in.readUTF();
+			long romChecksum = this.in.readLong();
+			boolean hasHashes = this.in.readBoolean();
+			header = new Header(system, romChecksum, hasHashes);
+		}
+
+		public Header getHeader() {
+			return header;
+		}
+
+		/**
+		 * Moves on to the next frame. A movie which was cut off (say the recorder was never closed)
+		 * just ends at the last whole frame.
+		 * @return false if the movie is over
+		 */
+		public boolean next() throws IOException {
+			int value;
+			try {
+				value = in.read();
+			} catch (EOFException e) {
+				return false; //Cut off partway through the gzip stream
+			}
+			if (value<0) return false;
+			mask = value;
+			if (header.hasHashes) {
+				try {
+					expectedHash = in.readInt();
+				} catch (EOFException e) {
+					return false; //Cut off partway through the last frame
+				}
+			}
+			frames++;
+			return true;
+		}
+
+		/** The buttons to latch for the current frame */
+		public int getMask() {
+			return mask;
+		}
+
+		/** What the current frame should hash to, if the movie has hashes */
+		public int getExpectedHash() {
+			return expectedHash;
+		}
+
+		/** How many frames have been read so far */
+		public int getFrames() {
+			return frames;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
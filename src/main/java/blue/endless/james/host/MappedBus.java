@@ -1,18 +1,95 @@
 package blue.endless.james.host;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.function.IntConsumer;
 import java.util.function.IntSupplier;
 
-public class MappedBus implements Bus {
+/**
+ * A Bus assembled out of smaller mappings. Mappings are kept in priority lists, but accesses are
+ * dispatched through a 256-entry page table which is rebuilt whenever the mappings change. Pages
+ * which resolve to a single mapping are one array lookup; pages which are shared between several
+ * mappings (typically single-byte IO registers) get a fine-grained table of 256 entries.
+ * 
+ * <p>Child buses are consulted through mapsRead/mapsWrite when the table is built, so they're
+ * expected to claim the same address ranges for as long as they stay mapped.
+ */
+public class MappedBus implements Bus16 {
+	private static final int ADDRESS_SPACE = 0x10000;
+	private static final int PAGE_SIZE = 0x100;
+	private static final int PAGE_COUNT = ADDRESS_SPACE / PAGE_SIZE;
+	
 	private ArrayList<ArrayMapping> priorityRoms = new ArrayList<>();
 	private ArrayList<ReadMapping> readMappings = new ArrayList<>();
 	private ArrayList<WriteMapping> writeMappings = new ArrayList<>();
 	private ArrayList<Bus> childBuses = new ArrayList<>();
 	private int unmappedValue = 0;
 	
+	private final ReadMapping[] readPages = new ReadMapping[PAGE_COUNT];
+	private final ReadMapping[][] readFinePages = new ReadMapping[PAGE_COUNT][];
+	private final WriteMapping[] writePages = new WriteMapping[PAGE_COUNT];
+	private final WriteMapping[][] writeFinePages = new WriteMapping[PAGE_COUNT][];
+	private final DirectRegion[] directPages = new DirectRegion[PAGE_COUNT];
+	
+	private final UnmappedMapping unmapped = new UnmappedMapping();
+	
+	public MappedBus() {
+		rebuildPageTable();
+	}
+	
 	@Override
 	public int read(long addr) {
+		if ((addr & ~0xFFFFL) != 0) return scanRead(addr);
+		
+		int page = (int) (addr >>> 8);
+		ReadMapping mapping = readPages[page];
+		if (mapping==null) mapping = readFinePages[page][(int) addr & 0xFF];
+		
+		return mapping.read(addr - mapping.getStart());
+	}
+
+	@Override
+	public void write(long addr, int val) {
+		if ((addr & ~0xFFFFL) != 0) {
+			scanWrite(addr, val);
+			return;
+		}
+		
+		int page = (int) (addr >>> 8);
+		WriteMapping mapping = writePages[page];
+		if (mapping==null) mapping = writeFinePages[page][(int) addr & 0xFF];
+		
+		mapping.write(addr - mapping.getStart(), val);
+	}
+	
+	@Override
+	public int read8(int addr) {
+		if ((addr & ~0xFFFF) != 0) return scanRead(addr) & 0xFF;
+		
+		ReadMapping mapping = readPages[addr >>> 8];
+		if (mapping==null) mapping = readFinePages[addr >>> 8][addr & 0xFF];
+		
+		return mapping.read(addr - mapping.getStart()) & 0xFF;
+	}
+	
+	@Override
+	public void write8(int addr, int val) {
+		if ((addr & ~0xFFFF) != 0) {
+			scanWrite(addr, val & 0xFF);
+			return;
+		}
+		
+		WriteMapping mapping = writePages[addr >>> 8];
+		if (mapping==null) mapping = writeFinePages[addr >>> 8][addr & 0xFF];
+		
+		mapping.write(addr - mapping.getStart(), val & 0xFF);
+	}
+	
+	/**
+	 * Resolves an access the slow way, by walking the mapping lists in priority order. Only used for
+	 * addresses which fall outside the 16-bit page table.
+	 */
+	private int scanRead(long addr) {
 		for(ArrayMapping mapping : priorityRoms) {
 			if (addr >= mapping.getStart() && addr < mapping.getStart() + mapping.getSize()) {
 				return mapping.read(addr - mapping.getStart());
@@ -32,8 +109,7 @@ public class MappedBus implements Bus {
 		return unmappedValue;
 	}
 
-	@Override
-	public void write(long addr, int val) {
+	private void scanWrite(long addr, int val) {
 		for(Bus mapper : childBuses) {
 			if (mapper.mapsWrite(addr)) {
 				mapper.write(addr, val);
@@ -53,12 +129,111 @@ public class MappedBus implements Bus {
 		this.unmappedValue = value;
 	}
 	
+	/**
+	 * Re-resolves every address in the 16-bit space against the mapping lists and packs the
+	 * results into the page table. Lower-priority mappings are painted first so that higher-priority
+	 * ones overwrite them, which matches the order the lists are searched in by scanRead/scanWrite.
+	 */
+	private void rebuildPageTable() {
+		ReadMapping[] reads = new ReadMapping[ADDRESS_SPACE];
+		WriteMapping[] writes = new WriteMapping[ADDRESS_SPACE];
+		Arrays.fill(reads, unmapped);
+		Arrays.fill(writes, unmapped);
+		
+		for(int i=readMappings.size()-1; i>=0; i--) paint(reads, readMappings.get(i));
+		for(int i=writeMappings.size()-1; i>=0; i--) paint(writes, writeMappings.get(i));
+		
+		for(int i=childBuses.size()-1; i>=0; i--) {
+			Bus child = childBuses.get(i);
+			BusMapping mapping = new BusMapping(child);
+			for(int addr=0; addr<ADDRESS_SPACE; addr++) {
+				if (child.mapsRead(addr)) reads[addr] = mapping;
+				if (child.mapsWrite(addr)) writes[addr] = mapping;
+			}
+		}
+		
+		for(int i=priorityRoms.size()-1; i>=0; i--) paint(reads, priorityRoms.get(i));
+		
+		for(int page=0; page<PAGE_COUNT; page++) {
+			int base = page * PAGE_SIZE;
+			
+			if (isUniform(reads, base)) {
+				readPages[page] = reads[base];
+				readFinePages[page] = null;
+				directPages[page] = directRegion(reads[base], page);
+			} else {
+				readPages[page] = null;
+				readFinePages[page] = Arrays.copyOfRange(reads, base, base + PAGE_SIZE);
+				directPages[page] = null;
+			}
+			
+			if (isUniform(writes, base)) {
+				writePages[page] = writes[base];
+				writeFinePages[page] = null;
+			} else {
+				writePages[page] = null;
+				writeFinePages[page] = Arrays.copyOfRange(writes, base, base + PAGE_SIZE);
+			}
+		}
+	}
+	
+	private DirectRegion directRegion(ReadMapping mapping, int page) {
+		if (mapping instanceof ArrayMapping) {
+			ArrayMapping array = (ArrayMapping) mapping;
+			int length = array.source.length;
+			DirectRegion region = null;
+			if (Integer.bitCount(length)==1) {
+				region = new DirectRegion(array.source, array.start, length - 1);
+			} else if (page * PAGE_SIZE + PAGE_SIZE <= array.start + length) {
+				//The whole page is in front of the first mirror, so no wrapping is needed
+				region = new DirectRegion(array.source, array.start, -1);
+			}
+			if (region!=null) region.readOnly = !writesInto(array.source);
+			return region;
+		} else if (mapping instanceof BusMapping) {
+			DirectRegion[] childPages = ((BusMapping) mapping).delegate.getDirectPages();
+			if (childPages!=null) return childPages[page];
+		}
+		
+		return null;
+	}
+	
+	/** Checks whether any write mapping targets this array, e.g. to tell RAM from a priority-mapped rom */
+	private boolean writesInto(byte[] source) {
+		for(WriteMapping mapping : writeMappings) {
+			if (mapping instanceof ArrayMapping && ((ArrayMapping) mapping).source==source) return true;
+		}
+		return false;
+	}
+	
+	private static void paint(ReadMapping[] table, ReadMapping mapping) {
+		int start = (int) Math.max(mapping.getStart(), 0);
+		int end = (int) Math.min(mapping.getStart() + mapping.getSize(), ADDRESS_SPACE);
+		for(int addr=start; addr<end; addr++) table[addr] = mapping;
+	}
+	
+	private static void paint(WriteMapping[] table, WriteMapping mapping) {
+		int start = (int) Math.max(mapping.getStart(), 0);
+		int end = (int) Math.min(mapping.getStart() + mapping.getSize(), ADDRESS_SPACE);
+		for(int addr=start; addr<end; addr++) table[addr] = mapping;
+	}
+	
+	private static boolean isUniform(Object[] table, int base) {
+		Object first = table[base];
+		for(int i=1; i<PAGE_SIZE; i++) {
+			if (table[base+i]!=first) return false;
+		}
+		return true;
+	}
+	
 	public void map(IntSupplier supplier, int addr) {
 		readMappings.add(new SupplierMapping(supplier, addr));
+		rebuildPageTable();
 	}
 	
 	public void map(IntConsumer consumer, int addr) {
 		writeMappings.add(new ConsumerMapping(consumer, addr));
+		rebuildPageTable();
 	}
 	
 	public void map(IntSupplier supplier, IntConsumer consumer, int addr) {
@@ -77,15 +252,18 @@ public class MappedBus implements Bus {
 		mapping.size = size;
 		readMappings.add(mapping);
 		writeMappings.add(mapping);
+		rebuildPageTable();
 	}
 	
 	public <T extends ReadMapping & WriteMapping> void map(T mapper) {
 		readMappings.add(mapper);
 		writeMappings.add(mapper);
+		rebuildPageTable();
 	}
 	
 	public void map(Bus mapper) {
 		childBuses.add(mapper);
+		rebuildPageTable();
 	}
 	
 	public void priorityMap(byte[] source, int start) {
@@ -94,6 +272,7 @@ public class MappedBus implements Bus {
 		mapping.start = start;
 		mapping.size = source.length;
 		priorityRoms.add(mapping);
+		rebuildPageTable();
 	}
 	
 	public void unmap(byte[] source) {
@@ -119,6 +298,8 @@ public class MappedBus implements Bus {
 				break;
 			}
 		}
+		
+		rebuildPageTable();
 	}
 	
 	public <T extends ReadMapping & WriteMapping> void unmap(T mapper) {
@@ -137,14 +318,18 @@ public class MappedBus implements Bus {
 				break;
 			}
 		}
+		
+		rebuildPageTable();
 	}
 	
 	public void unmap(Bus mapper) {
 		childBuses.remove(mapper);
+		rebuildPageTable();
 	}
 	
 	public void unmapAllMappers() {
 		childBuses.clear();
+		rebuildPageTable();
 	}
 	
 	public static interface ReadMapping {
@@ -159,6 +344,56 @@ public class MappedBus implements Bus {
 		public void write(long relativeAddress, int value);
 	}
 	
+	/** Stands in for any address nothing else claims. Reads the unmapped value live, so it can change without a rebuild. */
+	private class UnmappedMapping implements ReadMapping, WriteMapping {
+		@Override
+		public long getStart() {
+			return 0;
+		}
+		
+		@Override
+		public long getSize() {
+			return ADDRESS_SPACE;
+		}
+		
+		@Override
+		public int read(long relativeAddress) {
+			return unmappedValue;
+		}
+		
+		@Override
+		public void write(long relativeAddress, int value) {}
+	}
+	
+	/** Lets a child bus sit in the page table. It's mapped at zero, so relative addresses are absolute addresses. */
+	private static class BusMapping implements ReadMapping, WriteMapping {
+		private final Bus delegate;
+		
+		public BusMapping(Bus delegate) {
+			this.delegate = delegate;
+		}
+		
+		@Override
+		public long getStart() {
+			return 0;
+		}
+		
+		@Override
+		public long getSize() {
+			return ADDRESS_SPACE;
+		}
+		
+		@Override
+		public int read(long relativeAddress) {
+			return delegate.read(relativeAddress);
+		}
+		
+		@Override
+		public void write(long relativeAddress, int value) {
+			delegate.write(relativeAddress, value);
+		}
+	}
+	
 	public static class SupplierMapping implements ReadMapping {
 		public int start;
 		public IntSupplier delegate;
@@ -239,6 +474,11 @@ public class MappedBus implements Bus {
 		}
 	}
 
+	@Override
+	public DirectRegion[] getDirectPages() {
+		return directPages;
+	}
+	
 	@Override
 	public boolean mapsRead(long address) {
 		return true;
@@ -1,5 +1,7 @@
 package blue.endless.james.host;
 
+import java.util.concurrent.locks.LockSupport;
+
 public class PeriodicTimer {
 	/**
 	 * If one frame overshoots its time, the next frame may be allowed to undershoot its
@@ -10,6 +12,26 @@ public class PeriodicTimer {
 	 * the next frame.
 	 */
 	private static final long MAX_REMAINDER = 5L;
+	
+	/** Spin for at least this long before each deadline, however well parking has been behaving */
+	private static final long MIN_SPIN_NANOS = 20_000L;
+	/** ...and never spin for longer than this */
+	private static final long MAX_SPIN_NANOS = 2_000_000L;
+	/** If we fall this many periods behind schedule, give up on catching up and start a new schedule from now */
+	private static final int MAX_LAG_PERIODS = 4;
+	/** Upper bounds of the overshoot histogram's buckets, in nanoseconds. The last bucket is everything above. */
+	public static final long[] HISTOGRAM_BOUNDS_NANOS = { 1_000L, 10_000L, 100_000L, 1_000_000L, 10_000_000L };
+	
+	public enum Pacing {
+		/** Whole-millisecond periods and Thread.sleep, letting each frame borrow or lend time to the next */
+		MILLIS,
+		/**
+		 * Fractional periods on a nanosecond schedule that never drifts: period n always ends at
+		 * {@code start + n*period}. Waits park the thread for most of the time and spin for the last
+		 * little bit, and the spin is sized from how late parking has been waking up.
+		 */
+		NANOS;
+	}
 
 	private long previous;
 	private long period = (long) ((1.0 / 60.0) * 1000.0); // 1/60th of a second in msec
@@ -20,28 +42,64 @@ public class PeriodicTimer {
 	private boolean spinlock = false;
 	private long errorSamples = 1L;
 	private long curErrorSamples = 0L;
+	
+	private Pacing pacing = Pacing.MILLIS;
+	private double periodNanos = 1_000_000_000.0 / 60.0;
+	private long scheduleStart;
+	private long periodsSinceStart = 0L;
+	private long previousNanos;
+	private long spinNanos = 200_000L;
+	private long parkOvershoot = 0L;
+	
+	//Statistics: how late each period actually ended
+	private long overshootSamples = 0L;
+	private long overshootTotal = 0L;
+	private long maxOvershoot = 0L;
+	private long[] overshootHistogram = new long[HISTOGRAM_BOUNDS_NANOS.length + 1];
 
 	public PeriodicTimer() {
 		previous = now();
+		restartSchedule(System.nanoTime());
 	}
 
 	public PeriodicTimer(long period) {
 		previous = now();
+		restartSchedule(System.nanoTime());
 		this.period = period;
+		this.periodNanos = period * 1_000_000.0;
 	}
 
 	public void setPeriodMillis(long period) {
 		this.period = period;
+		this.periodNanos = period * 1_000_000.0;
+		restartSchedule(System.nanoTime());
 	}
 
 	public void setPeriodHertz(double hertz) {
 		double period = (1.0/hertz) * 1000.0;
 		this.period = (long) period;
+		this.periodNanos = 1_000_000_000.0 / hertz;
 		this.errorSamples = (long) (hertz / 2.0);
 		this.curErrorSamples = 0L;
+		restartSchedule(System.nanoTime());
+	}
+	
+	public Pacing getPacing() {
+		return pacing;
+	}
+	
+	public void setPacing(Pacing pacing) {
+		this.pacing = pacing;
+		previous = now();
+		restartSchedule(System.nanoTime());
 	}
 
 	public void waitForPeriod() {
+		if (pacing==Pacing.NANOS) {
+			waitForPeriodNanos();
+			return;
+		}
+		
 		long now = now();
 		long elapsed = now-previous;
 		long frameDuration = period-remainder;
@@ -58,6 +116,109 @@ public class PeriodicTimer {
 		elapsed = now-previous;
 		long remainder = elapsed - frameDuration; //if we fell short, elapsed will be less than frameDuration and we'll lend the next frame some millis.
 		latch(now, remainder);
+		recordOvershoot(Math.max(remainder, 0L) * 1_000_000L);
+	}
+	
+	private void waitForPeriodNanos() {
+		periodsSinceStart++;
+		long deadline = scheduleStart + (long) (periodsSinceStart * periodNanos);
+		long now = System.nanoTime();
+		
+		if (now - deadline > periodNanos * MAX_LAG_PERIODS) {
+			//Something stalled us (a GC, a breakpoint, a minimized window). Racing through the backlog would look worse than skipping it.
+			recordOvershoot(now - deadline);
+			restartSchedule(now);
+			return;
+		}
+		
+		long remaining = deadline - now;
+		while(remaining > spinNanos) {
+			long parkFor = remaining - spinNanos;
+			LockSupport.parkNanos(parkFor);
+			long woke = System.nanoTime();
+			adaptSpin(woke - now - parkFor);
+			now = woke;
+			remaining = deadline - now;
+		}
+		
+		while(now < deadline) {
+			Thread.onSpinWait();
+			now = System.nanoTime();
+		}
+		
+		recordOvershoot(now - deadline);
+		previousNanos = now;
+		previous = now / 1_000_000L;
+	}
+	
+	/**
+	 * Sizes the spin tail from how late parkNanos wakes up: about twice its recent average lateness, so
+	 * that a typical late wakeup still lands inside the spin, and straight away to the latest wakeup
+	 * if one overshot the spin entirely.
+	 */
+	private void adaptSpin(long lateness) {
+		if (lateness<0) lateness = 0; //Woke early (an unpark or a spurious wakeup); the loop just parks again
+		parkOvershoot += (lateness - parkOvershoot) / 8;
+		long spin = Math.max(parkOvershoot * 2, (lateness > spinNanos) ? lateness : 0L);
+		spinNanos = Math.min(Math.max(spin, MIN_SPIN_NANOS), MAX_SPIN_NANOS);
+	}
+	
+	private void restartSchedule(long now) {
+		scheduleStart = now;
+		periodsSinceStart = 0L;
+		previousNanos = now;
+	}
+	
+	private void recordOvershoot(long overshoot) {
+		overshootSamples++;
+		overshootTotal += overshoot;
+		maxOvershoot = Math.max(maxOvershoot, overshoot);
+		int bucket = 0;
+		while(bucket<HISTOGRAM_BOUNDS_NANOS.length && overshoot>=HISTOGRAM_BOUNDS_NANOS[bucket]) bucket++;
+		overshootHistogram[bucket]++;
+	}
+	
+	/** @return the average amount periods have ended late by, in nanoseconds */
+	public long getMeanJitterNanos() {
+		return (overshootSamples==0) ? 0L : overshootTotal / overshootSamples;
+	}
+	
+	public long getMaxJitterNanos() {
+		return maxOvershoot;
+	}
+	
+	/**
+	 * @return how many periods ended late by each amount: bucket i counts overshoots below
+	 *         HISTOGRAM_BOUNDS_NANOS[i] (and at least the bound before it), and the last bucket
+	 *         counts everything longer
+	 */
+	public long[] getOvershootHistogram() {
+		return overshootHistogram.clone();
+	}
+	
+	/** @return how long the timer currently spins before each deadline, in nanoseconds */
+	public long getSpinNanos() {
+		return spinNanos;
+	}
+	
+	public void resetStatistics() {
+		overshootSamples = 0L;
+		overshootTotal = 0L;
+		maxOvershoot = 0L;
+		overshootHistogram = new long[HISTOGRAM_BOUNDS_NANOS.length + 1];
+	}
+	
+	public String getStatistics() {
+		StringBuilder result = new StringBuilder();
+		result.append(pacing).append(" pacing, ").append(overshootSamples).append(" periods, mean jitter ")
+			.append(getMeanJitterNanos() / 1_000L).append("us, max ").append(maxOvershoot / 1_000L).append("us, spin ")
+			.append(spinNanos / 1_000L).append("us, overshoot histogram [");
+		for(int i=0; i<overshootHistogram.length; i++) {
+			if (i>0) result.append(", ");
+			result.append((i<HISTOGRAM_BOUNDS_NANOS.length) ? "<"+(HISTOGRAM_BOUNDS_NANOS[i]/1_000L)+"us" : ">="+(HISTOGRAM_BOUNDS_NANOS[i-1]/1_000L)+"us");
+			result.append(": ").append(overshootHistogram[i]);
+		}
+		return result.append(']').toString();
 	}
 
 	/**
@@ -131,9 +292,15 @@ public class PeriodicTimer {
 		}
 	}
 
+	/** @return when the last period ended, in milliseconds on the same clock as {@link #now()} */
 	public long getLastTimestamp() {
 		return previous;
 	}
+	
+	/** @return when the last period ended, in System.nanoTime() nanoseconds. Only kept up to date by NANOS pacing. */
+	public long getLastTimestampNanos() {
+		return previousNanos;
+	}
 
 	/**
 	 * Setting spinlock to {@code true} will cause the PeriodicTimer to loop actively waiting for a time-slice to end if it
@@ -147,10 +314,16 @@ public class PeriodicTimer {
 		return System.nanoTime() / 1_000_000L;
 	}
 
+	/**
+	 * Creates a timer with NANOS pacing for the given refresh rate. Whole-millisecond periods would run
+	 * a 59.826Hz NES at 62.5Hz.
+	 */
 	public static PeriodicTimer forFPS(double fps) {
 		double period = (1.0 / fps) * 1000.0;
 		PeriodicTimer result = new PeriodicTimer((long) period);
 		result.errorSamples = (long) (fps / 2.0); //After fps/2 frames (i.e. half a second), lastTimerError will update to maxTimerError, and maxTimerError will reset to zero
+		result.periodNanos = 1_000_000_000.0 / fps;
+		result.setPacing(Pacing.NANOS);
 		return result;
 	}
 }
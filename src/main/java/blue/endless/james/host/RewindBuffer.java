@@ -0,0 +1,286 @@
+package blue.endless.james.host;
+
+/**
+ * Keeps the last few seconds of a core's states, one per frame, so they can be stepped back
+ * through. States are grouped behind keyframes: every keyframeInterval frames a whole state is
+ * stored, and the frames in between only store how they differ from it (XORed against it, so
+ * anything unchanged comes out zero). Both are then run-length encoded, which squeezes the long
+ * runs of zeros down to almost nothing. Most of RAM and vram sits still from one frame to the next,
+ * so a frame usually costs a few hundred bytes instead of tens of KiB.
+ *
+ * <p>Everything lives in one byte array allocated up front, so memory use never grows past what
+ * was asked for. When it fills up (or maxFrames is reached), the oldest group of frames is thrown
+ * away to make room. After warm-up, neither push nor rewind allocates anything.
+ */
+public class RewindBuffer {
+	public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+	private final byte[] storage;
+	private final int keyframeInterval;
+
+	//Entries are a ring, oldest first, laid out in storage in the same order
+	private final int[] entryOffset;
+	private final int[] entryLength;
+	private final boolean[] entryKeyframe;
+	private int first = 0;
+	private int count = 0;
+	/** Where the next entry goes in storage */
+	private int writePos = 0;
+	/** Entries in the newest group, counting its keyframe */
+	private int sinceKeyframe = 0;
+
+	private final Snapshot snapshot = new Snapshot();
+	/** The newest group's keyframe, decoded */
+	private byte[] keyframe = new byte[0];
+	private int keyframeLength = 0;
+	private byte[] state = new byte[0];
+	private byte[] encoded = new byte[0];
+
+	/**
+	 * @param maxFrames the most states to hold, at one per frame
+	 * @param maxBytes how much memory to use for them
+	 */
+	public RewindBuffer(int maxFrames, int maxBytes) {
+		this(maxFrames, maxBytes, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	public RewindBuffer(int maxFrames, int maxBytes, int keyframeInterval) {
+		if (maxFrames<1) throw new IllegalArgumentException("Must hold at least one frame");
+		this.storage = new byte[maxBytes];
+		//Keep several groups in the ring, so dropping the oldest never empties it
+		this.keyframeInterval = Math.max(Math.min(keyframeInterval, maxFrames/4), 1);
+		this.entryOffset = new int[maxFrames];
+		this.entryLength = new int[maxFrames];
+		this.entryKeyframe = new boolean[maxFrames];
+	}
+
+	/** Sized to hold the given number of seconds of the core's frames */
+	public static RewindBuffer forSeconds(Core core, double seconds, int maxBytes) {
+		return new RewindBuffer((int) Math.ceil(core.getRefreshRate() * seconds), maxBytes);
+	}
+
+	/** Saves the core's current state as the newest frame. Call this once a frame, between calls to clock(). */
+	public void push(Snapshottable source) {
+		snapshot.save(source);
+		int length = snapshot.size();
+		if (state.length<length) {
+			state = new byte[length];
+			encoded = new byte[maxEncodedLength(length)];
+		}
+		snapshot.getBuffer().get(0, state, 0, length);
+
+		boolean isKeyframe = (count==0 || sinceKeyframe>=keyframeInterval || length!=keyframeLength);
+		int encodedLength = encode(state, length, (isKeyframe) ? null : keyframe, encoded);
+		if (encodedLength>storage.length) return; //Can't ever fit; don't record anything rather than wipe everything
+
+		if (count==entryOffset.length) dropOldestGroup();
+		int offset = makeRoom(encodedLength);
+		if (!isKeyframe && count==0) {
+			//Made room by dropping the keyframe this was a delta against
+			isKeyframe = true;
+			encodedLength = encode(state, length, null, encoded);
+			offset = makeRoom(encodedLength);
+		}
+
+		System.arraycopy(encoded, 0, storage, offset, encodedLength);
+		int index = (first + count) % entryOffset.length;
+		entryOffset[index] = offset;
+		entryLength[index] = encodedLength;
+		entryKeyframe[index] = isKeyframe;
+		count++;
+		writePos = offset + encodedLength;
+
+		if (isKeyframe) {
+			if (keyframe.length<length) keyframe = new byte[length];
+			System.arraycopy(state, 0, keyframe, 0, length);
+			keyframeLength = length;
+			sinceKeyframe = 1;
+		} else {
+			sinceKeyframe++;
+		}
+	}
+
+	/**
+	 * Takes the newest frame off the buffer and puts the core back into it. Holding rewind means
+	 * calling this once per frame, then running that frame again so it's shown.
+	 * @return false if there was nothing left to go back to
+	 */
+	public boolean rewind(Snapshottable target) {
+		if (count==0) return false;
+
+		int index = (first + count - 1) % entryOffset.length;
+		snapshot.copyFrom(state, 0, decode(index));
+		count--;
+		writePos = entryOffset[index];
+		sinceKeyframe--;
+		if (entryKeyframe[index]) findNewestKeyframe();
+
+		snapshot.load(target);
+		return true;
+	}
+
+	/** Throws every frame away */
+	public void clear() {
+		first = 0;
+		count = 0;
+		writePos = 0;
+		sinceKeyframe = 0;
+		keyframeLength = 0;
+	}
+
+	/** How many frames can be stepped back through */
+	public int size() {
+		return count;
+	}
+
+	/** How many bytes of storage the held frames take up */
+	public int getBytesUsed() {
+		int total = 0;
+		for(int i=0; i<count; i++) total += entryLength[(first + i) % entryOffset.length];
+		return total;
+	}
+
+	public int getCapacityBytes() {
+		return storage.length;
+	}
+
+	/**
+	 * Finds a spot in storage for an entry, right after the newest one, wrapping back to the start
+	 * when the end is too close. Groups are dropped, oldest first, until nothing is in the way.
+	 */
+	private int makeRoom(int length) {
+		int offset = (count==0) ? 0 : writePos;
+		if (offset+length>storage.length) offset = 0;
+		while(count>0 && overlapsAny(offset, length)) dropOldestGroup();
+		return offset;
+	}
+
+	/** Entries left over from before the last wrap can be older than the ones in the way, so check them all */
+	private boolean overlapsAny(int offset, int length) {
+		for(int i=0; i<count; i++) {
+			int index = (first + i) % entryOffset.length;
+			int start = entryOffset[index];
+			if (start<offset+length && offset<start+entryLength[index]) return true;
+		}
+		return false;
+	}
+
+	/** Drops the oldest keyframe and every delta that depends on it */
+	private void dropOldestGroup() {
+		do {
+			first = (first + 1) % entryOffset.length;
+			count--;
+		} while(count>0 && !entryKeyframe[first]);
+
+		if (count==0) {
+			sinceKeyframe = 0;
+			keyframeLength = 0;
+		}
+	}
+
+	/** After the newest keyframe has been popped, decodes the one before it */
+	private void findNewestKeyframe() {
+		keyframeLength = 0;
+		sinceKeyframe = 0;
+		for(int i=count-1; i>=0; i--) {
+			int index = (first + i) % entryOffset.length;
+			sinceKeyframe++;
+			if (entryKeyframe[index]) {
+				int length = decode(index);
+				if (keyframe.length<length) keyframe = new byte[length];
+				System.arraycopy(state, 0, keyframe, 0, length);
+				keyframeLength = length;
+				return;
+			}
+		}
+		sinceKeyframe = 0;
+	}
+
+	/** Decodes an entry into state, against the newest keyframe if it's a delta. @return the state's length */
+	private int decode(int index) {
+		int pos = entryOffset[index];
+		int end = pos + entryLength[index];
+		byte[] reference = (entryKeyframe[index]) ? null : keyframe;
+
+		int out = 0;
+		while(pos<end) {
+			int zeros = 0;
+			for(int shift=0; ; shift+=7) {
+				int b = storage[pos++];
+				zeros |= (b & 0x7F) << shift;
+				if ((b & 0x80)==0) break;
+			}
+			int literals = 0;
+			for(int shift=0; ; shift+=7) {
+				int b = storage[pos++];
+				literals |= (b & 0x7F) << shift;
+				if ((b & 0x80)==0) break;
+			}
+
+			if (reference==null) {
+				for(int i=0; i<zeros; i++) state[out++] = 0;
+				System.arraycopy(storage, pos, state, out, literals);
+				out += literals;
+				pos += literals;
+			} else {
+				System.arraycopy(reference, out, state, out, zeros);
+				out += zeros;
+				for(int i=0; i<literals; i++) {
+					state[out] = (byte) (reference[out] ^ storage[pos++]);
+					out++;
+				}
+			}
+		}
+		return out;
+	}
+
+	/**
+	 * Run-length encodes data XORed against reference (or as-is if reference is null), as pairs of
+	 * varints: a run of zeros, then a run of literal bytes which follow.
+	 * @return the encoded length
+	 */
+	private static int encode(byte[] data, int length, byte[] reference, byte[] out) {
+		int pos = 0;
+		int i = 0;
+		while(i<length) {
+			int zeroStart = i;
+			while(i<length && delta(data, reference, i)==0) i++;
+			int zeros = i - zeroStart;
+
+			//Literals run until the next stretch of zeros long enough to be worth a new pair
+			int literalStart = i;
+			while(i<length) {
+				if (delta(data, reference, i)==0) {
+					int run = 1;
+					while(run<4 && i+run<length && delta(data, reference, i+run)==0) run++;
+					if (run>=4 || i+run==length) break;
+				}
+				i++;
+			}
+			int literals = i - literalStart;
+
+			pos = putVarint(out, pos, zeros);
+			pos = putVarint(out, pos, literals);
+			for(int j=literalStart; j<i; j++) out[pos++] = delta(data, reference, j);
+		}
+		return pos;
+	}
+
+	private static byte delta(byte[] data, byte[] reference, int i) {
+		return (reference==null) ? data[i] : (byte) (data[i] ^ reference[i]);
+	}
+
+	private static int putVarint(byte[] out, int pos, int value) {
+		while((value & ~0x7F)!=0) {
+			out[pos++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out[pos++] = (byte) value;
+		return pos;
+	}
+
+	/** Worst case is all literals: the data, plus one pair of varints */
+	private static int maxEncodedLength(int length) {
+		return length + 16;
+	}
+}
@@ -0,0 +1,141 @@
+package blue.endless.james.host;
+
+import java.util.Arrays;
+
+/**
+ * Keeps a core's timeline: a clock counting up in whatever tick a core finds convenient (PPU dots,
+ * for instance), and a min-heap of events waiting for their tick to come up. Components which only
+ * need attention now and then (vblank, the end of a line, a timer overflow) schedule an event for
+ * the next tick where they'd do anything visible, and are otherwise left alone until they're due or
+ * the CPU touches one of their registers.
+ */
+public class Scheduler {
+	private long now = 0L;
+	private Event[] heap = new Event[16];
+	private int size = 0;
+
+	/** The current tick. Inside an event's action, this is the tick the event was scheduled for. */
+	public long now() {
+		return now;
+	}
+
+	/**
+	 * Schedules an event to run at an absolute tick, moving it if it was already scheduled. Ticks in
+	 * the past run on the next advance.
+	 */
+	public void schedule(Event event, long when) {
+		event.when = when;
+		if (event.index==-1) {
+			if (size==heap.length) heap = Arrays.copyOf(heap, heap.length*2);
+			event.index = size;
+			heap[size++] = event;
+			siftUp(event.index);
+		} else {
+			siftUp(event.index);
+			siftDown(event.index);
+		}
+	}
+
+	/** Schedules an event to run a number of ticks from now */
+	public void scheduleIn(Event event, long delay) {
+		schedule(event, now + delay);
+	}
+
+	public void cancel(Event event) {
+		if (event.index==-1) return;
+		int index = event.index;
+		Event last = heap[--size];
+		heap[size] = null;
+		event.index = -1;
+		if (last!=event) {
+			heap[index] = last;
+			last.index = index;
+			siftUp(index);
+			siftDown(last.index);
+		}
+	}
+
+	/**
+	 * Moves the clock forward, running every event which comes due on the way, in tick order. Events
+	 * may schedule more events, including ones which fall inside this same advance.
+	 */
+	public void advance(long ticks) {
+		long target = now + ticks;
+		while(size>0 && heap[0].when<=target) {
+			Event event = heap[0];
+			cancel(event);
+			if (event.when>now) now = event.when;
+			event.action.run();
+		}
+		now = target;
+	}
+
+	/**
+	 * @return how many ticks until the next event is due (0 if one is overdue), or Long.MAX_VALUE if
+	 *         nothing is scheduled
+	 */
+	public long untilNext() {
+		if (size==0) return Long.MAX_VALUE;
+		return Math.max(heap[0].when - now, 0L);
+	}
+
+	/** Drops every event and winds the clock back to zero */
+	public void reset() {
+		for(int i=0; i<size; i++) {
+			heap[i].index = -1;
+			heap[i] = null;
+		}
+		size = 0;
+		now = 0L;
+	}
+
+	private void siftUp(int index) {
+		Event event = heap[index];
+		while(index>0) {
+			int parent = (index-1) / 2;
+			if (heap[parent].when<=event.when) break;
+			heap[index] = heap[parent];
+			heap[index].index = index;
+			index = parent;
+		}
+		heap[index] = event;
+		event.index = index;
+	}
+
+	private void siftDown(int index) {
+		Event event = heap[index];
+		while(true) {
+			int child = index*2 + 1;
+			if (child>=size) break;
+			if (child+1<size && heap[child+1].when<heap[child].when) child++;
+			if (event.when<=heap[child].when) break;
+			heap[index] = heap[child];
+			heap[index].index = index;
+			index = child;
+		}
+		heap[index] = event;
+		event.index = index;
+	}
+
+	/**
+	 * Something which should happen at a particular tick. An Event is scheduled at most once at a
+	 * time, so components usually keep one around and reschedule it from its own action.
+	 */
+	public static class Event {
+		private final Runnable action;
+		private long when = 0L;
+		private int index = -1;
+
+		public Event(Runnable action) {
+			this.action = action;
+		}
+
+		public boolean isScheduled() {
+			return index!=-1;
+		}
+
+		public long getWhen() {
+			return when;
+		}
+	}
+}
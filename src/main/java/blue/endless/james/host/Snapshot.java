@@ -0,0 +1,70 @@
+package blue.endless.james.host;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable buffer holding one saved state. The buffer grows the first time a state doesn't fit,
+ * and after that saving and loading don't allocate anything, so one of these can be saved into
+ * every frame.
+ *
+ * <p>Cores don't save what's on screen, so a state restored partway through a frame will finish
+ * that frame with whatever was drawn before. Save at frame boundaries if every frame matters.
+ */
+public class Snapshot {
+	private ByteBuffer buffer;
+
+	public Snapshot() {
+		this(0x8000);
+	}
+
+	public Snapshot(int initialCapacity) {
+		buffer = ByteBuffer.allocate(Math.max(initialCapacity, 16));
+	}
+
+	/** Replaces whatever this Snapshot held with the object's current state */
+	public void save(Snapshottable source) {
+		while(true) {
+			buffer.clear();
+			try {
+				source.saveState(buffer);
+				break;
+			} catch (BufferOverflowException e) {
+				buffer = ByteBuffer.allocate(buffer.capacity()*2);
+			}
+		}
+		buffer.flip();
+	}
+
+	/** Puts the object back into the state this Snapshot holds. The Snapshot can be loaded again later. */
+	public void load(Snapshottable target) {
+		buffer.rewind();
+		target.loadState(buffer);
+	}
+
+	/** How many bytes of state are held */
+	public int size() {
+		return buffer.limit();
+	}
+
+	/**
+	 * Gets the saved state, from position 0 to its limit, for copying somewhere else. Don't change
+	 * its position or limit.
+	 */
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/** Copies another Snapshot's state into this one */
+	public void copyFrom(Snapshot other) {
+		copyFrom(other.buffer.array(), 0, other.size());
+	}
+
+	/** Replaces the state held with bytes from somewhere else, such as a file or another machine */
+	public void copyFrom(byte[] data, int offset, int length) {
+		if (length>buffer.capacity()) buffer = ByteBuffer.allocate(length);
+		buffer.clear();
+		buffer.put(data, offset, length);
+		buffer.flip();
+	}
+}
@@ -0,0 +1,47 @@
+package blue.endless.james.host;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Something whose whole state can be written into a ByteBuffer and read back later: registers, RAM,
+ * bank selections, and anything else which would change what happens next. Caches, debug state,
+ * and things the host configured (renderers, palettes, which controls are connected) are left out.
+ *
+ * <p>Cores which implement this start their state with a header (see putHeader), so that loading a
+ * snapshot from the wrong system or an older layout fails cleanly instead of scrambling the core.
+ * Components inside a core don't bother; the core decides what order they go in.
+ *
+ * <p>Saving should only ever put primitives and bulk arrays, so that a Snapshot which has already
+ * grown to fit doesn't allocate anything.
+ */
+public interface Snapshottable {
+	/** Writes this object's state at the buffer's position, advancing it */
+	public void saveState(ByteBuffer out);
+
+	/**
+	 * Reads back state written by saveState, advancing the buffer's position.
+	 * @throws IllegalArgumentException if the state is for something else, or from an incompatible version
+	 */
+	public void loadState(ByteBuffer in);
+
+	public static void putBoolean(ByteBuffer out, boolean value) {
+		out.put((byte) ((value) ? 1 : 0));
+	}
+
+	public static boolean getBoolean(ByteBuffer in) {
+		return in.get()!=0;
+	}
+
+	public static void putHeader(ByteBuffer out, int magic, int version) {
+		out.putInt(magic);
+		out.putInt(version);
+	}
+
+	/** Reads a header written by putHeader, and makes sure it's the one we expected */
+	public static void checkHeader(ByteBuffer in, int magic, int version) {
+		int foundMagic = in.getInt();
+		if (foundMagic!=magic) throw new IllegalArgumentException("Snapshot is for 0x"+Integer.toHexString(foundMagic)+", not 0x"+Integer.toHexString(magic));
+		int foundVersion = in.getInt();
+		if (foundVersion!=version) throw new IllegalArgumentException("Snapshot is version "+foundVersion+", but only version "+version+" can be loaded");
+	}
+}
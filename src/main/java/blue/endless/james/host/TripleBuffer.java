@@ -0,0 +1,74 @@
+package blue.endless.james.host;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands frames from one producer thread to one consumer thread without either ever waiting on the
+ * other. There are three frames: the producer draws into the back one, the consumer reads the front
+ * one, and the third sits in the middle holding the newest finished frame. Publishing swaps back and
+ * middle, acquiring swaps middle and front, and each swap is a single atomic exchange, so the consumer
+ * always gets the latest complete frame and frames it was too slow for are simply dropped.
+ */
+public class TripleBuffer {
+	private static final int INDEX_MASK = 0b011;
+	/** Set on the middle index when it holds a frame the consumer hasn't picked up yet */
+	private static final int FRESH = 0b100;
+	
+	private final Frame[] frames = { new Frame(), new Frame(), new Frame() };
+	private final AtomicInteger middle = new AtomicInteger(2);
+	/** Owned by the producer */
+	private int back = 0;
+	/** Owned by the consumer */
+	private int front = 1;
+	
+	/**
+	 * Producer only. Gets the frame to draw into next, sized to width x height. It's only the
+	 * producer's until the next publish(), and it keeps the same data array until then.
+	 */
+	public Frame getBackFrame(int width, int height) {
+		Frame frame = frames[back];
+		if (frame.image==null || frame.width!=width || frame.height!=height) frame.resize(width, height);
+		return frame;
+	}
+	
+	/** Producer only. Makes the back frame the newest one, replacing any the consumer hasn't picked up. */
+	public void publish() {
+		back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+	}
+	
+	/**
+	 * Consumer only. If a frame has been published since the last call, makes it the front frame.
+	 * @return true if the front frame changed
+	 */
+	public boolean acquire() {
+		if ((middle.get() & FRESH)==0) return false;
+		front = middle.getAndSet(front) & INDEX_MASK;
+		return true;
+	}
+	
+	/** Consumer only. The frame acquire() picked up last; it's the consumer's until the next acquire(). */
+	public Frame getFrontFrame() {
+		return frames[front];
+	}
+	
+	/**
+	 * An image whose pixels live in a plain int array (0x00RRGGBB, one row after another) so they can
+	 * be drawn straight into, and blitted straight out of, with no conversion in between.
+	 */
+	public static class Frame {
+		public BufferedImage image = null;
+		/** The image's own backing array */
+		public int[] data = new int[0];
+		public int width = 0;
+		public int height = 0;
+		
+		private void resize(int width, int height) {
+			this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			this.data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+			this.width = width;
+			this.height = height;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package blue.endless.felines;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.host.ControlSet;
+
+public class ControlSetTests {
+	@Test
+	public void everyIdCanBeHeldAndLocked() {
+		ControlSet controls = new ControlSet();
+		//The standard pad has the first 8
+		for(int i=8; i<ControlSet.MAX_BUTTONS; i++) {
+			controls.bind(1000+i, "Button"+i);
+		}
+		Assertions.assertThrows(IllegalStateException.class, () -> controls.bind(2000, "OneTooMany"));
+
+		for(int i=8; i<ControlSet.MAX_BUTTONS; i++) {
+			String name = "Button"+i;
+			int id = controls.getId(name);
+			controls.acceptKey(1000+i, true);
+			Assertions.assertTrue(controls.get(name), name);
+			Assertions.assertEquals(1 << id, controls.getButtons(), name+" should be the only one held");
+
+			controls.lock(name);
+			Assertions.assertFalse(controls.get(name), name+" is locked");
+			controls.acceptKey(1000+i, false);
+			controls.acceptKey(1000+i, true);
+			Assertions.assertTrue(controls.get(name), name+" should unlock when let go");
+			controls.acceptKey(1000+i, false);
+		}
+	}
+
+	@Test
+	public void unknownNamesDontTakeIds() {
+		ControlSet controls = new ControlSet();
+		for(int i=0; i<100; i++) {
+			Assertions.assertFalse(controls.get("Typo"+i));
+			controls.lock("Typo"+i);
+			Assertions.assertEquals(-1, controls.getId("Typo"+i));
+		}
+
+		for(int i=8; i<ControlSet.MAX_BUTTONS; i++) {
+			controls.bind(1000+i, "Button"+i);
+		}
+		controls.acceptKey(1000+ControlSet.MAX_BUTTONS-1, true);
+		Assertions.assertTrue(controls.get("Button"+(ControlSet.MAX_BUTTONS-1)));
+	}
+}
@@ -0,0 +1,187 @@
+package blue.endless.felines;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.chip.mos6502.Cpu;
+import blue.endless.james.chip.mos6502.RegisterFile;
+import blue.endless.james.host.Bus16;
+import blue.endless.james.host.DirectRegion;
+
+public class CpuEngineTests {
+	/** Opcodes whose microcode logs to stdout (KIL and TXS); swapped for NOPs so the output stays readable */
+	private static final int[] NOISY = { 0x02, 0x12, 0x22, 0x32, 0x42, 0x52, 0x62, 0x72, 0x92, 0xB2, 0xD2, 0xF2, 0x9A };
+
+	@Test
+	public void enginesMatch() {
+		for(int seed=0; seed<200; seed++) {
+			byte[] memory = randomMemory(seed);
+			FlatBus tableBus = new FlatBus(memory.clone());
+			Cpu tableCpu = new Cpu(Cpu.Engine.TABLE);
+			tableCpu.hardReset();
+
+			Cpu.Engine[] others = { Cpu.Engine.SWITCH, Cpu.Engine.CACHED };
+			FlatBus[] otherBuses = new FlatBus[others.length];
+			Cpu[] otherCpus = new Cpu[others.length];
+			for(int j=0; j<others.length; j++) {
+				otherBuses[j] = new FlatBus(memory.clone());
+				otherCpus[j] = new Cpu(others[j]);
+				otherBuses[j].cpu = otherCpus[j];
+				otherCpus[j].hardReset();
+			}
+
+			for(int i=0; i<2_000; i++) {
+				int tableCycles = tableCpu.cycle(tableBus);
+				for(int j=0; j<others.length; j++) {
+					int otherCycles = otherCpus[j].cycle(otherBuses[j]);
+
+					String where = others[j]+", seed "+seed+", instruction "+i;
+					Assertions.assertEquals(tableCycles, otherCycles, where);
+					assertSameRegisters(tableCpu.getRegisters(), otherCpus[j].getRegisters(), where);
+				}
+			}
+
+			for(int j=0; j<others.length; j++) {
+				Assertions.assertArrayEquals(tableBus.memory, otherBuses[j].memory, others[j]+", seed "+seed);
+			}
+		}
+	}
+
+	@Test
+	public void instructionStreamKeptWithoutTracing() {
+		List<String> expected = null;
+		for(Cpu.Engine engine : Cpu.Engine.values()) {
+			Cpu cpu = run(engine, 1_000);
+			Assertions.assertFalse(cpu.isTracing());
+
+			List<String> stream = cpu.getInstructionStream();
+			Assertions.assertEquals(Cpu.RECENT_INSTRUCTIONS, stream.size(), engine.toString());
+			//LDX, then 166 times around the six-instruction loop, then LDA / CLC / ADC
+			String last = stream.get(stream.size()-1);
+			Assertions.assertTrue(last.equals("206: ADC 1"), engine+": "+last);
+
+			if (expected==null) expected = stream;
+			Assertions.assertEquals(expected, stream, engine.toString());
+		}
+	}
+
+	/** Not a test, so it doesn't slow down every build; run it by hand to compare the engines */
+	public static void main(String[] args) {
+		for(Cpu.Engine engine : Cpu.Engine.values()) {
+			run(engine, 2_000_000); //warmup
+		}
+
+		for(Cpu.Engine engine : Cpu.Engine.values()) {
+			int instructions = 20_000_000;
+			long start = System.nanoTime();
+			run(engine, instructions);
+			long elapsed = System.nanoTime() - start;
+
+			double perSecond = instructions / (elapsed / 1_000_000_000.0);
+			System.out.println(engine+": "+(long) perSecond+" instructions/sec");
+		}
+	}
+
+	private static Cpu run(Cpu.Engine engine, int instructions) {
+		/*
+		 * $0200: LDX #$00
+		 * $0202: LDA $0300,X
+		 * $0205: CLC
+		 * $0206: ADC #$01
+		 * $0208: STA $0300,X
+		 * $020B: INX
+		 * $020C: BNE $0202
+		 * $020E: INC $10
+		 * $0210: JMP $0200
+		 */
+		int[] program = { 0xA2, 0x00, 0xBD, 0x00, 0x03, 0x18, 0x69, 0x01, 0x9D, 0x00, 0x03, 0xE8, 0xD0, 0xF4, 0xE6, 0x10, 0x4C, 0x00, 0x02 };
+		byte[] memory = new byte[0x10000];
+		for(int i=0; i<program.length; i++) memory[0x0200+i] = (byte) program[i];
+		memory[0xFFFC] = 0x00;
+		memory[0xFFFD] = 0x02;
+
+		FlatBus bus = new FlatBus(memory);
+		Cpu cpu = new Cpu(engine);
+		bus.cpu = cpu;
+		cpu.hardReset();
+		for(int i=0; i<instructions; i++) {
+			cpu.cycle(bus);
+		}
+		return cpu;
+	}
+
+	private static byte[] randomMemory(int seed) {
+		Random random = new Random(seed);
+		byte[] memory = new byte[0x10000];
+		random.nextBytes(memory);
+		for(int i=0; i<memory.length; i++) {
+			for(int noisy : NOISY) {
+				if ((memory[i] & 0xFF)==noisy) memory[i] = (byte) 0xEA;
+			}
+		}
+		memory[0xFFFC] = 0x00;
+		memory[0xFFFD] = 0x02;
+
+		return memory;
+	}
+
+	private static void assertSameRegisters(RegisterFile expected, RegisterFile actual, String where) {
+		Assertions.assertEquals(expected.getPC(), actual.getPC(), where);
+		Assertions.assertEquals(expected.getA(), actual.getA(), where);
+		Assertions.assertEquals(expected.getX(), actual.getX(), where);
+		Assertions.assertEquals(expected.getY(), actual.getY(), where);
+		Assertions.assertEquals(expected.getS(), actual.getS(), where);
+		Assertions.assertEquals(expected.getP(), actual.getP(), where);
+	}
+
+	private static class FlatBus implements Bus16 {
+		private final byte[] memory;
+		private final DirectRegion[] directPages = new DirectRegion[0x100];
+		private Cpu cpu;
+
+		public FlatBus(byte[] memory) {
+			this.memory = memory;
+			DirectRegion region = new DirectRegion(memory, 0, 0xFFFF);
+			for(int i=0; i<directPages.length; i++) directPages[i] = region;
+		}
+
+		@Override
+		public DirectRegion[] getDirectPages() {
+			return directPages;
+		}
+
+		@Override
+		public int read8(int address) {
+			return memory[address & 0xFFFF] & 0xFF;
+		}
+
+		@Override
+		public void write8(int address, int value) {
+			memory[address & 0xFFFF] = (byte) value;
+			if (cpu!=null) cpu.invalidateCode(address & 0xFFFF);
+		}
+
+		@Override
+		public int read(long address) {
+			return read8((int) address);
+		}
+
+		@Override
+		public void write(long address, int value) {
+			write8((int) address, value);
+		}
+
+		@Override
+		public boolean mapsRead(long address) {
+			return true;
+		}
+
+		@Override
+		public boolean mapsWrite(long address) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package blue.endless.felines;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.host.HeadlessRunner;
+
+public class HeadlessRunnerTests {
+	/*
+	 * $8000: LDA $10 / BNE $8022                           ; been here before?
+	 * $8004: LDA #$80 / STA $6000                          ; running
+	 * $8009: LDA #$DE / STA $6001 / LDA #$B0 / STA $6002 / LDA #$61 / STA $6003
+	 * $8018: INC $10
+	 * $801A: LDA #$81 / STA $6000 / JMP $801F              ; press reset, please
+	 * $8022: LDA #'O' / STA $6004 / LDA #'K' / STA $6005
+	 * $802C: LDA #$00 / STA $6006 / STA $6000 / JMP $8034  ; passed
+	 */
+	private static final int[] WANTS_RESET = {
+			0xA5, 0x10, 0xD0, 0x1E,
+			0xA9, 0x80, 0x8D, 0x00, 0x60,
+			0xA9, 0xDE, 0x8D, 0x01, 0x60, 0xA9, 0xB0, 0x8D, 0x02, 0x60, 0xA9, 0x61, 0x8D, 0x03, 0x60,
+			0xE6, 0x10,
+			0xA9, 0x81, 0x8D, 0x00, 0x60, 0x4C, 0x1F, 0x80,
+			0xA9, 0x4F, 0x8D, 0x04, 0x60, 0xA9, 0x4B, 0x8D, 0x05, 0x60,
+			0xA9, 0x00, 0x8D, 0x06, 0x60, 0x8D, 0x00, 0x60, 0x4C, 0x34, 0x80
+	};
+
+	@Test
+	public void memorySignaturePressesReset() {
+		HeadlessRunner runner = new HeadlessRunner(rom -> TestRoms.nes(WANTS_RESET, new int[] { 0x40 }))
+				.setMaxFrames(60)
+				.setCompletion(HeadlessRunner.memorySignature(0x6000));
+		HeadlessRunner.Result result = runner.run(Path.of("wants-reset.nes"));
+
+		Assertions.assertNull(result.error);
+		Assertions.assertEquals("status 0: OK", result.completion);
+		Assertions.assertTrue(result.frames<30, "should finish soon after the reset, but took "+result.frames+" frames");
+	}
+}
@@ -0,0 +1,53 @@
+package blue.endless.felines;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.core.felines.NesCore;
+import blue.endless.james.core.felines.Ppu;
+import blue.endless.james.host.ControlSet;
+
+public class IdleLoopTests {
+	private static final int FRAMES = 60;
+
+	@Test
+	public void skippingMatchesRunning() throws IOException {
+		for(Ppu.Renderer renderer : Ppu.Renderer.values()) {
+			Run skipped = run(renderer, true);
+			Run stepped = run(renderer, false);
+
+			Assertions.assertArrayEquals(stepped.frameHashes, skipped.frameHashes, renderer+" frames");
+			Assertions.assertEquals(stepped.cycles, skipped.cycles, renderer+" cycles");
+			Assertions.assertTrue(skipped.clocks<stepped.clocks/10, renderer+" should skip most of the idle loop, but took "+skipped.clocks+" clocks against "+stepped.clocks);
+		}
+	}
+
+	private static Run run(Ppu.Renderer renderer, boolean skipping) throws IOException {
+		NesCore core = TestRoms.scrollingNes(); //Spends nearly all its time in a LDA $2002 / BPL loop
+		core.setRenderer(renderer);
+		core.setIdleLoopSkipping(skipping);
+		core.connectControls(new ControlSet());
+
+		Run run = new Run();
+		core.onPresentFrame().register(frame -> {
+			if (run.frames<FRAMES) run.frameHashes[run.frames] = Arrays.hashCode(frame);
+			run.frames++;
+		});
+		core.hardReset();
+		while(run.frames<FRAMES) {
+			run.cycles += core.clock();
+			run.clocks++;
+		}
+		return run;
+	}
+
+	private static class Run {
+		int[] frameHashes = new int[FRAMES];
+		int frames = 0;
+		long cycles = 0L;
+		long clocks = 0L;
+	}
+}
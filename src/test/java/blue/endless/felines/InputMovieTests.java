@@ -0,0 +1,144 @@
+package blue.endless.felines;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.core.catboy.GameBoyCore;
+import blue.endless.james.host.ControlSet;
+import blue.endless.james.host.EmulatorSession;
+import blue.endless.james.host.FrameSink;
+import blue.endless.james.host.HeadlessRunner;
+import blue.endless.james.host.InputMovie;
+
+public class InputMovieTests {
+	private static final int FRAMES = 300;
+	/*
+	 * $0150: LD A,$E4 / LDH ($47),A
+	 * $0154: LD HL,$8000
+	 * $0157: LD A,L / XOR H / LD (HL+),A / LD A,H / CP $A0 / JR NZ,$0157   ; something to scroll around
+	 * $015F: LD A,$20 / LDH ($00),A / LDH A,($00) / LDH ($43),A            ; buttons scroll X
+	 * $0167: LD A,$10 / LDH ($00),A / LDH A,($00) / LDH ($42),A            ; directions scroll Y
+	 * $016F: JP $015F
+	 */
+	private static final int[] PROGRAM = {
+			0x3E, 0xE4, 0xE0, 0x47, 0x21, 0x00, 0x80, 0x7D, 0xAC, 0x22, 0x7C, 0xFE, 0xA0, 0x20, 0xF8,
+			0x3E, 0x20, 0xE0, 0x00, 0xF0, 0x00, 0xE0, 0x43, 0x3E, 0x10, 0xE0, 0x00, 0xF0, 0x00, 0xE0, 0x42,
+			0xC3, 0x5F, 0x01
+	};
+
+	@Test
+	public void recordedMovieReplays() throws IOException {
+		ByteArrayOutputStream movie = new ByteArrayOutputStream();
+		InputMovie.Recorder recorder = new InputMovie.Recorder(movie, new InputMovie.Header("GameBoyCore", 0L, true));
+		int[] shown = record(recorder);
+		recorder.close();
+
+		Assertions.assertEquals(FRAMES, recorder.getFrames(), "recorded frames, counting the one run() finished on");
+		Assertions.assertTrue(Arrays.stream(shown).distinct().count()>1, "input should change the picture");
+
+		HeadlessRunner.Result result = replay(movie.toByteArray());
+		Assertions.assertNull(result.error);
+		Assertions.assertEquals(FRAMES, result.frames);
+		Assertions.assertArrayEquals(shown, result.frameHashes);
+	}
+
+	@Test
+	public void truncatedMovieEndsEarly() throws IOException {
+		ByteArrayOutputStream movie = new ByteArrayOutputStream();
+		InputMovie.Recorder recorder = new InputMovie.Recorder(movie, new InputMovie.Header("GameBoyCore", 0L, true));
+		int[] shown = record(recorder);
+		recorder.close();
+
+		//Like a recorder that was never closed: the gzip stream just stops, between records or partway through one.
+		//Cut too early and the header's gone too, which is an error, so stay in the back half
+		byte[] whole = movie.toByteArray();
+		for(int i=10; i<20; i++) {
+			int length = whole.length*i/20;
+			HeadlessRunner.Result result = replay(Arrays.copyOf(whole, length));
+			Assertions.assertNull(result.error, "cut at "+length);
+			Assertions.assertTrue(result.frames<FRAMES, "should end early");
+			Assertions.assertArrayEquals(Arrays.copyOf(shown, result.frames), Arrays.copyOf(result.frameHashes, result.frames), "cut at "+length);
+		}
+	}
+
+	@Test
+	public void changedInputIsCaught() throws IOException {
+		ByteArrayOutputStream movie = new ByteArrayOutputStream();
+		InputMovie.Recorder recorder = new InputMovie.Recorder(movie, new InputMovie.Header("GameBoyCore", 0L, true));
+		record(recorder);
+		recorder.close();
+
+		ByteArrayOutputStream changed = new ByteArrayOutputStream();
+		try(InputMovie.Player player = new InputMovie.Player(new ByteArrayInputStream(movie.toByteArray()));
+				InputMovie.Recorder out = new InputMovie.Recorder(changed, player.getHeader())) {
+			while(player.next()) {
+				int mask = player.getMask();
+				if (player.getFrames()==FRAMES/2) mask ^= 0xFF;
+				out.frame(mask, player.getExpectedHash());
+			}
+		}
+
+		HeadlessRunner.Result result = replay(changed.toByteArray());
+		Assertions.assertNotNull(result.error, "replay should notice the frames changed");
+		Assertions.assertTrue(result.frames<FRAMES);
+	}
+
+	/** Runs a session flat out, pressing random buttons between frames, and returns the hash of every frame shown */
+	private static int[] record(InputMovie.Recorder recorder) throws IOException {
+		ControlSet controls = new ControlSet();
+		for(int i=0; i<InputMovie.BUTTONS.length; i++) controls.bind(i, InputMovie.BUTTONS[i]);
+		controls.bind(TestRoms.FAST_FORWARD_KEY, "FastForward");
+		controls.acceptKey(TestRoms.FAST_FORWARD_KEY, true);
+
+		GameBoyCore core = TestRoms.gameBoy(PROGRAM);
+		ButtonMasher sink = new ButtonMasher(controls);
+		EmulatorSession session = new EmulatorSession(core, sink, controls);
+		sink.session = session;
+		core.hardReset();
+		session.setMovieRecorder(recorder);
+		session.run();
+
+		return Arrays.copyOf(sink.hashes, sink.frames);
+	}
+
+	private static HeadlessRunner.Result replay(byte[] movie) throws IOException {
+		Path moviePath = Files.createTempFile("james", ".jmov");
+		try {
+			Files.write(moviePath, movie);
+			Path rom = Path.of("movie-test.gb"); //Never opened; the factory builds the rom itself
+			return new HeadlessRunner(it -> TestRoms.gameBoy(PROGRAM)).setMovie(rom, moviePath).run(rom);
+		} finally {
+			Files.delete(moviePath);
+		}
+	}
+
+	private static class ButtonMasher implements FrameSink {
+		private final ControlSet controls;
+		private final Random random = new Random(1);
+		private EmulatorSession session;
+		private int[] hashes = new int[FRAMES];
+		private int frames = 0;
+
+		public ButtonMasher(ControlSet controls) {
+			this.controls = controls;
+		}
+
+		@Override
+		public void setFrame(int[] data, int width, int height) {
+			hashes[frames++] = InputMovie.hashFrame(data);
+			if (frames==FRAMES) session.stop();
+			controls.acceptKey(random.nextInt(InputMovie.BUTTONS.length), random.nextBoolean());
+		}
+
+		@Override
+		public void present() {}
+	}
+}
@@ -0,0 +1,69 @@
+package blue.endless.felines;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.core.catboy.GameBoyCore;
+
+public class RenderTargetTests {
+	private static final int FRAMES = 30;
+
+	/*
+	 * $0150: LD A,$E4 / LDH ($47),A
+	 * $0154: LD HL,$8000
+	 * $0157: LD A,L / XOR H / LD (HL+),A / LD A,H / CP $A0 / JR NZ,$0157   ; something to look at
+	 * $015F: LDH A,($44) / CP $90 / JR NZ,$015F                            ; wait for LY=144
+	 * $0165: INC C / BIT 0,C / JR Z,$0172
+	 * $016A: LD A,$11 / LDH ($40),A / LD A,$91 / LDH ($40),A              ; every other frame, LCD off and on again
+	 * $0172: LDH A,($44) / CP $90 / JR Z,$0172 / JR $015F
+	 */
+	private static final int[] PROGRAM = {
+			0x3E, 0xE4, 0xE0, 0x47, 0x21, 0x00, 0x80,
+			0x7D, 0xAC, 0x22, 0x7C, 0xFE, 0xA0, 0x20, 0xF8,
+			0xF0, 0x44, 0xFE, 0x90, 0x20, 0xFA,
+			0x0C, 0xCB, 0x41, 0x28, 0x08,
+			0x3E, 0x11, 0xE0, 0x40, 0x3E, 0x91, 0xE0, 0x40,
+			0xF0, 0x44, 0xFE, 0x90, 0x28, 0xFA, 0x18, 0xE5
+	};
+
+	/**
+	 * Turning the LCD back on at LY=144 wraps around to line 0 without drawing anything, so the frame
+	 * presented then has to come out the same whether it was drawn into the core's own screen or into
+	 * a lent one still holding something older.
+	 */
+	@Test
+	public void lentTargetsMatchOwnScreen() throws IOException {
+		int[] own = run(false);
+		int[] lent = run(true);
+		Assertions.assertTrue(Arrays.stream(own).distinct().count()>1, "should show both drawn and blank frames");
+		Assertions.assertArrayEquals(own, lent);
+	}
+
+	private static int[] run(boolean lend) throws IOException {
+		GameBoyCore core = TestRoms.gameBoy(PROGRAM);
+
+		//Like Display's TripleBuffer: a few arrays taking turns, each still holding whatever it last showed
+		Random random = new Random(1);
+		int[][] targets = new int[3][160*144];
+		for(int[] target : targets) {
+			for(int i=0; i<target.length; i++) target[i] = random.nextInt();
+		}
+
+		int[] hashes = new int[FRAMES];
+		int[] frames = { 0 };
+		core.onPresentFrame().register(frame -> {
+			if (frames[0]<FRAMES) hashes[frames[0]] = Arrays.hashCode(frame);
+			frames[0]++;
+			if (lend) core.setRenderTarget(targets[frames[0] % targets.length]);
+		});
+		if (lend) core.setRenderTarget(targets[0]);
+		core.hardReset();
+		while(frames[0]<FRAMES) core.clock();
+
+		return hashes;
+	}
+}
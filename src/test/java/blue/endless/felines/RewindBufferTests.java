@@ -0,0 +1,134 @@
+package blue.endless.felines;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.host.RewindBuffer;
+import blue.endless.james.host.Snapshottable;
+
+public class RewindBufferTests {
+	private static final int STATE_SIZE = 4096;
+
+	@Test
+	public void evictsByFrames() {
+		//Enough bytes for 50 frames, so maxFrames is what limits it, but few enough that storage still wraps
+		RewindBuffer buffer = new RewindBuffer(50, 128*1024, 8);
+		int largest = exercise(buffer, new Random(1), 400);
+		Assertions.assertEquals(50, largest, "should fill up to maxFrames");
+	}
+
+	@Test
+	public void evictsByBytes() {
+		//Room for about five keyframes, so storage wraps and evicts long before maxFrames
+		RewindBuffer buffer = new RewindBuffer(1000, 5*STATE_SIZE, 16);
+		int largest = exercise(buffer, new Random(2), 400);
+		Assertions.assertTrue(buffer.getBytesUsed()<=buffer.getCapacityBytes());
+		Assertions.assertTrue(largest<100, "should run out of bytes long before frames");
+	}
+
+	@Test
+	public void survivesStateSizeChanges() {
+		RewindBuffer buffer = new RewindBuffer(200, 1024*1024, 10);
+		FakeState state = new FakeState(new Random(3));
+		List<byte[]> history = new ArrayList<>();
+		for(int i=0; i<100; i++) {
+			if (i%30==29) state.resize(STATE_SIZE + i); //Can't be a delta against a keyframe of another size
+			state.mutate();
+			buffer.push(state);
+			history.add(state.data.clone());
+		}
+		rewindAll(buffer, state, history);
+	}
+
+	/**
+	 * Rounds of pushing and rewinding random amounts, checking every rewound state byte for byte.
+	 * @return the most frames the buffer held at once
+	 */
+	private static int exercise(RewindBuffer buffer, Random random, int rounds) {
+		FakeState state = new FakeState(random);
+		List<byte[]> history = new ArrayList<>();
+		long written = 0; //At least this many bytes have gone into storage; pushes which evicted count short
+		int largest = 0;
+
+		for(int round=0; round<rounds; round++) {
+			int forward = 1 + random.nextInt(40);
+			for(int i=0; i<forward; i++) {
+				state.mutate();
+				int before = buffer.getBytesUsed();
+				buffer.push(state);
+				history.add(state.data.clone());
+				written += Math.max(buffer.getBytesUsed() - before, 0);
+				largest = Math.max(largest, buffer.size());
+
+				//Eviction only ever drops the oldest frames
+				Assertions.assertTrue(buffer.size()<=history.size());
+				while(history.size()>buffer.size()) history.remove(0);
+			}
+
+			int back = random.nextInt(buffer.size() + 1);
+			for(int i=0; i<back; i++) {
+				Assertions.assertTrue(buffer.rewind(state), "round "+round);
+				byte[] expected = history.remove(history.size()-1);
+				Assertions.assertArrayEquals(expected, state.data, "round "+round+", rewind "+i);
+			}
+		}
+
+		Assertions.assertTrue(written>buffer.getCapacityBytes()*4L, "should have wrapped around storage a few times");
+		rewindAll(buffer, state, history);
+		return largest;
+	}
+
+	private static void rewindAll(RewindBuffer buffer, FakeState state, List<byte[]> history) {
+		Assertions.assertEquals(history.size(), buffer.size());
+		while(!history.isEmpty()) {
+			Assertions.assertTrue(buffer.rewind(state));
+			Assertions.assertArrayEquals(history.remove(history.size()-1), state.data);
+		}
+		Assertions.assertFalse(buffer.rewind(state), "nothing left to rewind");
+	}
+
+	/** Random bytes which change a few at a time, like RAM from one frame to the next */
+	private static class FakeState implements Snapshottable {
+		private final Random random;
+		private byte[] data;
+
+		public FakeState(Random random) {
+			this.random = random;
+			this.data = new byte[STATE_SIZE];
+			random.nextBytes(data);
+		}
+
+		public void mutate() {
+			int changes = random.nextInt(32);
+			for(int i=0; i<changes; i++) {
+				//Mostly lone bytes, sometimes a run, like a copied sprite table
+				int at = random.nextInt(data.length);
+				int length = (random.nextInt(8)==0) ? random.nextInt(64) : 1;
+				for(int j=at; j<Math.min(at+length, data.length); j++) data[j] = (byte) random.nextInt();
+			}
+		}
+
+		public void resize(int size) {
+			byte[] resized = new byte[size];
+			System.arraycopy(data, 0, resized, 0, Math.min(size, data.length));
+			data = resized;
+		}
+
+		@Override
+		public void saveState(ByteBuffer out) {
+			out.put(data);
+		}
+
+		@Override
+		public void loadState(ByteBuffer in) {
+			//Restored states can be a different size than the current one
+			data = new byte[in.remaining()];
+			in.get(data);
+		}
+	}
+}
@@ -0,0 +1,131 @@
+package blue.endless.felines;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.core.catboy.GameBoyCore;
+import blue.endless.james.core.felines.NesCore;
+import blue.endless.james.core.felines.Ppu;
+import blue.endless.james.host.ControlSet;
+import blue.endless.james.host.Core;
+import blue.endless.james.host.EmulatorSession;
+import blue.endless.james.host.FrameSink;
+
+public class RunAheadTests {
+	private static final int FRAMES = 120;
+
+	/*
+	 * $0150: LD A,$E4 / LDH ($47),A
+	 * $0154: LD HL,$8000
+	 * $0157: LD A,L / XOR H / LD (HL+),A / LD A,H / CP $A0 / JR NZ,$0157   ; something to look at
+	 * $015F: LD B,$30
+	 * $0161: LD A,B / AND $3F / ADD A,$30                                  ; a counter, kept printable
+	 * $0166: LDH ($01),A / LD A,$81 / LDH ($02),A                          ; send it
+	 * $016C: LD A,$0A / LDH ($01),A / LD A,$81 / LDH ($02),A               ; then a newline
+	 * $0174: LDH A,($43) / INC A / LDH ($43),A                             ; scroll along
+	 * $0179: INC B / LD D,$08
+	 * $017C: DEC E / JR NZ,$017C / DEC D / JR NZ,$017C / JR $0161         ; about a line a frame
+	 */
+	private static final int[] PROGRAM = {
+			0x3E, 0xE4, 0xE0, 0x47, 0x21, 0x00, 0x80,
+			0x7D, 0xAC, 0x22, 0x7C, 0xFE, 0xA0, 0x20, 0xF8,
+			0x06, 0x30,
+			0x78, 0xE6, 0x3F, 0xC6, 0x30,
+			0xE0, 0x01, 0x3E, 0x81, 0xE0, 0x02,
+			0x3E, 0x0A, 0xE0, 0x01, 0x3E, 0x81, 0xE0, 0x02,
+			0xF0, 0x43, 0x3C, 0xE0, 0x43,
+			0x04, 0x16, 0x08,
+			0x1D, 0x20, 0xFD, 0x15, 0x20, 0xFA, 0x18, 0xDD
+	};
+
+	/** Running ahead N frames should show, at each real frame, what the plain run shows N frames later */
+	@Test
+	public void framesMatchWithoutRunAhead() throws IOException {
+		Run gameBoy = run(TestRoms.gameBoy(PROGRAM), 0, FRAMES+3);
+		NesCore nesCore = TestRoms.scrollingNes();
+		nesCore.setRenderer(Ppu.Renderer.SCANLINE);
+		Run nes = run(nesCore, 0, FRAMES+3);
+		Assertions.assertTrue(gameBoy.shown.stream().distinct().count()>FRAMES/2, "Game Boy frames should keep changing");
+		Assertions.assertTrue(nes.shown.stream().distinct().count()>FRAMES/4, "NES frames should keep changing");
+
+		for(int ahead=1; ahead<=3; ahead++) {
+			Run predicted = run(TestRoms.gameBoy(PROGRAM), ahead, FRAMES);
+			Assertions.assertEquals(gameBoy.shown.subList(ahead, ahead+FRAMES), predicted.shown, "Game Boy, ahead="+ahead);
+
+			nesCore = TestRoms.scrollingNes();
+			nesCore.setRenderer(Ppu.Renderer.SCANLINE);
+			predicted = run(nesCore, ahead, FRAMES);
+			Assertions.assertEquals(nes.shown.subList(ahead, ahead+FRAMES), predicted.shown, "NES, ahead="+ahead);
+		}
+	}
+
+	@Test
+	public void serialOutputNotRepeated() throws IOException {
+		for(int ahead=1; ahead<=3; ahead++) {
+			GameBoyCore predictedCore = TestRoms.gameBoy(PROGRAM);
+			Run predicted = run(predictedCore, ahead, FRAMES);
+			GameBoyCore plainCore = TestRoms.gameBoy(PROGRAM);
+			Run plain = run(plainCore, 0, predicted.realFrames);
+			String output = plainCore.getSerialOutput();
+
+			Assertions.assertTrue(plain.lines.size()>FRAMES/2, "the rom should print about a line a frame, but printed "+plain.lines.size()+" in "+plain.realFrames+" frames");
+			Assertions.assertEquals(output, predictedCore.getSerialOutput(), "ahead="+ahead+": run-ahead frames shouldn't leave serial output behind");
+
+			//The frames run ahead may print a line or two early, but every line gets printed exactly once
+			List<String> expected = Arrays.asList(output.split("\n", -1));
+			expected = expected.subList(0, expected.size()-1);
+			Assertions.assertEquals(expected, predicted.lines.subList(0, expected.size()), "ahead="+ahead);
+			Assertions.assertTrue(predicted.lines.size()<=expected.size()+ahead, "ahead="+ahead+": printed "+predicted.lines.size()+" lines for "+expected.size());
+		}
+	}
+
+	/** Runs a session flat out until it's shown the given number of frames */
+	private static Run run(Core core, int ahead, int frames) {
+		ControlSet controls = new ControlSet();
+		controls.bind(TestRoms.FAST_FORWARD_KEY, "FastForward");
+		controls.acceptKey(TestRoms.FAST_FORWARD_KEY, true);
+
+		Run run = new Run();
+		EmulatorSession[] session = new EmulatorSession[1];
+		session[0] = new EmulatorSession(core, new FrameSink() {
+			@Override
+			public void setFrame(int[] data, int width, int height) {
+				run.shown.add(Arrays.hashCode(data));
+				if (run.shown.size()==frames) session[0].stop();
+			}
+
+			@Override
+			public void present() {}
+		}, controls);
+		session[0].setRunAhead(ahead);
+		core.hardReset();
+
+		PrintStream console = System.out;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(printed, true));
+		try {
+			session[0].run();
+		} finally {
+			System.setOut(console);
+		}
+
+		run.realFrames = (int) session[0].getFramesPresented();
+		for(String line : printed.toString().split("\n")) {
+			if (line.startsWith("Serial Console> ")) run.lines.add(line.substring("Serial Console> ".length()));
+		}
+		return run;
+	}
+
+	private static class Run {
+		List<Integer> shown = new ArrayList<>();
+		int realFrames;
+		List<String> lines = new ArrayList<>();
+	}
+}
@@ -0,0 +1,166 @@
+package blue.endless.felines;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import blue.endless.james.chip.sm83.Sm83;
+import blue.endless.james.chip.sm83.Sm83Registers;
+import blue.endless.james.host.Bus16;
+import blue.endless.james.host.DirectRegion;
+
+public class Sm83RecompilerTests {
+	/*
+	 * $0000: LD SP,$FFFE
+	 * $0003: LD HL,$C000
+	 * $0006: LD B,$00
+	 * $0008: LD C,$10
+	 * $000A: LD A,B
+	 * $000B: SWAP A
+	 * $000D: ADD A,C
+	 * $000E: LD (HL+),A
+	 * $000F: INC B
+	 * $0010: CALL $4000
+	 * $0013: DEC C
+	 * $0014: JR NZ,$000A
+	 * $0016: LD A,B
+	 * $0017: AND $01
+	 * $0019: INC A
+	 * $001A: LD ($2000),A   ; switch banks
+	 * $001D: JP $0003
+	 */
+	private static final int[] BANK_ZERO = {
+			0x31, 0xFE, 0xFF, 0x21, 0x00, 0xC0, 0x06, 0x00, 0x0E, 0x10, 0x78, 0xCB, 0x37, 0x81, 0x22, 0x04,
+			0xCD, 0x00, 0x40, 0x0D, 0x20, 0xF4, 0x78, 0xE6, 0x01, 0x3C, 0xEA, 0x00, 0x20, 0xC3, 0x03, 0x00
+	};
+	/* $4000: LD D,A / SLA D / LD E,D / INC DE / LD A,E / XOR D / RET */
+	private static final int[] BANK_ONE = { 0x57, 0xCB, 0x22, 0x5A, 0x13, 0x7B, 0xAA, 0xC9 };
+	/* $4000: LD E,A / DEC E / LD A,E / CPL / RET */
+	private static final int[] BANK_TWO = { 0x5F, 0x1D, 0x7B, 0x2F, 0xC9 };
+
+	@Test
+	public void recompilerMatchesInterpreter() {
+		BankedBus interpretedBus = new BankedBus();
+		BankedBus recompiledBus = new BankedBus();
+		Sm83 interpreted = createCpu(interpretedBus, false);
+		Sm83 recompiled = createCpu(recompiledBus, true);
+
+		for(int i=0; i<200_000; i++) {
+			int interpretedCycles = interpreted.clock();
+			int recompiledCycles = recompiled.clock();
+
+			String where = "instruction "+i;
+			Assertions.assertEquals(interpretedCycles, recompiledCycles, where);
+			assertSameRegisters(interpreted.regs, recompiled.regs, where);
+		}
+
+		Assertions.assertArrayEquals(interpretedBus.ram, recompiledBus.ram, "ram");
+	}
+
+	/** Not a test, so it doesn't slow down every build; run it by hand to see what the recompiler buys */
+	public static void main(String[] args) {
+		for(boolean recompiling : new boolean[] { false, true }) {
+			run(recompiling, 2_000_000); //warmup
+		}
+
+		for(boolean recompiling : new boolean[] { false, true }) {
+			int instructions = 10_000_000;
+			long start = System.nanoTime();
+			run(recompiling, instructions);
+			long elapsed = System.nanoTime() - start;
+
+			double perSecond = instructions / (elapsed / 1_000_000_000.0);
+			System.out.println(((recompiling) ? "recompiled" : "interpreted")+": "+(long) perSecond+" instructions/sec");
+		}
+	}
+
+	private static void run(boolean recompiling, int instructions) {
+		Sm83 cpu = createCpu(new BankedBus(), recompiling);
+		for(int i=0; i<instructions; i++) {
+			cpu.clock();
+		}
+	}
+
+	private static Sm83 createCpu(BankedBus bus, boolean recompiling) {
+		Sm83 cpu = new Sm83();
+		cpu.bus = bus;
+		cpu.setRecompiling(recompiling);
+		cpu.hardReset();
+		return cpu;
+	}
+
+	private static void assertSameRegisters(Sm83Registers expected, Sm83Registers actual, String where) {
+		Assertions.assertEquals(expected.pc, actual.pc, where);
+		Assertions.assertEquals(expected.sp, actual.sp, where);
+		Assertions.assertEquals(expected.af, actual.af, where);
+		Assertions.assertEquals(expected.bc, actual.bc, where);
+		Assertions.assertEquals(expected.de, actual.de, where);
+		Assertions.assertEquals(expected.hl, actual.hl, where);
+		Assertions.assertEquals(expected.instructionAddress, actual.instructionAddress, where);
+	}
+
+	/** Two 16K rom banks like an MBC1 cart, where a write to $2000 picks which of two banks shows up at $4000, and RAM everywhere above $8000 */
+	private static class BankedBus implements Bus16 {
+		private final byte[] bankZero = new byte[0x4000];
+		private final byte[] bankOne = new byte[0x4000];
+		private final byte[] bankTwo = new byte[0x4000];
+		private final byte[] ram = new byte[0x8000];
+		private final DirectRegion[] directPages = new DirectRegion[0x100];
+		private final DirectRegion bankRegion;
+
+		public BankedBus() {
+			for(int i=0; i<BANK_ZERO.length; i++) bankZero[i] = (byte) BANK_ZERO[i];
+			for(int i=0; i<BANK_ONE.length; i++) bankOne[i] = (byte) BANK_ONE[i];
+			for(int i=0; i<BANK_TWO.length; i++) bankTwo[i] = (byte) BANK_TWO[i];
+
+			DirectRegion zeroRegion = new DirectRegion(bankZero, 0x0000, 0x3FFF);
+			zeroRegion.readOnly = true;
+			bankRegion = new DirectRegion(bankOne, 0x4000, 0x3FFF);
+			bankRegion.readOnly = true;
+			for(int page=0x00; page<0x40; page++) directPages[page] = zeroRegion;
+			for(int page=0x40; page<0x80; page++) directPages[page] = bankRegion;
+		}
+
+		@Override
+		public DirectRegion[] getDirectPages() {
+			return directPages;
+		}
+
+		@Override
+		public int read8(int address) {
+			address &= 0xFFFF;
+			if (address<0x4000) return bankZero[address] & 0xFF;
+			if (address<0x8000) return bankRegion.data[address - 0x4000] & 0xFF;
+			return ram[address - 0x8000] & 0xFF;
+		}
+
+		@Override
+		public void write8(int address, int value) {
+			address &= 0xFFFF;
+			if (address>=0x2000 && address<0x4000) {
+				bankRegion.data = (value==1) ? bankOne : bankTwo;
+			} else if (address>=0x8000) {
+				ram[address - 0x8000] = (byte) value;
+			}
+		}
+
+		@Override
+		public int read(long address) {
+			return read8((int) address);
+		}
+
+		@Override
+		public void write(long address, int value) {
+			write8((int) address, value);
+		}
+
+		@Override
+		public boolean mapsRead(long address) {
+			return true;
+		}
+
+		@Override
+		public boolean mapsWrite(long address) {
+			return true;
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package blue.endless.felines;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import blue.endless.james.core.catboy.GBLoader;
+import blue.endless.james.core.catboy.GameBoyCore;
+import blue.endless.james.core.felines.INESLoader;
+import blue.endless.james.core.felines.NesCore;
+
+/** Tiny hand-assembled roms, so tests don't need carts which can't be checked in */
+class TestRoms {
+	/** The key tests bind to FastForward, so sessions run flat out */
+	public static final int FAST_FORWARD_KEY = 100;
+
+	/* $0000: LD A,$91 / LDH ($40),A / LD A,$01 / LDH ($50),A   ; LCD on, unmap the boot rom, fall into $0008 */
+	private static final int[] GB_BIOS = { 0x3E, 0x91, 0xE0, 0x40, 0x3E, 0x01, 0xE0, 0x50 };
+
+	/*
+	 * $8000: LDA #$3F / STA $2006 / LDA #$00 / STA $2006 / LDX #$00
+	 * $800C: STX $2007 / INX / CPX #$20 / BNE $800C        ; palette 0-31
+	 * $8014: LDA #$80 / STA $2000 / LDA #$1E / STA $2001   ; NMI and rendering on
+	 * $801E: LDA $2002 / BPL $801E                         ; the idle loop
+	 * $8023: LDA $11 / STA $2005 / STA $2005 / JMP $801E   ; scroll by however many NMIs there've been
+	 * $8F00: INC $11
+	 * $8F02: LDA #$3F / STA $2006 / LDA #$00 / STA $2006   ; and since the Ppu doesn't scroll yet,
+	 * $8F0C: LDA $11 / AND #$3F / STA $2007 / RTI          ; change the backdrop colour too
+	 */
+	private static final int[] NES_SCROLLER = {
+			0xA9, 0x3F, 0x8D, 0x06, 0x20, 0xA9, 0x00, 0x8D, 0x06, 0x20, 0xA2, 0x00,
+			0x8E, 0x07, 0x20, 0xE8, 0xE0, 0x20, 0xD0, 0xF8,
+			0xA9, 0x80, 0x8D, 0x00, 0x20, 0xA9, 0x1E, 0x8D, 0x01, 0x20,
+			0xAD, 0x02, 0x20, 0x10, 0xFB,
+			0xA5, 0x11, 0x8D, 0x05, 0x20, 0x8D, 0x05, 0x20, 0x4C, 0x1E, 0x80
+	};
+	private static final int[] NES_SCROLLER_NMI = {
+			0xE6, 0x11,
+			0xA9, 0x3F, 0x8D, 0x06, 0x20, 0xA9, 0x00, 0x8D, 0x06, 0x20,
+			0xA5, 0x11, 0x29, 0x3F, 0x8D, 0x07, 0x20, 0x40
+	};
+
+	/** A Game Boy with the program at $0150, which it jumps to as soon as the boot rom is done */
+	public static GameBoyCore gameBoy(int[] program) throws IOException {
+		byte[] bios = new byte[0x100];
+		for(int i=0; i<GB_BIOS.length; i++) bios[i] = (byte) GB_BIOS[i];
+		byte[] rom = new byte[0x8000];
+		rom[0x0008] = (byte) 0xC3; rom[0x0009] = 0x50; rom[0x000A] = 0x01; //JP $0150
+		for(int i=0; i<program.length; i++) rom[0x150+i] = (byte) program[i];
+
+		GameBoyCore core = new GameBoyCore();
+		core.connectBios(bios);
+		GBLoader.loadCartridge(new ByteArrayInputStream(rom), core);
+		return core;
+	}
+
+	/** A NES whose picture changes every frame, and which otherwise waits for vblank */
+	public static NesCore scrollingNes() throws IOException {
+		return nes(NES_SCROLLER, NES_SCROLLER_NMI);
+	}
+
+	/** A NES with one bank of PRG holding the program at $8000 and nmi at $8F00, and one of random CHR */
+	static NesCore nes(int[] program, int[] nmi) throws IOException {
+		byte[] prg = new byte[0x4000];
+		for(int i=0; i<program.length; i++) prg[i] = (byte) program[i];
+		for(int i=0; i<nmi.length; i++) prg[0x0F00+i] = (byte) nmi[i];
+		prg[0x3FFA] = 0x00; prg[0x3FFB] = (byte) 0x8F; //NMI
+		prg[0x3FFC] = 0x00; prg[0x3FFD] = (byte) 0x80; //RESET
+
+		byte[] chr = new byte[0x2000];
+		new Random(5).nextBytes(chr);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] header = { 'N', 'E', 'S', 0x1A, 1, 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+		out.writeBytes(header);
+		out.writeBytes(prg);
+		out.writeBytes(chr);
+
+		NesCore core = new NesCore();
+		INESLoader.loadCartridge(new ByteArrayInputStream(out.toByteArray()), core);
+		return core;
+	}
+}